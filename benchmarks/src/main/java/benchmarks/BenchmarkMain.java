@@ -0,0 +1,24 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line options, and
+ * always adds the GC profiler so that allocation rates are reported next to the
+ * throughput of every benchmark.
+ *
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		final Options options = new OptionsBuilder()
+		        .parent(new CommandLineOptions(args))
+		        .addProfiler(GCProfiler.class)
+		        .build();
+		new Runner(options).run();
+	}
+}
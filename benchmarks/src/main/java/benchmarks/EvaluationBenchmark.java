@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Throughput of evaluating a parsed expression by walking its tree, with the
+ * CompiledExpression interpreter, and with the bytecode-compiled function.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark {
+	@Param({ "WIDE_SUM", "DEEP_NESTING", "ALTERNATING" })
+	public ExpressionShape shape;
+
+	@Param({ "10", "100", "1000" })
+	public int size;
+
+	private final long[] _variables = new long[26];
+	private Object _tree;
+	private Object _compiled;
+	private ToLongFunction<long[]> _bytecode;
+
+	@Setup
+	public void setUp() throws Throwable {
+		for (int v = 0; v < _variables.length; v++) {
+			_variables[v] = v + 1;
+		}
+		_tree = Expressions.parse(shape.generate(size));
+		_compiled = Expressions.compile(_tree);
+		_bytecode = Expressions.compileBytecode(_tree);
+	}
+
+	@Benchmark
+	public long tree() throws Throwable {
+		return Expressions.evaluate(_tree, _variables);
+	}
+
+	@Benchmark
+	public long compiled() throws Throwable {
+		return Expressions.evaluateCompiled(_compiled, _variables);
+	}
+
+	@Benchmark
+	public long bytecode() {
+		return _bytecode.applyAsLong(_variables);
+	}
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Throughput of parsing, of the binary codec and of the tree operations on
+ * generated expressions of increasing size, for each ExpressionShape.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+	@Param({ "WIDE_SUM", "DEEP_NESTING", "ALTERNATING" })
+	public ExpressionShape shape;
+
+	@Param({ "10", "100", "1000" })
+	public int size;
+
+	private String _text;
+	private Object _tree;
+	private byte[] _record;
+
+	@Setup
+	public void setUp() throws Throwable {
+		_text = shape.generate(size);
+		_tree = Expressions.parse(_text);
+		_record = Expressions.encode(_tree);
+	}
+
+	@Benchmark
+	public Object parse() throws Throwable {
+		return Expressions.parse(_text);
+	}
+
+	@Benchmark
+	public byte[] encode() throws Throwable {
+		return Expressions.encode(_tree);
+	}
+
+	/**
+	 * Reads the tree back from its binary record, for comparison with parse.
+	 */
+	@Benchmark
+	public Object decode() throws Throwable {
+		return Expressions.decode(ByteBuffer.wrap(_record));
+	}
+
+	/**
+	 * Flattens the (already flat) parsed tree, as the editor does after every edit.
+	 */
+	@Benchmark
+	public Object flatten() throws Throwable {
+		Expressions.flatten(_tree);
+		return _tree;
+	}
+
+	@Benchmark
+	public Object deepCopy() throws Throwable {
+		return Expressions.deepCopy(_tree);
+	}
+
+	@Benchmark
+	public String convertToString() throws Throwable {
+		return Expressions.convertToString(_tree, 0);
+	}
+}
@@ -0,0 +1,80 @@
+package benchmarks;
+
+/**
+ *
+ * The shapes of the generated expressions that are benchmarked.
+ *
+ */
+public enum ExpressionShape {
+	/**
+	 * A single sum of many terms, e.g. x+1+y+2 -- a tree of width size and depth 1
+	 */
+	WIDE_SUM {
+		@Override
+		String generate(int size) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				if (i > 0) {
+					sb.append('+');
+				}
+				appendLiteral(sb, i);
+			}
+			return sb.toString();
+		}
+	},
+
+	/**
+	 * Nested parentheses, e.g. (x+(1+(y+2))) -- a tree of depth about 2*size
+	 */
+	DEEP_NESTING {
+		@Override
+		String generate(int size) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				sb.append('(');
+				appendLiteral(sb, i);
+				sb.append('+');
+			}
+			appendLiteral(sb, size);
+			for (int i = 0; i < size; i++) {
+				sb.append(')');
+			}
+			return sb.toString();
+		}
+	},
+
+	/**
+	 * Operators alternating between + and *, e.g. x+1*y+2 -- a sum of size/2 products
+	 */
+	ALTERNATING {
+		@Override
+		String generate(int size) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				if (i > 0) {
+					sb.append(i % 2 == 0 ? '+' : '*');
+				}
+				appendLiteral(sb, i);
+			}
+			return sb.toString();
+		}
+	};
+
+	/**
+	 * Generates an expression of this shape
+	 * @param size the number of literals in the expression
+	 * @return the expression text
+	 */
+	abstract String generate(int size);
+
+	/**
+	 * Appends the i-th literal, alternating between variables and numbers.
+	 */
+	private static void appendLiteral(StringBuilder sb, int i) {
+		if (i % 2 == 0) {
+			sb.append((char) ('a' + (i / 2) % 26));
+		} else {
+			sb.append(i);
+		}
+	}
+}
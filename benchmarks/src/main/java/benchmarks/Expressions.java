@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * Access to the expression editor's classes, which live in the unnamed package and
+ * therefore cannot be imported by the benchmarks (JMH requires benchmark classes to
+ * be in a named package). The method handles are constants, so the JIT compiles
+ * calls through them into the same direct calls that the editor makes.
+ *
+ */
+final class Expressions {
+	private static final Object PARSER;
+	private static final MethodHandle PARSE, FLATTEN, DEEP_COPY, CONVERT_TO_STRING;
+	private static final MethodHandle EVALUATE, COMPILE, EVALUATE_COMPILED, COMPILE_BYTECODE;
+	private static final Object BYTECODE_COMPILER;
+	private static final MethodHandle ENCODE, DECODE;
+
+	static {
+		try {
+			final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			final Class<?> expressionClass = Class.forName("Expression");
+			final Class<?> parserClass = Class.forName("LinearExpressionParser");
+			// every generated expression is compound, so its methods can be bound through the public base class
+			final Class<?> compoundClass = Class.forName("AbstractCompoundExpression");
+			PARSER = parserClass.getConstructor().newInstance();
+			PARSE = lookup.findVirtual(parserClass, "parse", MethodType.methodType(expressionClass, String.class, boolean.class))
+			        .asType(MethodType.methodType(Object.class, Object.class, String.class, boolean.class));
+			FLATTEN = lookup.findVirtual(compoundClass, "flatten", MethodType.methodType(void.class))
+			        .asType(MethodType.methodType(void.class, Object.class));
+			DEEP_COPY = lookup.findVirtual(compoundClass, "deepCopy", MethodType.methodType(expressionClass))
+			        .asType(MethodType.methodType(Object.class, Object.class));
+			CONVERT_TO_STRING = lookup.findVirtual(compoundClass, "convertToString", MethodType.methodType(String.class, int.class))
+			        .asType(MethodType.methodType(String.class, Object.class, int.class));
+			EVALUATE = lookup.findVirtual(compoundClass, "evaluate", MethodType.methodType(long.class, long[].class))
+			        .asType(MethodType.methodType(long.class, Object.class, long[].class));
+			final Class<?> compiledClass = Class.forName("CompiledExpression");
+			COMPILE = lookup.findStatic(compiledClass, "compile", MethodType.methodType(compiledClass, expressionClass))
+			        .asType(MethodType.methodType(Object.class, Object.class));
+			EVALUATE_COMPILED = lookup.findVirtual(compiledClass, "evaluate", MethodType.methodType(long.class, long[].class))
+			        .asType(MethodType.methodType(long.class, Object.class, long[].class));
+			final Class<?> bytecodeCompilerClass = Class.forName("ExpressionBytecodeCompiler");
+			BYTECODE_COMPILER = bytecodeCompilerClass.getConstructor().newInstance();
+			COMPILE_BYTECODE = lookup.findVirtual(bytecodeCompilerClass, "compile", MethodType.methodType(ToLongFunction.class, expressionClass))
+			        .asType(MethodType.methodType(ToLongFunction.class, Object.class, Object.class));
+			final Class<?> codecClass = Class.forName("ExpressionCodec");
+			ENCODE = lookup.findStatic(codecClass, "encode", MethodType.methodType(byte[].class, expressionClass))
+			        .asType(MethodType.methodType(byte[].class, Object.class));
+			DECODE = lookup.findStatic(codecClass, "decode", MethodType.methodType(expressionClass, ByteBuffer.class))
+			        .asType(MethodType.methodType(Object.class, ByteBuffer.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Expressions() {
+	}
+
+	/**
+	 * Parses the string with the parser used by the ExpressionEditor.
+	 * @param str the string to parse
+	 * @return the flattened expression tree
+	 */
+	static Object parse(String str) throws Throwable {
+		return (Object) PARSE.invokeExact(PARSER, str, false);
+	}
+
+	static void flatten(Object expression) throws Throwable {
+		FLATTEN.invokeExact(expression);
+	}
+
+	static Object deepCopy(Object expression) throws Throwable {
+		return (Object) DEEP_COPY.invokeExact(expression);
+	}
+
+	static String convertToString(Object expression, int indentLevel) throws Throwable {
+		return (String) CONVERT_TO_STRING.invokeExact(expression, indentLevel);
+	}
+
+	static long evaluate(Object expression, long[] variables) throws Throwable {
+		return (long) EVALUATE.invokeExact(expression, variables);
+	}
+
+	/**
+	 * Compiles the expression with CompiledExpression.compile.
+	 * @param expression the expression to compile
+	 * @return the CompiledExpression
+	 */
+	static Object compile(Object expression) throws Throwable {
+		return (Object) COMPILE.invokeExact(expression);
+	}
+
+	static long evaluateCompiled(Object compiled, long[] variables) throws Throwable {
+		return (long) EVALUATE_COMPILED.invokeExact(compiled, variables);
+	}
+
+	@SuppressWarnings("unchecked")
+	static ToLongFunction<long[]> compileBytecode(Object expression) throws Throwable {
+		return (ToLongFunction<long[]>) COMPILE_BYTECODE.invokeExact(BYTECODE_COMPILER, expression);
+	}
+
+	/**
+	 * Encodes the expression with ExpressionCodec.encode.
+	 * @param expression the expression to encode
+	 * @return its record
+	 */
+	static byte[] encode(Object expression) throws Throwable {
+		return (byte[]) ENCODE.invokeExact(expression);
+	}
+
+	static Object decode(ByteBuffer record) throws Throwable {
+		return (Object) DECODE.invokeExact(record);
+	}
+}
@@ -1,4 +1,8 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 /**
  *
  * Common code in all types of compound expressions
@@ -8,12 +12,24 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
 
     private CompoundExpression _parent;
     private List<Expression> _children;
+    private boolean _flat; // whether the tree rooted here is flat and unchanged since
 
     /**
      * Constructor for AbstractCompoundExpressions
      */
     protected AbstractCompoundExpression() {
-        _children = new ArrayList<Expression>();
+        _children = new ChildList();
+    }
+
+    /**
+     * Constructor for AbstractCompoundExpressions whose number of children is known
+     * in advance, so that their list of children never needs to grow
+     *
+     * @param childCapacity
+     *            the expected number of children
+     */
+    protected AbstractCompoundExpression(int childCapacity) {
+        _children = new ChildList(childCapacity);
     }
 
     /**
@@ -52,7 +68,26 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
      *
      * @return the deep copy
      */
-    public abstract Expression deepCopy();
+    public Expression deepCopy() {
+        final List<AbstractCompoundExpression> copies = new ArrayList<AbstractCompoundExpression>();
+        walk(new Visitor() {
+            public void enter(Expression e, int depth) {
+                final Expression copy = e instanceof AbstractCompoundExpression
+                        ? ((AbstractCompoundExpression) e).copyNode() : e.deepCopy();
+                if (depth > 0) {
+                    copies.get(depth - 1).addSubexpression(copy);
+                }
+                if (copy instanceof AbstractCompoundExpression) {
+                    if (depth == copies.size()) {
+                        copies.add((AbstractCompoundExpression) copy);
+                    } else {
+                        copies.set(depth, (AbstractCompoundExpression) copy);
+                    }
+                }
+            }
+        });
+        return copies.get(0);
+    }
 
     /**
      * Recursively flattens the expression as much as possible throughout the entire
@@ -60,20 +95,141 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
      * first or last child c is of the same type as x, the children of c will be
      * added to x, and c itself will be removed. This method modifies the expression
      * itself.
+     *
+     * Subtrees that were flattened before and have not changed since are skipped,
+     * so flattening an unchanged tree again takes constant time. Changes to the
+     * children of an expression, through addSubexpression or its list of children,
+     * mark it and its ancestors as changed.
      */
-    public abstract void flatten();
+    public void flatten() {
+        if (_flat) {
+            return;
+        }
+        walk(new Visitor() {
+            public void enter(Expression e, int depth) {
+                if (!(e instanceof AbstractCompoundExpression)) {
+                    e.flatten();
+                }
+            }
+
+            @Override
+            public boolean descend(AbstractCompoundExpression e) {
+                return !e._flat;
+            }
+
+            @Override
+            public void exit(AbstractCompoundExpression e, AbstractCompoundExpression parent) {
+                if (parent == null || !parent.absorbs(e)) {
+                    e.flattenNode(); // its children are already flat
+                    e._flat = true;
+                } // else the parent splices e and its descendants into itself in one go
+            }
+        });
+    }
 
     /**
-     * Creates a String representation by recursively printing out (using
+     * Returns whether the tree rooted at this expression was flattened and has not
+     * changed since, in which case flatten() has nothing to do.
+     *
+     * @return whether the expression is known to be flat
+     */
+    public boolean isFlat() {
+        return _flat;
+    }
+
+    /**
+     * Appends a String representation by recursively printing out (using
      * indentation) the tree represented by this expression, starting at the
      * specified indentation level.
      *
+     * @param out
+     *            the Appendable to which to append the representation
      * @param indentLevel
      *            the indentation level (number of tabs from the left margin) at
      *            which to start
-     * @return a String representation of the expression tree.
+     * @throws IOException
+     *             if out throws it
+     */
+    public void convertToString(Appendable out, int indentLevel) throws IOException {
+        try {
+            walk(new Visitor() {
+                public void enter(Expression e, int depth) {
+                    try {
+                        if (e instanceof AbstractCompoundExpression) {
+                            Expression.indent(out, indentLevel + depth);
+                            out.append(((AbstractCompoundExpression) e).getLabel()).append('\n');
+                        } else {
+                            e.convertToString(out, indentLevel + depth);
+                        }
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
+                    }
+                }
+            });
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * Creates the JavaFX nodes of the entire tree rooted at this expression.
+     */
+    public void setNode() {
+        walk(new Visitor() {
+            public void enter(Expression e, int depth) {
+                if (!(e instanceof AbstractCompoundExpression)) {
+                    e.setNode();
+                }
+            }
+
+            @Override
+            public void exit(AbstractCompoundExpression e, AbstractCompoundExpression parent) {
+                e.updateNode(); // the nodes of its children already exist
+            }
+        });
+    }
+
+    /**
+     * Returns a new expression of the same type as this one, without children.
+     *
+     * @return the childless copy
      */
-    public abstract String convertToString(int indentLevel);
+    protected abstract AbstractCompoundExpression copyNode();
+
+    /**
+     * Returns the line that represents this expression in convertToString, e.g. its
+     * operation.
+     *
+     * @return the label of this expression
+     */
+    protected abstract String getLabel();
+
+    /**
+     * Flattens this expression, changing its list of children in place. When it is
+     * called, every child is flat, except for the children that this expression
+     * absorbs, which have not been flattened yet. Does nothing unless overridden.
+     */
+    protected void flattenNode() {
+    }
+
+    /**
+     * Returns whether flattening this expression splices the child into it, in
+     * which case flatten() leaves the child to this expression's flattenNode().
+     * Returns false unless overridden.
+     *
+     * @param child
+     *            a child of this expression
+     * @return whether the child will be spliced into this expression
+     */
+    protected boolean absorbs(Expression child) {
+        return false;
+    }
+
+    /**
+     * Recreates the JavaFX node of this expression from the existing nodes of its
+     * children, without recreating the nodes of the children themselves.
+     */
+    public abstract void updateNode();
 
     /**
      * Adds the specified expression as a child.
@@ -86,10 +242,193 @@ public abstract class AbstractCompoundExpression implements CompoundExpression {
         subexpression.setParent(this);
     }
 
+    /**
+     * Adds a child like addSubexpression, but goes through the list of children
+     * without reporting the change when this expression is not flat anyway, as
+     * while a tree is being built.
+     *
+     * @param subexpression
+     *            the child expression to add
+     */
+    void appendSubexpression(Expression subexpression) {
+        if (_flat) {
+            changed();
+        }
+        ((ChildList) _children).append(subexpression);
+        subexpression.setParent(this);
+    }
+
     /**
      * Clears all subexpressions from this Expression.
      */
     public void clearSubexpression() {
-        _children = new ArrayList<Expression>();
+        _children = new ChildList();
+        changed();
+    }
+
+    /**
+     * Marks this expression and its ancestors as no longer flat. Since the
+     * ancestors of an expression that is not flat are not flat either, this stops at
+     * the first one that is already marked.
+     */
+    protected void changed() {
+        CompoundExpression expression = this;
+        while (expression instanceof AbstractCompoundExpression && ((AbstractCompoundExpression) expression)._flat) {
+            ((AbstractCompoundExpression) expression)._flat = false;
+            expression = expression.getParent();
+        }
+    }
+
+    /**
+     * Visits the tree rooted at this expression in depth-first order, keeping the
+     * path to the current expression on an explicit stack rather than on the call
+     * stack, so that trees of any depth can be traversed. Every expression is
+     * entered before its children; compound expressions are also exited after
+     * their children, unless the visitor chooses not to descend into them. The
+     * children of an expression may be changed when it is exited.
+     */
+    private void walk(Visitor visitor) {
+        AbstractCompoundExpression[] path = new AbstractCompoundExpression[16];
+        int[] next = new int[16]; // index of the next child to visit at each level
+        int top = 0;
+        path[0] = this;
+        visitor.enter(this, 0);
+        while (top >= 0) {
+            final AbstractCompoundExpression node = path[top];
+            if (next[top] < node._children.size()) {
+                final Expression child = node._children.get(next[top]++);
+                visitor.enter(child, top + 1);
+                if (child instanceof AbstractCompoundExpression
+                        && visitor.descend((AbstractCompoundExpression) child)) {
+                    if (++top == path.length) {
+                        path = Arrays.copyOf(path, top * 2);
+                        next = Arrays.copyOf(next, top * 2);
+                    }
+                    path[top] = (AbstractCompoundExpression) child;
+                    next[top] = 0;
+                }
+            } else {
+                path[top--] = null;
+                visitor.exit(node, top >= 0 ? path[top] : null);
+            }
+        }
+    }
+
+    /**
+     * Callbacks of walk. The depth is 0 for the expression being walked, whose
+     * parent is passed to exit as null.
+     */
+    private interface Visitor {
+        void enter(Expression e, int depth);
+
+        default boolean descend(AbstractCompoundExpression e) {
+            return true;
+        }
+
+        default void exit(AbstractCompoundExpression e, AbstractCompoundExpression parent) {
+        }
+    }
+
+    /**
+     * The list of children, which reports every change to its expression. Changes
+     * made through subList() are only reported if they add or remove children.
+     */
+    private class ChildList extends ArrayList<Expression> {
+        private static final long serialVersionUID = 1L;
+
+        ChildList() {
+        }
+
+        ChildList(int capacity) {
+            super(capacity);
+        }
+
+        void append(Expression e) {
+            super.add(e);
+        }
+
+        @Override
+        public boolean add(Expression e) {
+            changed();
+            return super.add(e);
+        }
+
+        @Override
+        public void add(int index, Expression e) {
+            changed();
+            super.add(index, e);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Expression> c) {
+            changed();
+            return super.addAll(c);
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends Expression> c) {
+            changed();
+            return super.addAll(index, c);
+        }
+
+        @Override
+        public Expression set(int index, Expression e) {
+            changed();
+            return super.set(index, e);
+        }
+
+        @Override
+        public Expression remove(int index) {
+            changed();
+            return super.remove(index);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            changed();
+            return super.remove(o);
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            changed();
+            super.removeRange(fromIndex, toIndex);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            changed();
+            return super.removeAll(c);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            changed();
+            return super.retainAll(c);
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super Expression> filter) {
+            changed();
+            return super.removeIf(filter);
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<Expression> operator) {
+            changed();
+            super.replaceAll(operator);
+        }
+
+        @Override
+        public void sort(Comparator<? super Expression> c) {
+            changed();
+            super.sort(c);
+        }
+
+        @Override
+        public void clear() {
+            changed();
+            super.clear();
+        }
     }
 }
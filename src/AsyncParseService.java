@@ -0,0 +1,180 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ *
+ * Parses expressions on a background worker thread, so that a slow parse does not
+ * block the JavaFX application thread.
+ *
+ * Every submitted text supersedes the ones submitted before it: a superseded
+ * request that has not started yet is skipped, and one that is being parsed is
+ * cancelled cooperatively through the parser's cancellation check. Results are
+ * handed to the publisher (e.g. Platform::runLater) and only delivered if no newer
+ * text was submitted in the meantime, so the listeners only ever see the latest
+ * tree.
+ *
+ * The listeners always receive a copy of the parser's tree, so the parser can go
+ * on editing its own tree on the worker thread while the listeners use theirs. If
+ * JavaFX controls are wanted, they are created for the copy by the publisher,
+ * i.e. on the JavaFX application thread, since they may be shown right away.
+ *
+ * The incremental parser thus only saves parsing time: every result is a fresh
+ * tree, copied in time linear in its size, that shares no expression or JavaFX
+ * node with the one delivered before it. A listener that wants to keep what did
+ * not change has to find it itself, e.g. with an ExpressionDiff of the two trees.
+ *
+ */
+public class AsyncParseService {
+	private final IncrementalExpressionParser _parser;
+	private final boolean _withJavaFXControls;
+	private final Executor _publisher;
+	private final Consumer<Expression> _onParsed;
+	private final Consumer<ExpressionParseException> _onError;
+	private final ThreadPoolExecutor _worker;
+
+	// generation of the latest submitted request
+	private final AtomicLong _generation = new AtomicLong();
+
+	// statistics
+	private final AtomicLong _completed = new AtomicLong();
+	private final AtomicLong _cancelled = new AtomicLong();
+	private final AtomicLong _totalLatencyNanos = new AtomicLong();
+	private volatile long _lastLatencyNanos;
+
+	/**
+	 * Constructor for AsyncParseService
+	 *
+	 * @param parser
+	 *            the parser to use, which must not be used by anyone else
+	 * @param withJavaFXControls
+	 *            whether to create JavaFX GUI objects for the parsed trees
+	 * @param publisher
+	 *            the executor on which results are delivered, e.g. Platform::runLater
+	 * @param onParsed
+	 *            receives the tree of the latest text
+	 * @param onError
+	 *            receives the exception if the latest text cannot be parsed
+	 */
+	public AsyncParseService(IncrementalExpressionParser parser, boolean withJavaFXControls, Executor publisher,
+	                         Consumer<Expression> onParsed, Consumer<ExpressionParseException> onError) {
+		_parser = parser;
+		_withJavaFXControls = withJavaFXControls;
+		_publisher = publisher;
+		_onParsed = onParsed;
+		_onError = onError;
+		_worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			final Thread thread = new Thread(runnable, "expression-parser");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Requests that the text be parsed, superseding every earlier request.
+	 *
+	 * @param text
+	 *            the text to parse
+	 */
+	public void submit(String text) {
+		final long generation = _generation.incrementAndGet();
+		_worker.execute(() -> parse(text, generation));
+	}
+
+	/**
+	 * Runs on the worker thread.
+	 */
+	private void parse(String text, long generation) {
+		if (generation != _generation.get()) {
+			_cancelled.incrementAndGet(); // superseded before it started
+			return;
+		}
+		final long start = System.nanoTime();
+		_parser.setCancellationCheck(() -> generation != _generation.get());
+		try {
+			// copied, since the parser edits its own tree in place on this thread for the next text
+			final Expression expression = _parser.update(text, false).deepCopy();
+			recordLatency(System.nanoTime() - start);
+			_publisher.execute(() -> {
+				if (generation == _generation.get()) {
+					if (_withJavaFXControls) {
+						expression.setNode();
+					}
+					_onParsed.accept(expression);
+				}
+			});
+		} catch (ExpressionParseException epe) {
+			recordLatency(System.nanoTime() - start);
+			_publisher.execute(() -> {
+				if (generation == _generation.get()) {
+					_onError.accept(epe);
+				}
+			});
+		} catch (CancellationException ce) {
+			_cancelled.incrementAndGet();
+		} finally {
+			_parser.setCancellationCheck(null);
+		}
+	}
+
+	private void recordLatency(long nanos) {
+		_lastLatencyNanos = nanos;
+		_totalLatencyNanos.addAndGet(nanos);
+		_completed.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of requests waiting for the worker thread.
+	 *
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return _worker.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of requests that were parsed to completion, successfully or not.
+	 *
+	 * @return the number of completed parses
+	 */
+	public long getCompletedCount() {
+		return _completed.get();
+	}
+
+	/**
+	 * Returns the number of requests that were skipped or abandoned because a newer
+	 * request was submitted.
+	 *
+	 * @return the number of cancelled parses
+	 */
+	public long getCancelledCount() {
+		return _cancelled.get();
+	}
+
+	/**
+	 * Returns how long the last completed parse took.
+	 *
+	 * @return the latency in nanoseconds
+	 */
+	public long getLastLatencyNanos() {
+		return _lastLatencyNanos;
+	}
+
+	/**
+	 * Returns the average time taken by the completed parses.
+	 *
+	 * @return the average latency in nanoseconds, or 0 if nothing was parsed yet
+	 */
+	public long getAverageLatencyNanos() {
+		final long completed = _completed.get();
+		return completed == 0 ? 0 : _totalLatencyNanos.get() / completed;
+	}
+
+	/**
+	 * Stops the worker thread; requests that have not started are dropped.
+	 */
+	public void shutdown() {
+		_generation.incrementAndGet();
+		_worker.shutdownNow();
+	}
+}
@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ *
+ * Parses many expressions, one per line, in parallel on a ForkJoinPool.
+ *
+ * The input -- a Stream of lines, or a file of newline-separated ASCII
+ * expressions that is memory-mapped rather than read -- is cut into batches of a
+ * configurable number of lines, and each batch is parsed by one task. Results are
+ * delivered in input order, one per line, holding either the tree or the
+ * ExpressionParseException of that line. Only a few batches per worker thread are
+ * in flight at any time, so the input is never held in memory all at once unless
+ * the caller collects the results into a list.
+ *
+ * Every worker thread has its own parser, created by the parser factory, and its
+ * own buffer for decoding lines of mapped files, so the only allocations per line
+ * are the line's String and its tree.
+ *
+ * The trees are parsed without JavaFX controls.
+ *
+ */
+public class BatchExpressionParser {
+	/**
+	 * The default number of lines parsed by one task
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	/**
+	 * The largest part of a file that is mapped at once
+	 */
+	private static final int MAP_WINDOW = 1 << 30;
+
+	// instance variables
+	private final ForkJoinPool _pool;
+	private final int _batchSize;
+	private final ThreadLocal<Scratch> _scratch;
+
+	/**
+	 * Constructs a batch parser that uses LinearExpressionParser on the common pool.
+	 */
+	public BatchExpressionParser() {
+		this(LinearExpressionParser::new, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Constructor for BatchExpressionParser
+	 *
+	 * @param parserFactory
+	 *            creates the parser of each worker thread
+	 * @param pool
+	 *            the pool that runs the parse tasks
+	 * @param batchSize
+	 *            the number of lines parsed by one task
+	 */
+	public BatchExpressionParser(Supplier<? extends ExpressionParser> parserFactory, ForkJoinPool pool, int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		_pool = pool;
+		_batchSize = batchSize;
+		_scratch = ThreadLocal.withInitial(() -> new Scratch(parserFactory.get()));
+	}
+
+	/**
+	 * Parses every line of the stream.
+	 *
+	 * @param lines
+	 *            the expressions to parse
+	 * @return the results, in the order of the lines
+	 */
+	public List<Result> parse(Stream<String> lines) {
+		final List<Result> results = new ArrayList<Result>();
+		parse(lines, results::add);
+		return results;
+	}
+
+	/**
+	 * Parses every line of the stream, and hands the results to the consumer in the
+	 * order of the lines, on the calling thread.
+	 *
+	 * @param lines
+	 *            the expressions to parse
+	 * @param results
+	 *            receives the result of every line
+	 */
+	public void parse(Stream<String> lines, Consumer<Result> results) {
+		final Window window = new Window(results);
+		final Iterator<String> iterator = lines.iterator();
+		long index = 0;
+		while (iterator.hasNext()) {
+			final String[] batch = new String[_batchSize];
+			int size = 0;
+			while (size < batch.length && iterator.hasNext()) {
+				batch[size++] = iterator.next();
+			}
+			final long first = index;
+			final int length = size;
+			window.submit(() -> {
+				final Scratch scratch = _scratch.get();
+				final Result[] parsed = new Result[length];
+				for (int i = 0; i < length; i++) {
+					parsed[i] = scratch.parse(first + i, batch[i]);
+				}
+				return parsed;
+			});
+			index += size;
+		}
+		window.drain();
+	}
+
+	/**
+	 * Parses every line of the file, which holds one ASCII expression per line.
+	 *
+	 * @param file
+	 *            the file to parse
+	 * @return the results, in the order of the lines
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public List<Result> parse(Path file) throws IOException {
+		final List<Result> results = new ArrayList<Result>();
+		parse(file, results::add);
+		return results;
+	}
+
+	/**
+	 * Parses every line of the file, which holds one ASCII expression per line, and
+	 * hands the results to the consumer in the order of the lines, on the calling
+	 * thread. Lines may end with \n or \r\n.
+	 *
+	 * @param file
+	 *            the file to parse
+	 * @param results
+	 *            receives the result of every line
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public void parse(Path file, Consumer<Result> results) throws IOException {
+		final Window window = new Window(results);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			long position = 0, index = 0;
+			while (position < size) {
+				final int length = (int) Math.min(MAP_WINDOW, size - position);
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				final boolean last = position + length == size;
+				int start = 0;
+				while (start < length) {
+					final int[] ends = new int[_batchSize];
+					final int batchStart = start;
+					int lines = 0;
+					int end = start;
+					while (lines < ends.length && end < length) {
+						while (end < length && buffer.get(end) != '\n') {
+							end++;
+						}
+						if (end == length && !last) {
+							break; // the line continues in the next window
+						}
+						ends[lines++] = end;
+						start = ++end;
+					}
+					if (lines == 0) {
+						if (batchStart == 0) {
+							throw new IOException("Line " + (index + 1) + " is longer than " + MAP_WINDOW + " bytes");
+						}
+						break;
+					}
+					final ByteBuffer view = buffer.duplicate();
+					final long first = index;
+					final int count = lines;
+					window.submit(() -> {
+						final Scratch scratch = _scratch.get();
+						final Result[] parsed = new Result[count];
+						int lineStart = batchStart;
+						for (int i = 0; i < count; i++) {
+							parsed[i] = scratch.parse(first + i, scratch.decode(view, lineStart, ends[i]));
+							lineStart = ends[i] + 1;
+						}
+						return parsed;
+					});
+					index += lines;
+				}
+				position += start;
+			}
+		}
+		window.drain();
+	}
+
+	/**
+	 * The batches in flight, which are delivered in order.
+	 */
+	private class Window {
+		private final Consumer<Result> _results;
+		private final ArrayDeque<ForkJoinTask<Result[]>> _tasks = new ArrayDeque<ForkJoinTask<Result[]>>();
+		private final int _maximumSize = 2 * _pool.getParallelism() + 1;
+
+		Window(Consumer<Result> results) {
+			_results = results;
+		}
+
+		void submit(Callable<Result[]> batch) {
+			while (_tasks.size() >= _maximumSize) {
+				deliver();
+			}
+			_tasks.add(_pool.submit(batch));
+		}
+
+		void drain() {
+			while (!_tasks.isEmpty()) {
+				deliver();
+			}
+		}
+
+		private void deliver() {
+			for (Result result : _tasks.remove().join()) {
+				_results.accept(result);
+			}
+		}
+	}
+
+	/**
+	 * The parser and decoding buffer of one worker thread
+	 */
+	private static class Scratch {
+		private final ExpressionParser _parser;
+		private char[] _chars = new char[256];
+
+		Scratch(ExpressionParser parser) {
+			_parser = parser;
+		}
+
+		/**
+		 * Decodes the ASCII bytes in [start, end) of the buffer, without a trailing \r.
+		 */
+		String decode(ByteBuffer buffer, int start, int end) {
+			if (end > start && buffer.get(end - 1) == '\r') {
+				end--;
+			}
+			if (_chars.length < end - start) {
+				_chars = new char[Math.max(end - start, 2 * _chars.length)];
+			}
+			for (int i = start; i < end; i++) {
+				_chars[i - start] = (char) (buffer.get(i) & 0xff);
+			}
+			return new String(_chars, 0, end - start);
+		}
+
+		Result parse(long index, String line) {
+			try {
+				return new Result(index, _parser.parse(line, false), null);
+			} catch (ExpressionParseException epe) {
+				return new Result(index, null, epe);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of parsing one line: its tree, or the reason it could not be parsed.
+	 */
+	public static class Result {
+		private final long _index;
+		private final Expression _expression;
+		private final ExpressionParseException _exception;
+
+		Result(long index, Expression expression, ExpressionParseException exception) {
+			_index = index;
+			_expression = expression;
+			_exception = exception;
+		}
+
+		/**
+		 * Returns the index of the line, counting from 0.
+		 *
+		 * @return the index of the line in the input
+		 */
+		public long getIndex() {
+			return _index;
+		}
+
+		/**
+		 * Returns whether the line was parsed.
+		 *
+		 * @return whether there is a tree
+		 */
+		public boolean isParsed() {
+			return _expression != null;
+		}
+
+		/**
+		 * Returns the tree of the line.
+		 *
+		 * @return the tree, or null if the line could not be parsed
+		 */
+		public Expression getExpression() {
+			return _expression;
+		}
+
+		/**
+		 * Returns why the line could not be parsed.
+		 *
+		 * @return the exception, or null if the line was parsed
+		 */
+		public ExpressionParseException getException() {
+			return _exception;
+		}
+
+		/**
+		 * Returns the tree of the line, or throws the exception of the line.
+		 *
+		 * @return the tree
+		 * @throws ExpressionParseException
+		 *             if the line could not be parsed
+		 */
+		public Expression get() throws ExpressionParseException {
+			if (_exception != null) {
+				throw _exception;
+			}
+			return _expression;
+		}
+	}
+}
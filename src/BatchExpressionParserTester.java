@@ -0,0 +1,81 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Tests that BatchExpressionParser returns the same results, in order, as parsing each line alone.
+ */
+public class BatchExpressionParserTester {
+	private final ExpressionParser _reference = new LinearExpressionParser();
+
+	/**
+	 * Returns numbered lines, every seventh of which cannot be parsed.
+	 */
+	private static List<String> lines (int count) {
+		final List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			lines.add(i % 7 == 3 ? i + "*(x+" : i + "*(x+" + (i % 5) + ")+y");
+		}
+		return lines;
+	}
+
+	private void assertResults (List<String> lines, List<BatchExpressionParser.Result> results) {
+		assertEquals(lines.size(), results.size());
+		for (int i = 0; i < lines.size(); i++) {
+			final BatchExpressionParser.Result result = results.get(i);
+			assertEquals(i, result.getIndex());
+			try {
+				final Expression expected = _reference.parse(lines.get(i), false);
+				assertTrue(lines.get(i), result.isParsed());
+				assertEquals(expected.convertToString(0), result.getExpression().convertToString(0));
+			} catch (ExpressionParseException epe) {
+				assertFalse(lines.get(i), result.isParsed());
+				assertNotNull(result.getException());
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies parsing a stream with several batches in flight.
+	 */
+	public void testStream () {
+		final List<String> lines = lines(5000);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final BatchExpressionParser parser = new BatchExpressionParser(LinearExpressionParser::new, pool, 100);
+			assertResults(lines, parser.parse(lines.stream()));
+			assertTrue(parser.parse(Stream.empty()).isEmpty());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies parsing a memory-mapped file with \n and \r\n line ends.
+	 */
+	public void testFile () throws IOException {
+		final List<String> lines = lines(3000);
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < lines.size(); i++) {
+			text.append(lines.get(i)).append(i % 2 == 0 ? "\n" : "\r\n");
+		}
+		final Path file = Files.createTempFile("expressions", ".txt");
+		try {
+			Files.write(file, text.toString().getBytes(StandardCharsets.US_ASCII));
+			assertResults(lines, new BatchExpressionParser(LinearExpressionParser::new, ForkJoinPool.commonPool(), 64).parse(file));
+			// without a final line end
+			Files.write(file, "1+2\nx".getBytes(StandardCharsets.US_ASCII));
+			assertResults(Arrays.asList("1+2", "x"), new BatchExpressionParser().parse(file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * An ExpressionParser that remembers the trees of the strings it parsed most
+ * recently, so that parsing the same string again does not run the underlying
+ * parser.
+ *
+ * Strings are looked up with their spaces removed, so "1 + x" and "1+x" share an
+ * entry. Each tree is stored immutably in its own CompactExpressionStore. parse()
+ * hands every caller its own mutable deepCopy() of the stored tree, and
+ * parseShared() hands out the stored tree itself, which callers that do not
+ * modify it can use without copying.
+ *
+ * The cache is bounded either by its number of entries or by the total number of
+ * nodes of the stored trees; when it is full, the least recently used entries are
+ * evicted. Strings that cannot be parsed are not cached.
+ *
+ * This class is thread-safe if the underlying parser is. The underlying parser is
+ * called outside of the cache's lock, so concurrent misses on the same string may
+ * both parse it.
+ *
+ */
+public class CachingExpressionParser implements ExpressionParser {
+	// instance variables
+	private final ExpressionParser _parser;
+	private final long _capacity;
+	private final boolean _weighByNodes;
+	private final LinkedHashMap<String, Entry> _entries =
+	        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long _weight;
+
+	// statistics
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+
+	/**
+	 * Constructs a cache bounded by its number of entries.
+	 *
+	 * @param parser
+	 *            the parser used on a cache miss
+	 * @param maximumEntries
+	 *            the maximum number of cached strings
+	 */
+	public CachingExpressionParser(ExpressionParser parser, int maximumEntries) {
+		this(parser, maximumEntries, false);
+	}
+
+	/**
+	 * Constructs a cache
+	 *
+	 * @param parser
+	 *            the parser used on a cache miss
+	 * @param capacity
+	 *            the maximum number of cached strings, or of nodes in the cached
+	 *            trees
+	 * @param weighByNodes
+	 *            whether the capacity counts the nodes of the cached trees rather
+	 *            than the cached strings
+	 */
+	public CachingExpressionParser(ExpressionParser parser, long capacity, boolean weighByNodes) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative capacity " + capacity);
+		}
+		_parser = parser;
+		_capacity = capacity;
+		_weighByNodes = weighByNodes;
+	}
+
+	/**
+	 * Returns a mutable copy of the cached tree of the string, parsing it on a
+	 * cache miss. Throws a ExpressionParseException if the specified string cannot
+	 * be parsed.
+	 *
+	 * @param str
+	 *            the string to parse into an expression tree
+	 *
+	 * @param withJavaFXControls
+	 *            ignored, as in SimpleExpressionParser; call setNode() on the
+	 *            result to create the JavaFX controls
+	 *
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		return parseShared(str).deepCopy();
+	}
+
+	/**
+	 * Returns the cached tree of the string itself, parsing it on a cache miss. The
+	 * tree is immutable and shared by every caller; use deepCopy() to edit it.
+	 *
+	 * @param str
+	 *            the string to parse into an expression tree
+	 * @return the immutable, flattened expression tree
+	 * @throws ExpressionParseException
+	 *             if the string cannot be parsed
+	 */
+	public Expression parseShared(String str) throws ExpressionParseException {
+		final String key = SimpleExpressionParser.removeSpaces(str);
+		synchronized (_entries) {
+			final Entry cached = _entries.get(key);
+			if (cached != null) {
+				_hits.incrementAndGet();
+				return cached._root;
+			}
+		}
+		_misses.incrementAndGet();
+		final CompactExpressionStore store = new CompactExpressionStore();
+		store.add(_parser.parse(key, false));
+		store.trimToSize();
+		final Entry entry = new Entry(store.get(0), _weighByNodes ? store.getNodeCount() : 1);
+		synchronized (_entries) {
+			final Entry previous = _entries.put(key, entry);
+			if (previous != null) {
+				_weight -= previous._weight; // parsed concurrently by another caller
+			}
+			_weight += entry._weight;
+			evict();
+		}
+		return entry._root;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache is within its
+	 * capacity. Must hold the lock.
+	 */
+	private void evict() {
+		final Iterator<Entry> iterator = _entries.values().iterator();
+		while (_weight > _capacity && iterator.hasNext()) {
+			_weight -= iterator.next()._weight;
+			iterator.remove();
+			_evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes every entry; the statistics are kept.
+	 */
+	public void clear() {
+		synchronized (_entries) {
+			_entries.clear();
+			_weight = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of cached strings.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		synchronized (_entries) {
+			return _entries.size();
+		}
+	}
+
+	/**
+	 * Returns the total weight of the entries, which is the number of entries or the
+	 * number of nodes of the cached trees.
+	 *
+	 * @return the weight of the cache
+	 */
+	public long getWeight() {
+		synchronized (_entries) {
+			return _weight;
+		}
+	}
+
+	/**
+	 * Returns the number of parses that were answered from the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return _hits.get();
+	}
+
+	/**
+	 * Returns the number of parses that had to run the underlying parser, including
+	 * those of strings that could not be parsed.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMissCount() {
+		return _misses.get();
+	}
+
+	/**
+	 * Returns the number of entries evicted to stay within the capacity.
+	 *
+	 * @return the number of evictions
+	 */
+	public long getEvictionCount() {
+		return _evictions.get();
+	}
+
+	/**
+	 * A cached tree, and its weight
+	 */
+	private static class Entry {
+		final Expression _root;
+		final long _weight;
+
+		Entry(Expression root, long weight) {
+			_root = root;
+			_weight = weight;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the LRU parse cache of CachingExpressionParser.
+ */
+public class CachingExpressionParserTester {
+	private final ExpressionParser _reference = new SimpleExpressionParser(true);
+
+	@Test
+	/**
+	 * Verifies that cached trees equal freshly parsed ones, and that strings differing only in spaces share an entry.
+	 */
+	public void testHitsAndMisses () throws ExpressionParseException {
+		final CachingExpressionParser parser = new CachingExpressionParser(new LinearExpressionParser(), 10);
+		final String expected = _reference.parse("2*x+3*(y+4)", false).convertToString(0);
+		assertEquals(expected, parser.parse("2*x+3*(y+4)", false).convertToString(0));
+		assertEquals(expected, parser.parse(" 2 * x + 3 * ( y + 4 ) ", false).convertToString(0));
+		assertEquals(1, parser.getMissCount());
+		assertEquals(1, parser.getHitCount());
+		assertEquals(1, parser.size());
+		try {
+			parser.parse("2*", false);
+			fail("Expected ExpressionParseException");
+		} catch (ExpressionParseException epe) {
+			// expected
+		}
+		assertEquals(1, parser.size());
+	}
+
+	@Test
+	/**
+	 * Verifies that callers of parse get independent mutable copies of the shared tree.
+	 */
+	public void testCopies () throws ExpressionParseException {
+		final CachingExpressionParser parser = new CachingExpressionParser(new LinearExpressionParser(), 10);
+		final Expression first = parser.parse("x+y", false);
+		((AbstractCompoundExpression) first).addSubexpression(new LiteralExpression("z"));
+		assertEquals(_reference.parse("x+y", false).convertToString(0), parser.parse("x+y", false).convertToString(0));
+		assertSame(parser.parseShared("x+y"), parser.parseShared("x + y"));
+	}
+
+	@Test
+	/**
+	 * Verifies least-recently-used eviction by entry count and by node count.
+	 */
+	public void testEviction () throws ExpressionParseException {
+		final CachingExpressionParser byEntries = new CachingExpressionParser(new LinearExpressionParser(), 2);
+		byEntries.parse("1", false);
+		byEntries.parse("2", false);
+		byEntries.parse("1", false); // 2 is now least recently used
+		byEntries.parse("3", false);
+		assertEquals(1, byEntries.getEvictionCount());
+		final long misses = byEntries.getMissCount();
+		byEntries.parse("1", false);
+		assertEquals(misses, byEntries.getMissCount());
+		byEntries.parse("2", false);
+		assertEquals(misses + 1, byEntries.getMissCount());
+
+		final CachingExpressionParser byNodes = new CachingExpressionParser(new LinearExpressionParser(), 6, true);
+		byNodes.parse("x+y", false); // 3 nodes
+		byNodes.parse("x*y", false); // 3 nodes
+		assertEquals(6, byNodes.getWeight());
+		byNodes.parse("z", false);
+		assertEquals(2, byNodes.size());
+		assertEquals(4, byNodes.getWeight());
+		assertEquals(1, byNodes.getEvictionCount());
+	}
+}
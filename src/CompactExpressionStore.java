@@ -0,0 +1,326 @@
+import javafx.scene.Node;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ *
+ * A compact, append-only store of many flattened expression trees. Instead of one
+ * object (plus a parent pointer, a child list, an operation String and a JavaFX
+ * node) per expression, each node is a slot in parallel int arrays holding its
+ * kind, the slot of its first child, its number of children and the index of its
+ * value in a literal pool that is shared by all trees in the store. The children
+ * of a node occupy consecutive slots.
+ *
+ * Stored trees are read through immutable Expression views. The store is not
+ * thread-safe while expressions are being added.
+ *
+ */
+public class CompactExpressionStore {
+
+    // node kinds
+    private static final int LITERAL = 0, ADDITIVE = 1, MULTIPLICATIVE = 2, PARENTHETICAL = 3;
+
+    // instance variables
+    private int[] _kinds = new int[16];
+    private int[] _firstChildren = new int[16];
+    private int[] _childCounts = new int[16];
+    private int[] _literalIndices = new int[16];
+    private int _nodeCount;
+
+    private int[] _roots = new int[16];
+    private int _expressionCount;
+
+    private final List<LiteralExpression> _literals = new ArrayList<LiteralExpression>();
+    private final Map<String, Integer> _literalIndex = new HashMap<String, Integer>();
+
+    /**
+     * Adds a copy of the specified (flattened) expression tree to the store.
+     *
+     * @param expression
+     *            the expression to add, e.g. as returned by ExpressionParser.parse
+     * @return the id of the stored expression
+     */
+    public int add(Expression expression) {
+        final int root = reserve(1);
+        // Assign slots in level order, so that siblings are consecutive; the i-th
+        // expression taken from the queue is in slot root + i.
+        final ArrayDeque<Expression> queue = new ArrayDeque<Expression>();
+        queue.add(expression);
+        for (int slot = root; !queue.isEmpty(); slot++) {
+            final Expression e = queue.poll();
+            if (e instanceof LiteralExpression) {
+                _kinds[slot] = LITERAL;
+                _literalIndices[slot] = intern(((LiteralExpression) e).getValue());
+                _childCounts[slot] = 0;
+                continue;
+            }
+            if (e instanceof SimpleCompoundExpression) {
+                _kinds[slot] = "+".equals(((SimpleCompoundExpression) e).getOperation()) ? ADDITIVE : MULTIPLICATIVE;
+            } else if (e instanceof ParentheticalExpression) {
+                _kinds[slot] = PARENTHETICAL;
+            } else {
+                throw new IllegalArgumentException("Cannot store " + e.getClass().getName());
+            }
+            final List<Expression> children = ((AbstractCompoundExpression) e).getChildren();
+            final int firstChild = reserve(children.size()); // may replace the arrays
+            _literalIndices[slot] = -1;
+            _childCounts[slot] = children.size();
+            _firstChildren[slot] = firstChild;
+            queue.addAll(children);
+        }
+        if (_expressionCount == _roots.length) {
+            _roots = Arrays.copyOf(_roots, _roots.length * 2);
+        }
+        _roots[_expressionCount] = root;
+        return _expressionCount++;
+    }
+
+    /**
+     * Returns a read-only view of a stored expression.
+     *
+     * @param id
+     *            the id returned by add
+     * @return the stored expression
+     */
+    public Expression get(int id) {
+        if (id < 0 || id >= _expressionCount) {
+            throw new IndexOutOfBoundsException("No expression " + id);
+        }
+        return view(_roots[id], null);
+    }
+
+    /**
+     * Returns the number of expressions in the store.
+     *
+     * @return the number of expressions
+     */
+    public int getExpressionCount() {
+        return _expressionCount;
+    }
+
+    /**
+     * Returns the total number of nodes of all expressions in the store.
+     *
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return _nodeCount;
+    }
+
+    /**
+     * Returns the number of distinct literal values in the store.
+     *
+     * @return the size of the literal pool
+     */
+    public int getLiteralCount() {
+        return _literals.size();
+    }
+
+    /**
+     * Shrinks the arrays to the number of nodes and expressions actually stored.
+     */
+    public void trimToSize() {
+        _kinds = Arrays.copyOf(_kinds, _nodeCount);
+        _firstChildren = Arrays.copyOf(_firstChildren, _nodeCount);
+        _childCounts = Arrays.copyOf(_childCounts, _nodeCount);
+        _literalIndices = Arrays.copyOf(_literalIndices, _nodeCount);
+        _roots = Arrays.copyOf(_roots, _expressionCount);
+    }
+
+    /**
+     * Reserves consecutive node slots, growing the arrays if necessary.
+     *
+     * @return the first reserved slot
+     */
+    private int reserve(int count) {
+        final int first = _nodeCount;
+        if (first + count > _kinds.length) {
+            final int capacity = Math.max(_kinds.length * 2, first + count);
+            _kinds = Arrays.copyOf(_kinds, capacity);
+            _firstChildren = Arrays.copyOf(_firstChildren, capacity);
+            _childCounts = Arrays.copyOf(_childCounts, capacity);
+            _literalIndices = Arrays.copyOf(_literalIndices, capacity);
+        }
+        _nodeCount += count;
+        return first;
+    }
+
+    /**
+     * Returns the index of the value in the literal pool, adding it if necessary.
+     */
+    private int intern(String value) {
+        final Integer index = _literalIndex.get(value);
+        if (index != null) {
+            return index;
+        }
+        _literals.add(new LiteralExpression(value));
+        _literalIndex.put(value, _literals.size() - 1);
+        return _literals.size() - 1;
+    }
+
+    private Expression view(int slot, CompoundExpression parent) {
+        return _kinds[slot] == LITERAL ? new LiteralView(slot, parent) : new CompoundView(slot, parent);
+    }
+
+    /**
+     * Appends the subtree rooted at the slot, in the format of convertToString.
+     */
+    private void convertToString(int slot, Appendable out, int indentLevel) throws IOException {
+        Expression.indent(out, indentLevel);
+        out.append(label(slot)).append('\n');
+        for (int i = 0; i < _childCounts[slot]; i++) {
+            convertToString(_firstChildren[slot] + i, out, indentLevel + 1);
+        }
+    }
+
+    private String label(int slot) {
+        switch (_kinds[slot]) {
+        case LITERAL:
+            return _literals.get(_literalIndices[slot]).getValue();
+        case ADDITIVE:
+            return "+";
+        case MULTIPLICATIVE:
+            return "*";
+        default:
+            return "()";
+        }
+    }
+
+    /**
+     * Evaluates the subtree rooted at the slot.
+     */
+    private long evaluate(int slot, long[] variables) {
+        switch (_kinds[slot]) {
+        case LITERAL:
+            return _literals.get(_literalIndices[slot]).evaluate(variables);
+        case PARENTHETICAL:
+            return evaluate(_firstChildren[slot], variables);
+        default:
+            final boolean additive = _kinds[slot] == ADDITIVE;
+            long result = additive ? 0 : 1;
+            for (int i = 0; i < _childCounts[slot]; i++) {
+                final long value = evaluate(_firstChildren[slot] + i, variables);
+                result = additive ? result + value : result * value;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Creates an ordinary, mutable copy of the subtree rooted at the slot.
+     */
+    private Expression deepCopy(int slot) {
+        final AbstractCompoundExpression copy;
+        switch (_kinds[slot]) {
+        case LITERAL:
+            return new LiteralExpression(_literals.get(_literalIndices[slot]).getValue());
+        case PARENTHETICAL:
+            copy = new ParentheticalExpression();
+            break;
+        default:
+            copy = new SimpleCompoundExpression(label(slot));
+        }
+        for (int i = 0; i < _childCounts[slot]; i++) {
+            copy.addSubexpression(deepCopy(_firstChildren[slot] + i));
+        }
+        return copy;
+    }
+
+    /**
+     * Common code of the read-only views of stored nodes
+     */
+    private abstract class View implements Expression {
+        final int _slot;
+        private final CompoundExpression _parent;
+
+        View(int slot, CompoundExpression parent) {
+            _slot = slot;
+            _parent = parent;
+        }
+
+        public CompoundExpression getParent() {
+            return _parent;
+        }
+
+        public void setParent(CompoundExpression parent) {
+            throw new UnsupportedOperationException("Stored expressions are immutable");
+        }
+
+        /**
+         * Returns an ordinary, mutable copy of this expression.
+         */
+        public Expression deepCopy() {
+            return CompactExpressionStore.this.deepCopy(_slot);
+        }
+
+        /**
+         * Stored expressions have no JavaFX controls.
+         */
+        public Node getNode() {
+            return null;
+        }
+
+        public void setNode() {
+            throw new UnsupportedOperationException("Stored expressions have no JavaFX controls; use deepCopy()");
+        }
+
+        /**
+         * Does nothing, since stored expressions are already flattened.
+         */
+        public void flatten() {
+        }
+
+        public void convertToString(Appendable out, int indentLevel) throws IOException {
+            CompactExpressionStore.this.convertToString(_slot, out, indentLevel);
+        }
+
+        public long evaluate(long[] variables) {
+            return CompactExpressionStore.this.evaluate(_slot, variables);
+        }
+    }
+
+    /**
+     * A read-only view of a stored literal
+     */
+    private class LiteralView extends View {
+        LiteralView(int slot, CompoundExpression parent) {
+            super(slot, parent);
+        }
+
+        public String getValue() {
+            return _literals.get(_literalIndices[_slot]).getValue();
+        }
+    }
+
+    /**
+     * A read-only view of a stored additive, multiplicative or parenthetical expression
+     */
+    private class CompoundView extends View implements CompoundExpression {
+        CompoundView(int slot, CompoundExpression parent) {
+            super(slot, parent);
+        }
+
+        public void addSubexpression(Expression subexpression) {
+            throw new UnsupportedOperationException("Stored expressions are immutable");
+        }
+
+        /**
+         * Returns a read-only list of views of the children.
+         */
+        public List<Expression> getChildren() {
+            return new AbstractList<Expression>() {
+                public Expression get(int index) {
+                    if (index < 0 || index >= size()) {
+                        throw new IndexOutOfBoundsException("No child " + index);
+                    }
+                    return view(_firstChildren[_slot] + index, CompoundView.this);
+                }
+
+                public int size() {
+                    return _childCounts[_slot];
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests that expressions read back from a CompactExpressionStore match the parsed trees.
+ */
+public class CompactExpressionStoreTester {
+	private ExpressionParser _parser;
+	private CompactExpressionStore _store;
+
+	@Before
+	/**
+	 * Instantiates the parser and an empty store
+	 */
+	public void setUp () {
+		_parser = new LinearExpressionParser();
+		_store = new CompactExpressionStore();
+	}
+
+	@Test
+	/**
+	 * Verifies that stored expressions print, copy and navigate like the parsed trees.
+	 */
+	public void testRoundTrip () throws ExpressionParseException {
+		final String[] expressionStrs = { "x", "2*x+3*y+4*z+(7+6*z)", "(x+(x)+(x+x)+x)", "4*(z+5*x)", "((1))" };
+		final List<Integer> ids = new ArrayList<Integer>();
+		for (String expressionStr : expressionStrs) {
+			ids.add(_store.add(_parser.parse(expressionStr, false)));
+		}
+		_store.trimToSize();
+		for (int i = 0; i < expressionStrs.length; i++) {
+			final String parseTreeStr = _parser.parse(expressionStrs[i], false).convertToString(0);
+			final Expression stored = _store.get(ids.get(i));
+			assertEquals(parseTreeStr, stored.convertToString(0));
+			assertEquals(parseTreeStr, stored.deepCopy().convertToString(0));
+			assertNull(stored.getParent());
+		}
+		assertEquals(5, _store.getExpressionCount());
+		assertEquals(10, _store.getLiteralCount()); // x 2 3 y 4 z 7 6 5 1
+	}
+
+	@Test
+	/**
+	 * Verifies that the children of stored compound expressions point back to their parent.
+	 */
+	public void testChildren () throws ExpressionParseException {
+		final Expression stored = _store.get(_store.add(_parser.parse("1+2*3+(4)", false)));
+		final List<Expression> children = ((CompoundExpression) stored).getChildren();
+		assertEquals(3, children.size());
+		for (Expression child : children) {
+			assertSame(stored, child.getParent());
+		}
+		assertEquals("*\n\t2\n\t3\n", children.get(1).convertToString(0));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	/**
+	 * Verifies that stored expressions cannot be modified.
+	 */
+	public void testImmutable () throws ExpressionParseException {
+		final Expression stored = _store.get(_store.add(_parser.parse("1+2", false)));
+		((CompoundExpression) stored).addSubexpression(new LiteralExpression("3"));
+	}
+}
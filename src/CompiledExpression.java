@@ -0,0 +1,254 @@
+import java.util.*;
+
+/**
+ *
+ * An expression compiled into a flat postfix program, for evaluating the same
+ * expression over many bindings of its variables.
+ *
+ * The program is a sequence of (opcode, operand) pairs over a stack of longs:
+ * literals push their value, and a sum or product of n children pops n values and
+ * pushes their sum or product. Parentheses compile to nothing. Evaluation is a
+ * single loop over the program with no allocation and no virtual calls per node.
+ *
+ * Besides evaluate(long[]), which evaluates one binding of a through z, there is
+ * a batch evaluate over columnar input, which runs the program over blocks of
+ * rows at a time.
+ *
+ * A CompiledExpression keeps its evaluation stacks between calls, so it must not
+ * be used by several threads at once; use copy() to get an instance per thread.
+ *
+ */
+public class CompiledExpression {
+
+    // opcodes
+    private static final int PUSH_CONSTANT = 0, PUSH_VARIABLE = 1, ADD = 2, MULTIPLY = 3;
+
+    /**
+     * The number of rows evaluated at once by the batch evaluation
+     */
+    private static final int BLOCK_SIZE = 256;
+
+    // instance variables
+    private final int[] _code;
+    private final long[] _constants;
+    private final int _maxStackDepth;
+    private final boolean[] _usesVariable;
+    private final long[] _stack;
+    private long[][] _blocks;
+
+    private CompiledExpression(int[] code, long[] constants, int maxStackDepth, boolean[] usesVariable) {
+        _code = code;
+        _constants = constants;
+        _maxStackDepth = maxStackDepth;
+        _usesVariable = usesVariable;
+        _stack = new long[maxStackDepth];
+    }
+
+    /**
+     * Compiles the expression. Any Expression can be compiled; ones that are not
+     * ordinary LiteralExpression, SimpleCompoundExpression or ParentheticalExpression
+     * trees are compiled from their deepCopy().
+     *
+     * @param expression
+     *            the expression to compile
+     * @return the compiled expression
+     */
+    public static CompiledExpression compile(Expression expression) {
+        final Compiler compiler = new Compiler();
+        compiler.emit(expression, 0);
+        return new CompiledExpression(Arrays.copyOf(compiler._code, compiler._codeLength),
+                Arrays.copyOf(compiler._constants, compiler._constantCount), compiler._maxStackDepth,
+                compiler._usesVariable);
+    }
+
+    /**
+     * Returns an instance that shares the program but has its own evaluation stacks,
+     * e.g. for use by another thread.
+     *
+     * @return the copy
+     */
+    public CompiledExpression copy() {
+        return new CompiledExpression(_code, _constants, _maxStackDepth, _usesVariable);
+    }
+
+    /**
+     * Returns whether the expression uses the variable.
+     *
+     * @param variable
+     *            the index of the variable, from 0 for a to 25 for z
+     * @return whether the expression uses the variable
+     */
+    public boolean usesVariable(int variable) {
+        return _usesVariable[variable];
+    }
+
+    /**
+     * Evaluates the expression with the specified values of the variables, as
+     * Expression.evaluate does.
+     *
+     * @param variables
+     *            the values of the variables a through z, indexed from 0
+     * @return the value of the expression
+     */
+    public long evaluate(long[] variables) {
+        final int[] code = _code;
+        final long[] stack = _stack;
+        int top = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            final int operand = code[pc + 1];
+            switch (code[pc]) {
+            case PUSH_CONSTANT:
+                stack[top++] = _constants[operand];
+                break;
+            case PUSH_VARIABLE:
+                stack[top++] = variables[operand];
+                break;
+            case ADD: {
+                top -= operand;
+                long sum = stack[top];
+                for (int i = top + 1; i < top + operand; i++) {
+                    sum += stack[i];
+                }
+                stack[top++] = sum;
+                break;
+            }
+            default: {
+                top -= operand;
+                long product = stack[top];
+                for (int i = top + 1; i < top + operand; i++) {
+                    product *= stack[i];
+                }
+                stack[top++] = product;
+            }
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates the expression for every row of columnar input: the value of
+     * variable v in row r is columns[v][r]. Columns of variables that the expression
+     * does not use may be null.
+     *
+     * @param columns
+     *            the columns of values of the variables a through z, indexed from 0
+     * @param results
+     *            receives the value of the expression for each row; its length is
+     *            the number of rows
+     */
+    public void evaluate(long[][] columns, long[] results) {
+        for (int v = 0; v < _usesVariable.length; v++) {
+            if (_usesVariable[v] && (columns[v] == null || columns[v].length < results.length)) {
+                throw new IllegalArgumentException("Column " + (char) ('a' + v) + " has fewer than "
+                        + results.length + " rows");
+            }
+        }
+        if (_blocks == null) {
+            _blocks = new long[_maxStackDepth][BLOCK_SIZE];
+        }
+        for (int start = 0; start < results.length; start += BLOCK_SIZE) {
+            evaluateBlock(columns, start, Math.min(BLOCK_SIZE, results.length - start));
+            System.arraycopy(_blocks[0], 0, results, start, Math.min(BLOCK_SIZE, results.length - start));
+        }
+    }
+
+    /**
+     * Runs the program once over the rows [start, start + rows), with a block of
+     * values per stack entry.
+     */
+    private void evaluateBlock(long[][] columns, int start, int rows) {
+        final int[] code = _code;
+        final long[][] blocks = _blocks;
+        int top = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            final int operand = code[pc + 1];
+            switch (code[pc]) {
+            case PUSH_CONSTANT:
+                Arrays.fill(blocks[top++], 0, rows, _constants[operand]);
+                break;
+            case PUSH_VARIABLE:
+                System.arraycopy(columns[operand], start, blocks[top++], 0, rows);
+                break;
+            case ADD: {
+                top -= operand;
+                final long[] sum = blocks[top];
+                for (int i = top + 1; i < top + operand; i++) {
+                    final long[] block = blocks[i];
+                    for (int r = 0; r < rows; r++) {
+                        sum[r] += block[r];
+                    }
+                }
+                top++;
+                break;
+            }
+            default: {
+                top -= operand;
+                final long[] product = blocks[top];
+                for (int i = top + 1; i < top + operand; i++) {
+                    final long[] block = blocks[i];
+                    for (int r = 0; r < rows; r++) {
+                        product[r] *= block[r];
+                    }
+                }
+                top++;
+            }
+            }
+        }
+    }
+
+    /**
+     * Translates a tree into the postfix program.
+     */
+    private static class Compiler {
+        int[] _code = new int[16];
+        int _codeLength;
+        long[] _constants = new long[4];
+        int _constantCount;
+        int _maxStackDepth;
+        final boolean[] _usesVariable = new boolean[26];
+
+        /**
+         * Emits the code of the expression, which is evaluated with depth values
+         * already on the stack.
+         */
+        void emit(Expression expression, int depth) {
+            if (expression instanceof LiteralExpression) {
+                final LiteralExpression literal = (LiteralExpression) expression;
+                if (literal.isVariable()) {
+                    _usesVariable[literal.getVariable()] = true;
+                    add(PUSH_VARIABLE, literal.getVariable());
+                } else if (literal.isNumber()) {
+                    if (_constantCount == _constants.length) {
+                        _constants = Arrays.copyOf(_constants, _constantCount * 2);
+                    }
+                    _constants[_constantCount] = literal.getNumber();
+                    add(PUSH_CONSTANT, _constantCount++);
+                } else {
+                    throw new ArithmeticException("Literal " + literal.getValue() + " has no numeric value");
+                }
+                _maxStackDepth = Math.max(_maxStackDepth, depth + 1);
+            } else if (expression instanceof ParentheticalExpression) {
+                emit(((ParentheticalExpression) expression).getChildren().get(0), depth);
+            } else if (expression instanceof SimpleCompoundExpression) {
+                final SimpleCompoundExpression compound = (SimpleCompoundExpression) expression;
+                final List<Expression> children = compound.getChildren();
+                for (int i = 0; i < children.size(); i++) {
+                    emit(children.get(i), depth + i);
+                }
+                if (children.size() > 1) {
+                    add("+".equals(compound.getOperation()) ? ADD : MULTIPLY, children.size());
+                }
+            } else {
+                emit(expression.deepCopy(), depth);
+            }
+        }
+
+        private void add(int opcode, int operand) {
+            if (_codeLength == _code.length) {
+                _code = Arrays.copyOf(_code, _codeLength * 2);
+            }
+            _code[_codeLength++] = opcode;
+            _code[_codeLength++] = operand;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests evaluation of expression trees and of compiled expressions.
+ */
+public class CompiledExpressionTester {
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	@Test
+	/**
+	 * Verifies that trees evaluate sums, products and parentheses.
+	 */
+	public void testEvaluate () throws ExpressionParseException {
+		final long[] variables = new long[26];
+		variables['x' - 'a'] = 5;
+		variables['y' - 'a'] = -2;
+		assertEquals(2 * 5 + 3 * -2 + 4 * (7 + 6 * 5), _parser.parse("2*x+3*y+4*(7+6*x)", false).evaluate(variables));
+		assertEquals(10, _parser.parse("(((10)))", false).evaluate(variables));
+	}
+
+	@Test
+	/**
+	 * Verifies that compiled expressions agree with the trees they were compiled from.
+	 */
+	public void testCompiledMatchesTree () throws ExpressionParseException {
+		final Random random = new Random(9);
+		final String[] texts = { "x", "42", "(y)", "2*x+3*y+4*(7+6*x)", "a*b*c+d*(e+f*(g+h))+12", "(x+1)*(x+2)*(x+3)" };
+		for (String text : texts) {
+			final Expression expression = _parser.parse(text, false);
+			final CompiledExpression compiled = CompiledExpression.compile(expression);
+			for (int run = 0; run < 100; run++) {
+				final long[] variables = new long[26];
+				for (int v = 0; v < variables.length; v++) {
+					variables[v] = random.nextInt(2001) - 1000;
+				}
+				assertEquals(text, expression.evaluate(variables), compiled.evaluate(variables));
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the columnar batch evaluation over more rows than fit in one block.
+	 */
+	public void testBatchEvaluate () throws ExpressionParseException {
+		final Expression expression = _parser.parse("x*(y+3)+2*x", false);
+		final CompiledExpression compiled = CompiledExpression.compile(expression);
+		assertTrue(compiled.usesVariable('x' - 'a'));
+		assertFalse(compiled.usesVariable('z' - 'a'));
+		final int rows = 1000;
+		final long[][] columns = new long[26][];
+		columns['x' - 'a'] = new long[rows];
+		columns['y' - 'a'] = new long[rows];
+		for (int r = 0; r < rows; r++) {
+			columns['x' - 'a'][r] = r;
+			columns['y' - 'a'][r] = rows - r;
+		}
+		final long[] results = new long[rows];
+		compiled.evaluate(columns, results);
+		for (int r = 0; r < rows; r++) {
+			assertEquals((long) r * (rows - r + 3) + 2 * r, results[r]);
+		}
+	}
+}
@@ -1,4 +1,12 @@
+import java.util.List;
+
 interface CompoundExpression extends Expression {
+	/**
+	 * Returns the expression's list of children.
+	 * @return the expression's list of children
+	 */
+	List<Expression> getChildren ();
+
 	/**
 	 * Adds the specified expression as a child.
 	 * @param subexpression the child expression to add
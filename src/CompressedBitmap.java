@@ -0,0 +1,401 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ *
+ * A compressed set of non-negative ints, in the layout of Roaring bitmaps: the
+ * ints are split by their high 16 bits into chunks, and each chunk is stored as a
+ * sorted array of its low 16 bits while it holds at most ARRAY_MAX_SIZE of them,
+ * and as a bitmap of 65536 bits otherwise. Sparse sets thus take two bytes per
+ * int, dense ones one bit per int, and intersections run chunk by chunk with a
+ * merge, a lookup or a word-wise AND depending on the kinds of the two chunks.
+ *
+ * Bitmaps are not thread-safe.
+ *
+ */
+public class CompressedBitmap {
+	// the largest number of ints in an array chunk; beyond it a bitmap chunk is smaller
+	static final int ARRAY_MAX_SIZE = 4096;
+	private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+
+	// instance variables: the chunks, sorted by key; each one is either an array or a bitmap
+	private char[] _keys = new char[4];
+	private char[][] _arrays = new char[4][];
+	private long[][] _bitmaps = new long[4][];
+	private int[] _cardinalities = new int[4];
+	private int _size;
+
+	/**
+	 * Adds an int to the set.
+	 * @param value the int, which must not be negative
+	 * @return whether it was not in the set yet
+	 */
+	public boolean add(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value " + value);
+		}
+		final char key = (char) (value >>> 16), low = (char) value;
+		int chunk = find(key);
+		if (chunk < 0) {
+			chunk = -chunk - 1;
+			insertChunk(chunk, key, new char[4], null, 0);
+		}
+		if (_bitmaps[chunk] != null) {
+			final long[] bitmap = _bitmaps[chunk];
+			final long bit = 1L << low;
+			if ((bitmap[low >>> 6] & bit) != 0) {
+				return false;
+			}
+			bitmap[low >>> 6] |= bit;
+			_cardinalities[chunk]++;
+			return true;
+		}
+		final char[] array = _arrays[chunk];
+		final int cardinality = _cardinalities[chunk];
+		int index = Arrays.binarySearch(array, 0, cardinality, low);
+		if (index >= 0) {
+			return false;
+		}
+		index = -index - 1;
+		if (cardinality == ARRAY_MAX_SIZE) {
+			final long[] bitmap = toBitmap(array, cardinality);
+			bitmap[low >>> 6] |= 1L << low;
+			_arrays[chunk] = null;
+			_bitmaps[chunk] = bitmap;
+		} else {
+			final char[] target = cardinality == array.length ? Arrays.copyOf(array, Math.min(2 * cardinality, ARRAY_MAX_SIZE)) : array;
+			System.arraycopy(array, index, target, index + 1, cardinality - index);
+			target[index] = low;
+			_arrays[chunk] = target;
+		}
+		_cardinalities[chunk]++;
+		return true;
+	}
+
+	/**
+	 * Removes an int from the set.
+	 * @param value the int
+	 * @return whether it was in the set
+	 */
+	public boolean remove(int value) {
+		if (value < 0) {
+			return false;
+		}
+		final char low = (char) value;
+		final int chunk = find((char) (value >>> 16));
+		if (chunk < 0) {
+			return false;
+		}
+		if (_bitmaps[chunk] != null) {
+			final long[] bitmap = _bitmaps[chunk];
+			final long bit = 1L << low;
+			if ((bitmap[low >>> 6] & bit) == 0) {
+				return false;
+			}
+			bitmap[low >>> 6] &= ~bit;
+			if (--_cardinalities[chunk] == ARRAY_MAX_SIZE) {
+				_arrays[chunk] = toArray(bitmap, ARRAY_MAX_SIZE);
+				_bitmaps[chunk] = null;
+			}
+			return true;
+		}
+		final char[] array = _arrays[chunk];
+		final int index = Arrays.binarySearch(array, 0, _cardinalities[chunk], low);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(array, index + 1, array, index, _cardinalities[chunk] - index - 1);
+		if (--_cardinalities[chunk] == 0) {
+			removeChunk(chunk);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether an int is in the set.
+	 * @param value the int
+	 * @return whether it is in the set
+	 */
+	public boolean contains(int value) {
+		if (value < 0) {
+			return false;
+		}
+		final char low = (char) value;
+		final int chunk = find((char) (value >>> 16));
+		if (chunk < 0) {
+			return false;
+		}
+		if (_bitmaps[chunk] != null) {
+			return (_bitmaps[chunk][low >>> 6] & (1L << low)) != 0;
+		}
+		return Arrays.binarySearch(_arrays[chunk], 0, _cardinalities[chunk], low) >= 0;
+	}
+
+	/**
+	 * Returns the number of ints in the set.
+	 * @return the cardinality
+	 */
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < _size; i++) {
+			cardinality += _cardinalities[i];
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Returns whether the set is empty.
+	 * @return whether it has no ints
+	 */
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * Passes the ints of the set to a consumer, in increasing order.
+	 * @param consumer receives the ints
+	 */
+	public void forEach(IntConsumer consumer) {
+		for (int i = 0; i < _size; i++) {
+			final int high = _keys[i] << 16;
+			if (_bitmaps[i] != null) {
+				final long[] bitmap = _bitmaps[i];
+				for (int word = 0; word < BITMAP_WORDS; word++) {
+					for (long bits = bitmap[word]; bits != 0; bits &= bits - 1) {
+						consumer.accept(high | word << 6 | Long.numberOfTrailingZeros(bits));
+					}
+				}
+			} else {
+				for (int j = 0; j < _cardinalities[i]; j++) {
+					consumer.accept(high | _arrays[i][j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the ints of the set in increasing order.
+	 * @return the ints
+	 */
+	public int[] toArray() {
+		final int[] values = new int[getCardinality()];
+		final int[] count = new int[1];
+		forEach(value -> values[count[0]++] = value);
+		return values;
+	}
+
+	/**
+	 * Returns the intersection of two sets, which are not changed.
+	 * @param a a set
+	 * @param b another set
+	 * @return a new set of the ints that are in both
+	 */
+	public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+		final CompressedBitmap result = new CompressedBitmap();
+		int i = 0, j = 0;
+		while (i < a._size && j < b._size) {
+			if (a._keys[i] < b._keys[j]) {
+				i++;
+			} else if (a._keys[i] > b._keys[j]) {
+				j++;
+			} else {
+				if (a._bitmaps[i] != null && b._bitmaps[j] != null) {
+					result.andBitmaps(a._keys[i], a._bitmaps[i], b._bitmaps[j]);
+				} else if (a._bitmaps[i] != null || b._bitmaps[j] != null) {
+					final boolean aIsArray = a._bitmaps[i] == null;
+					result.andArrayBitmap(a._keys[i], aIsArray ? a._arrays[i] : b._arrays[j], aIsArray ? a._cardinalities[i] : b._cardinalities[j],
+						aIsArray ? b._bitmaps[j] : a._bitmaps[i]);
+				} else {
+					result.andArrays(a._keys[i], a._arrays[i], a._cardinalities[i], b._arrays[j], b._cardinalities[j]);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	private void andArrays(char key, char[] a, int aSize, char[] b, int bSize) {
+		final char[] array = new char[Math.min(aSize, bSize)];
+		int n = 0;
+		for (int i = 0, j = 0; i < aSize && j < bSize;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				array[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		if (n > 0) {
+			insertChunk(_size, key, array, null, n);
+		}
+	}
+
+	private void andArrayBitmap(char key, char[] array, int size, long[] bitmap) {
+		final char[] result = new char[size];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if ((bitmap[array[i] >>> 6] & (1L << array[i])) != 0) {
+				result[n++] = array[i];
+			}
+		}
+		if (n > 0) {
+			insertChunk(_size, key, result, null, n);
+		}
+	}
+
+	private void andBitmaps(char key, long[] a, long[] b) {
+		final long[] bitmap = new long[BITMAP_WORDS];
+		int cardinality = 0;
+		for (int word = 0; word < BITMAP_WORDS; word++) {
+			bitmap[word] = a[word] & b[word];
+			cardinality += Long.bitCount(bitmap[word]);
+		}
+		if (cardinality > ARRAY_MAX_SIZE) {
+			insertChunk(_size, key, null, bitmap, cardinality);
+		} else if (cardinality > 0) {
+			insertChunk(_size, key, toArray(bitmap, cardinality), null, cardinality);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that write() takes for this set.
+	 * @return the size of the serialized set
+	 */
+	public int getSerializedSize() {
+		int size = 4;
+		for (int i = 0; i < _size; i++) {
+			size += 4 + (_bitmaps[i] != null ? 8 * BITMAP_WORDS : 2 * _cardinalities[i]);
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the set to a buffer: the number of chunks, then the key and the
+	 * cardinality minus one of each chunk as two chars, followed by its sorted
+	 * chars or its bitmap.
+	 * @param buffer the buffer, which must have getSerializedSize() bytes remaining
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.putInt(_size);
+		for (int i = 0; i < _size; i++) {
+			buffer.putChar(_keys[i]);
+			buffer.putChar((char) (_cardinalities[i] - 1));
+			if (_bitmaps[i] != null) {
+				for (long word : _bitmaps[i]) {
+					buffer.putLong(word);
+				}
+			} else {
+				for (int j = 0; j < _cardinalities[i]; j++) {
+					buffer.putChar(_arrays[i][j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a set written by write().
+	 * @param buffer the buffer, which is positioned after the set
+	 * @return the set
+	 * @throws IllegalArgumentException if the bytes are not a set
+	 */
+	public static CompressedBitmap read(ByteBuffer buffer) {
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		final int size = buffer.getInt();
+		if (size < 0 || size > 1 << 16) {
+			throw new IllegalArgumentException("Corrupt bitmap: " + size + " chunks");
+		}
+		for (int i = 0; i < size; i++) {
+			final char key = buffer.getChar();
+			final int cardinality = buffer.getChar() + 1;
+			if (i > 0 && key <= bitmap._keys[i - 1]) {
+				throw new IllegalArgumentException("Corrupt bitmap: unsorted chunks");
+			}
+			if (cardinality > ARRAY_MAX_SIZE) {
+				final long[] words = new long[BITMAP_WORDS];
+				buffer.asLongBuffer().get(words);
+				buffer.position(buffer.position() + 8 * BITMAP_WORDS);
+				bitmap.insertChunk(i, key, null, words, cardinality);
+			} else {
+				final char[] array = new char[cardinality];
+				buffer.asCharBuffer().get(array);
+				buffer.position(buffer.position() + 2 * cardinality);
+				bitmap.insertChunk(i, key, array, null, cardinality);
+			}
+		}
+		return bitmap;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof CompressedBitmap && Arrays.equals(toArray(), ((CompressedBitmap) other).toArray());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	/**
+	 * Returns the index of the chunk with the key, or -(insertion point) - 1.
+	 */
+	private int find(char key) {
+		return Arrays.binarySearch(_keys, 0, _size, key);
+	}
+
+	private void insertChunk(int index, char key, char[] array, long[] bitmap, int cardinality) {
+		if (_size == _keys.length) {
+			_keys = Arrays.copyOf(_keys, 2 * _size);
+			_arrays = Arrays.copyOf(_arrays, 2 * _size);
+			_bitmaps = Arrays.copyOf(_bitmaps, 2 * _size);
+			_cardinalities = Arrays.copyOf(_cardinalities, 2 * _size);
+		}
+		System.arraycopy(_keys, index, _keys, index + 1, _size - index);
+		System.arraycopy(_arrays, index, _arrays, index + 1, _size - index);
+		System.arraycopy(_bitmaps, index, _bitmaps, index + 1, _size - index);
+		System.arraycopy(_cardinalities, index, _cardinalities, index + 1, _size - index);
+		_keys[index] = key;
+		_arrays[index] = array;
+		_bitmaps[index] = bitmap;
+		_cardinalities[index] = cardinality;
+		_size++;
+	}
+
+	private void removeChunk(int index) {
+		System.arraycopy(_keys, index + 1, _keys, index, _size - index - 1);
+		System.arraycopy(_arrays, index + 1, _arrays, index, _size - index - 1);
+		System.arraycopy(_bitmaps, index + 1, _bitmaps, index, _size - index - 1);
+		System.arraycopy(_cardinalities, index + 1, _cardinalities, index, _size - index - 1);
+		_size--;
+		_arrays[_size] = null;
+		_bitmaps[_size] = null;
+	}
+
+	private static long[] toBitmap(char[] array, int size) {
+		final long[] bitmap = new long[BITMAP_WORDS];
+		for (int i = 0; i < size; i++) {
+			bitmap[array[i] >>> 6] |= 1L << array[i];
+		}
+		return bitmap;
+	}
+
+	private static char[] toArray(long[] bitmap, int cardinality) {
+		final char[] array = new char[cardinality];
+		int n = 0;
+		for (int word = 0; word < BITMAP_WORDS; word++) {
+			for (long bits = bitmap[word]; bits != 0; bits &= bits - 1) {
+				array[n++] = (char) (word << 6 | Long.numberOfTrailingZeros(bits));
+			}
+		}
+		return array;
+	}
+}
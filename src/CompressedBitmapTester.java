@@ -0,0 +1,106 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Tests CompressedBitmap against a TreeSet, across the change between array and bitmap chunks.
+ */
+public class CompressedBitmapTester {
+	private static int[] toArray (TreeSet<Integer> set) {
+		final int[] values = new int[set.size()];
+		int i = 0;
+		for (int value : set) {
+			values[i++] = value;
+		}
+		return values;
+	}
+
+	private static CompressedBitmap roundTrip (CompressedBitmap bitmap) {
+		final ByteBuffer buffer = ByteBuffer.allocate(bitmap.getSerializedSize());
+		bitmap.write(buffer);
+		assertFalse(buffer.hasRemaining());
+		buffer.flip();
+		final CompressedBitmap read = CompressedBitmap.read(buffer);
+		assertFalse(buffer.hasRemaining());
+		return read;
+	}
+
+	@Test
+	/**
+	 * Verifies random additions and removals, in ranges sparse and dense enough for both kinds of chunks.
+	 */
+	public void testAddAndRemove () {
+		final Random random = new Random(25);
+		for (int range : new int[] { 100, 10000, 200000, Integer.MAX_VALUE }) {
+			final CompressedBitmap bitmap = new CompressedBitmap();
+			final TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (int i = 0; i < 30000; i++) {
+				final int value = random.nextInt(range);
+				if (random.nextInt(3) == 0) {
+					assertEquals(expected.remove(value), bitmap.remove(value));
+				} else {
+					assertEquals(expected.add(value), bitmap.add(value));
+				}
+				if (i % 1000 == 0) {
+					final int probe = random.nextInt(range);
+					assertEquals(expected.contains(probe), bitmap.contains(probe));
+				}
+			}
+			assertEquals(expected.size(), bitmap.getCardinality());
+			assertArrayEquals(toArray(expected), bitmap.toArray());
+			assertArrayEquals(toArray(expected), roundTrip(bitmap).toArray());
+			for (int value : toArray(expected)) {
+				assertTrue(bitmap.remove(value));
+			}
+			assertTrue(bitmap.isEmpty());
+		}
+		assertFalse(new CompressedBitmap().contains(-1));
+	}
+
+	@Test
+	/**
+	 * Verifies that a dense chunk is stored as a bitmap, and turns back into an array.
+	 */
+	public void testChunkKinds () {
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		for (int i = 0; i < CompressedBitmap.ARRAY_MAX_SIZE; i++) {
+			bitmap.add(2 * i);
+		}
+		final int arraySize = bitmap.getSerializedSize();
+		assertEquals(4 + 4 + 2 * CompressedBitmap.ARRAY_MAX_SIZE, arraySize);
+		bitmap.add(1);
+		assertEquals(4 + 4 + 8192, bitmap.getSerializedSize());
+		assertEquals(CompressedBitmap.ARRAY_MAX_SIZE + 1, roundTrip(bitmap).getCardinality());
+		bitmap.remove(1);
+		assertEquals(arraySize, bitmap.getSerializedSize());
+	}
+
+	@Test
+	/**
+	 * Verifies intersections of every combination of chunk kinds.
+	 */
+	public void testAnd () {
+		final Random random = new Random(26);
+		for (int i = 0; i < 40; i++) {
+			final CompressedBitmap a = new CompressedBitmap(), b = new CompressedBitmap();
+			final TreeSet<Integer> expectedA = new TreeSet<Integer>(), expectedB = new TreeSet<Integer>();
+			final int countA = random.nextBoolean() ? 100 : 20000, countB = random.nextBoolean() ? 100 : 20000;
+			for (int j = 0; j < countA; j++) {
+				final int value = random.nextInt(150000);
+				a.add(value);
+				expectedA.add(value);
+			}
+			for (int j = 0; j < countB; j++) {
+				final int value = random.nextInt(150000);
+				b.add(value);
+				expectedB.add(value);
+			}
+			expectedA.retainAll(expectedB);
+			final CompressedBitmap and = CompressedBitmap.and(a, b);
+			assertArrayEquals(toArray(expectedA), and.toArray());
+			assertEquals(and, CompressedBitmap.and(b, a));
+			assertEquals(and, roundTrip(and));
+		}
+	}
+}
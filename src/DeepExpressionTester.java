@@ -0,0 +1,110 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests that the tree operations work on trees much deeper than the call stack allows for recursion.
+ */
+public class DeepExpressionTester {
+	/**
+	 * The stack size of the thread that runs the tests, which is far too small to recurse over the trees
+	 */
+	private static final long STACK_SIZE = 1 << 18;
+
+	/**
+	 * Returns (0+(1+(2+...(levels)...))), with a parenthetical and an additive expression per level.
+	 */
+	private static Expression nested (int levels) {
+		Expression expression = new LiteralExpression(String.valueOf(levels));
+		for (int i = levels - 1; i >= 0; i--) {
+			final SimpleCompoundExpression sum = new SimpleCompoundExpression("+");
+			sum.addSubexpression(new LiteralExpression(String.valueOf(i)));
+			sum.addSubexpression(expression);
+			final ParentheticalExpression parenthetical = new ParentheticalExpression();
+			parenthetical.addSubexpression(sum);
+			expression = parenthetical;
+		}
+		return expression;
+	}
+
+	/**
+	 * Returns 0+(1+(2+...)) without parentheses, which flattens into a single sum.
+	 */
+	private static Expression chain (int levels) {
+		Expression expression = new LiteralExpression(String.valueOf(levels));
+		for (int i = levels - 1; i >= 0; i--) {
+			final SimpleCompoundExpression sum = new SimpleCompoundExpression("+");
+			sum.addSubexpression(new LiteralExpression(String.valueOf(i)));
+			sum.addSubexpression(expression);
+			expression = sum;
+		}
+		return expression;
+	}
+
+	/**
+	 * Runs the test on a thread with a small stack.
+	 */
+	private static void runWithSmallStack (Runnable test) throws Throwable {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Thread thread = new Thread(null, () -> {
+			try {
+				test.run();
+			} catch (Throwable t) {
+				failure.set(t);
+			}
+		}, "deep-expression-test", STACK_SIZE);
+		thread.start();
+		thread.join();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies deepCopy and flatten of a deeply nested tree.
+	 */
+	public void testDeepCopyAndFlatten () throws Throwable {
+		runWithSmallStack(() -> {
+			final int levels = 20000;
+			final Expression copy = nested(levels).deepCopy();
+			copy.flatten();
+			Expression expression = copy;
+			for (int i = 0; i < levels; i++) {
+				assertTrue(expression instanceof ParentheticalExpression);
+				final CompoundExpression sum = (CompoundExpression) ((CompoundExpression) expression).getChildren().get(0);
+				assertEquals(2, sum.getChildren().size());
+				assertEquals(String.valueOf(i), ((LiteralExpression) sum.getChildren().get(0)).getValue());
+				assertSame(sum, sum.getChildren().get(1).getParent());
+				expression = sum.getChildren().get(1);
+			}
+			assertEquals(String.valueOf(levels), ((LiteralExpression) expression).getValue());
+
+			final Expression chain = chain(levels);
+			chain.flatten();
+			assertEquals(levels + 1, ((CompoundExpression) chain).getChildren().size());
+		});
+	}
+
+	@Test
+	/**
+	 * Verifies convertToString of a deeply nested tree.
+	 */
+	public void testConvertToString () throws Throwable {
+		runWithSmallStack(() -> {
+			final int levels = 3000;
+			final StringBuffer expected = new StringBuffer();
+			for (int i = 0; i < levels; i++) {
+				Expression.indent(expected, 2 * i);
+				expected.append("()\n");
+				Expression.indent(expected, 2 * i + 1);
+				expected.append("+\n");
+				Expression.indent(expected, 2 * i + 2);
+				expected.append(i).append('\n');
+			}
+			Expression.indent(expected, 2 * levels);
+			expected.append(levels).append('\n');
+			assertEquals(expected.toString(), nested(levels).convertToString(0));
+		});
+	}
+}
@@ -1,6 +1,10 @@
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.Node;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 
 interface Expression {
 	/**
@@ -41,6 +45,14 @@ interface Expression {
 	Expression deepCopy ();
 
 
+	/**
+	 * Evaluates the expression with the specified values of the variables. Arithmetic
+	 * is done on longs, and wraps around on overflow.
+	 * @param variables the values of the variables a through z, indexed from 0
+	 * @return the value of the expression
+	 */
+	long evaluate (long[] variables);
+
 	/**
 	 * Returns the JavaFX node associated with this expression.
 	 * @return the JavaFX node associated with this expression.
@@ -64,7 +76,38 @@ interface Expression {
 	 * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
 	 * @return a String representation of the expression tree.
 	 */	
-	String convertToString (int indentLevel);
+	default String convertToString (int indentLevel) {
+		final StringBuilder sb = new StringBuilder();
+		try {
+			convertToString(sb, indentLevel);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe); // StringBuilder never throws
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the same representation as convertToString(int) to the specified Appendable,
+	 * so that the whole tree is rendered into one buffer instead of each node concatenating
+	 * the strings of its children.
+	 * @param out the Appendable to which to append the representation
+	 * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+	 * @throws IOException if out throws it
+	 */
+	void convertToString (Appendable out, int indentLevel) throws IOException;
+
+	/**
+	 * Streams the same representation as convertToString(int) to the specified Writer, without
+	 * building it in memory first. The Writer is flushed but not closed.
+	 * @param writer the Writer to which to write the representation
+	 * @param indentLevel the indentation level (number of tabs from the left margin) at which to start
+	 * @throws IOException if writing fails
+	 */
+	default void convertToString (Writer writer, int indentLevel) throws IOException {
+		final Writer out = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+		convertToString((Appendable) out, indentLevel);
+		out.flush();
+	}
 
 	/**
 	 * Static helper method to indent a specified number of times from the left margin, by
@@ -77,4 +120,21 @@ interface Expression {
 			sb.append('\t');
 		}
 	}
+
+	/**
+	 * Static helper method to indent a specified number of times from the left margin, by
+	 * appending tab characters to the specified Appendable.
+	 * @param out the Appendable to which to append tab characters.
+	 * @param indentLevel the number of tabs to append.
+	 * @throws IOException if out throws it
+	 */
+	public static void indent (Appendable out, int indentLevel) throws IOException {
+		if (out instanceof StringBuffer) {
+			indent((StringBuffer) out, indentLevel);
+			return;
+		}
+		for (int i = 0; i < indentLevel; i++) {
+			out.append('\t');
+		}
+	}
 }
@@ -0,0 +1,366 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * Compiles expressions into JVM bytecode, for expressions that are evaluated so
+ * often that even CompiledExpression's interpreter loop is too slow.
+ *
+ * Each expression becomes a hidden class implementing ToLongFunction<long[]>,
+ * whose applyAsLong takes the values of the variables a through z and computes
+ * the expression with straight-line ladd/lmul instructions, which the JIT can
+ * compile like hand-written arithmetic. Generated classes are cached by the
+ * canonical string of the expression (its convertToString(0)), so equal
+ * expressions share one class. Expressions too large for a single method are
+ * evaluated by their tree instead.
+ *
+ * Since generating and loading a class costs far more than evaluating an
+ * expression a few times, adaptive() returns a function that evaluates the tree
+ * until it has been called a configurable number of times, and only then
+ * switches to the compiled class.
+ *
+ * Compilers and the functions they return are thread-safe.
+ *
+ */
+public class ExpressionBytecodeCompiler {
+
+    /**
+     * The default number of calls after which an adaptive function is compiled
+     */
+    public static final int DEFAULT_CALL_THRESHOLD = 10000;
+
+    // class file constants
+    private static final int MAGIC = 0xCAFEBABE, JAVA_17 = 61;
+    private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+    private static final int CONSTANT_UTF8 = 1, CONSTANT_LONG = 5, CONSTANT_CLASS = 7, CONSTANT_METHODREF = 10,
+            CONSTANT_NAME_AND_TYPE = 12;
+    private static final int MAX_CODE_LENGTH = 65535, MAX_CONSTANTS = 65535;
+
+    // opcodes
+    private static final int LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10, LDC2_W = 0x14, LALOAD = 0x2f,
+            ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, ASTORE_2 = 0x4d, LADD = 0x61, LMUL = 0x69,
+            LRETURN = 0xad, RETURN = 0xb1, INVOKESPECIAL = 0xb7, CHECKCAST = 0xc0;
+
+    // instance variables
+    private final int _callThreshold;
+    private final ConcurrentHashMap<String, ToLongFunction<long[]>> _cache = new ConcurrentHashMap<String, ToLongFunction<long[]>>();
+
+    /**
+     * Constructor for ExpressionBytecodeCompiler, with the default call threshold.
+     */
+    public ExpressionBytecodeCompiler() {
+        this(DEFAULT_CALL_THRESHOLD);
+    }
+
+    /**
+     * Constructor for ExpressionBytecodeCompiler
+     *
+     * @param callThreshold
+     *            the number of calls after which the functions returned by
+     *            adaptive() are compiled; 0 compiles them on the first call
+     */
+    public ExpressionBytecodeCompiler(int callThreshold) {
+        if (callThreshold < 0) {
+            throw new IllegalArgumentException("Negative call threshold " + callThreshold);
+        }
+        _callThreshold = callThreshold;
+    }
+
+    /**
+     * Returns the bytecode-compiled function of the expression, generating its
+     * class unless an equal expression was compiled before.
+     *
+     * @param expression
+     *            the expression to compile
+     * @return a function from the values of the variables a through z to the value
+     *         of the expression
+     * @throws ArithmeticException
+     *             if the expression contains a literal without a numeric value
+     */
+    public ToLongFunction<long[]> compile(Expression expression) {
+        return compile(expression, expression.convertToString(0));
+    }
+
+    private ToLongFunction<long[]> compile(Expression expression, String key) {
+        final ToLongFunction<long[]> cached = _cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        return _cache.computeIfAbsent(key, k -> generate(expression));
+    }
+
+    /**
+     * Returns a function that evaluates the expression tree until it has been called
+     * as many times as the call threshold, and then the compiled function. The
+     * expression must not be modified while the function is in use.
+     *
+     * @param expression
+     *            the expression to evaluate
+     * @return a function from the values of the variables a through z to the value
+     *         of the expression
+     */
+    public ToLongFunction<long[]> adaptive(Expression expression) {
+        return new AdaptiveFunction(expression);
+    }
+
+    /**
+     * Returns the number of distinct expressions that were compiled.
+     *
+     * @return the number of cached functions
+     */
+    public int getCompiledCount() {
+        return _cache.size();
+    }
+
+    /**
+     * Forgets the compiled functions, so that their classes can be unloaded once
+     * no one uses them.
+     */
+    public void clearCache() {
+        _cache.clear();
+    }
+
+    /**
+     * Generates and loads the class of the expression.
+     */
+    private static ToLongFunction<long[]> generate(Expression expression) {
+        final ClassGenerator generator = new ClassGenerator();
+        final byte[] bytes = generator.generate(expression);
+        if (bytes == null) {
+            final Expression tree = expression.deepCopy(); // too large for one method
+            return tree::evaluate;
+        }
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            @SuppressWarnings("unchecked")
+            final ToLongFunction<long[]> function = (ToLongFunction<long[]>) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            return function;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Cannot load the compiled expression", t);
+        }
+    }
+
+    /**
+     * A function that switches from the tree to the compiled class once it is hot.
+     * The call count is deliberately not synchronized: a lost update only delays
+     * compilation slightly, and compiling twice finds the cached class.
+     */
+    private class AdaptiveFunction implements ToLongFunction<long[]> {
+        private final Expression _expression;
+        private int _calls;
+        private volatile ToLongFunction<long[]> _compiled;
+
+        AdaptiveFunction(Expression expression) {
+            _expression = expression;
+        }
+
+        public long applyAsLong(long[] variables) {
+            final ToLongFunction<long[]> compiled = _compiled;
+            if (compiled != null) {
+                return compiled.applyAsLong(variables);
+            }
+            if (_calls++ >= _callThreshold) {
+                _compiled = compile(_expression);
+                return _compiled.applyAsLong(variables);
+            }
+            return _expression.evaluate(variables);
+        }
+    }
+
+    /**
+     * Writes the class file of a compiled expression:
+     *
+     * final class ExpressionBytecodeCompiler$Compiled implements ToLongFunction {
+     *     public long applyAsLong(Object variables) { return ...; }
+     * }
+     */
+    private static class ClassGenerator {
+        private final ByteArrayOutputStream _constantBytes = new ByteArrayOutputStream();
+        private final DataOutputStream _constants = new DataOutputStream(_constantBytes);
+        private final Map<Object, Integer> _constantIndices = new HashMap<Object, Integer>();
+        private int _constantCount = 1;
+        private final ByteArrayOutputStream _code = new ByteArrayOutputStream();
+        private int _maxStack;
+
+        /**
+         * Returns the class file, or null if the expression does not fit in one method.
+         */
+        byte[] generate(Expression expression) {
+            try {
+                final int thisClass = classConstant(ExpressionBytecodeCompiler.class.getName() + "$Compiled");
+                final int objectClass = classConstant("java/lang/Object");
+                final int interfaceClass = classConstant("java/util/function/ToLongFunction");
+                final int objectInit = methodConstant(objectClass, "<init>", "()V");
+                final int arrayClass = classConstant("[J");
+                final int init = utf8Constant("<init>");
+                final int initType = utf8Constant("()V");
+                final int apply = utf8Constant("applyAsLong");
+                final int applyType = utf8Constant("(Ljava/lang/Object;)J");
+                final int codeAttribute = utf8Constant("Code");
+
+                // applyAsLong: long[] variables = (long[]) argument; return <expression>;
+                _code.write(ALOAD_1);
+                _code.write(CHECKCAST);
+                writeShort(_code, arrayClass);
+                _code.write(ASTORE_2);
+                emit(expression, 0);
+                _code.write(LRETURN);
+                if (_code.size() > MAX_CODE_LENGTH || _constantCount > MAX_CONSTANTS) {
+                    return null;
+                }
+
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + _constantBytes.size() + _code.size());
+                final DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(MAGIC);
+                out.writeShort(0);
+                out.writeShort(JAVA_17);
+                out.writeShort(_constantCount);
+                _constantBytes.writeTo(out);
+                out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(objectClass);
+                out.writeShort(1); // interfaces
+                out.writeShort(interfaceClass);
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+
+                // public <init>() { super(); }
+                out.writeShort(ACC_PUBLIC);
+                out.writeShort(init);
+                out.writeShort(initType);
+                out.writeShort(1);
+                out.writeShort(codeAttribute);
+                out.writeInt(2 + 2 + 4 + 5 + 2 + 2);
+                out.writeShort(1); // max stack
+                out.writeShort(1); // max locals
+                out.writeInt(5);
+                out.writeByte(ALOAD_0);
+                out.writeByte(INVOKESPECIAL);
+                out.writeShort(objectInit);
+                out.writeByte(RETURN);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+
+                out.writeShort(ACC_PUBLIC);
+                out.writeShort(apply);
+                out.writeShort(applyType);
+                out.writeShort(1);
+                out.writeShort(codeAttribute);
+                out.writeInt(2 + 2 + 4 + _code.size() + 2 + 2);
+                out.writeShort(Math.max(_maxStack, 1));
+                out.writeShort(3); // this, argument, variables
+                out.writeInt(_code.size());
+                _code.writeTo(out);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+
+                out.writeShort(0); // class attributes
+                return bytes.toByteArray();
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe); // in-memory streams do not throw
+            }
+        }
+
+        /**
+         * Emits the code that pushes the value of the expression, with the
+         * specified number of stack slots already in use.
+         */
+        private void emit(Expression expression, int stack) {
+            if (expression instanceof LiteralExpression) {
+                final LiteralExpression literal = (LiteralExpression) expression;
+                if (literal.isVariable()) {
+                    _code.write(ALOAD_2);
+                    _code.write(BIPUSH);
+                    _code.write(literal.getVariable());
+                    _code.write(LALOAD);
+                } else if (!literal.isNumber()) {
+                    throw new ArithmeticException("Literal " + literal.getValue() + " has no numeric value");
+                } else if (literal.getNumber() == 0 || literal.getNumber() == 1) {
+                    _code.write(literal.getNumber() == 0 ? LCONST_0 : LCONST_1);
+                } else {
+                    _code.write(LDC2_W);
+                    writeShort(_code, longConstant(literal.getNumber()));
+                }
+                _maxStack = Math.max(_maxStack, stack + 2); // a long, or an array and an index
+            } else if (expression instanceof ParentheticalExpression) {
+                emit(((ParentheticalExpression) expression).getChildren().get(0), stack);
+            } else if (expression instanceof SimpleCompoundExpression) {
+                final SimpleCompoundExpression compound = (SimpleCompoundExpression) expression;
+                final int operation = "+".equals(compound.getOperation()) ? LADD : LMUL;
+                final List<Expression> children = compound.getChildren();
+                emit(children.get(0), stack);
+                for (int i = 1; i < children.size(); i++) {
+                    emit(children.get(i), stack + 2);
+                    _code.write(operation);
+                }
+            } else {
+                emit(expression.deepCopy(), stack);
+            }
+        }
+
+        private int utf8Constant(String value) throws IOException {
+            final Integer index = _constantIndices.get(value);
+            if (index != null) {
+                return index;
+            }
+            _constants.writeByte(CONSTANT_UTF8);
+            _constants.writeUTF(value);
+            return addConstant(value, 1);
+        }
+
+        private int classConstant(String name) throws IOException {
+            final int nameIndex = utf8Constant(name.replace('.', '/'));
+            _constants.writeByte(CONSTANT_CLASS);
+            _constants.writeShort(nameIndex);
+            return addConstant(null, 1);
+        }
+
+        private int methodConstant(int owner, String name, String type) throws IOException {
+            final int nameIndex = utf8Constant(name);
+            final int typeIndex = utf8Constant(type);
+            _constants.writeByte(CONSTANT_NAME_AND_TYPE);
+            _constants.writeShort(nameIndex);
+            _constants.writeShort(typeIndex);
+            final int nameAndType = addConstant(null, 1);
+            _constants.writeByte(CONSTANT_METHODREF);
+            _constants.writeShort(owner);
+            _constants.writeShort(nameAndType);
+            return addConstant(null, 1);
+        }
+
+        private int longConstant(long value) {
+            final Integer index = _constantIndices.get(value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                _constants.writeByte(CONSTANT_LONG);
+                _constants.writeLong(value);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+            return addConstant(value, 2); // longs take two entries
+        }
+
+        private int addConstant(Object key, int entries) {
+            final int index = _constantCount;
+            _constantCount += entries;
+            if (key != null) {
+                _constantIndices.put(key, index);
+            }
+            return index;
+        }
+
+        private static void writeShort(ByteArrayOutputStream out, int value) {
+            out.write(value >>> 8);
+            out.write(value);
+        }
+    }
+}
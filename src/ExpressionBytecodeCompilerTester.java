@@ -0,0 +1,77 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * Tests that bytecode-compiled expressions agree with evaluating their trees.
+ */
+public class ExpressionBytecodeCompilerTester {
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	@Test
+	/**
+	 * Verifies compiled functions against the trees, including large constants and nesting.
+	 */
+	public void testCompiledMatchesTree () throws ExpressionParseException {
+		final ExpressionBytecodeCompiler compiler = new ExpressionBytecodeCompiler();
+		final Random random = new Random(10);
+		final String[] texts = { "x", "0", "1", "1234567890", "(y)", "2*x+3*y+4*(7+6*x)",
+		                         "a*b*c+d*(e+f*(g+h))+12", "(x+1)*(x+2)*(x+3)*z+0*q" };
+		for (String text : texts) {
+			final Expression expression = _parser.parse(text, false);
+			final ToLongFunction<long[]> function = compiler.compile(expression);
+			for (int run = 0; run < 100; run++) {
+				final long[] variables = new long[26];
+				for (int v = 0; v < variables.length; v++) {
+					variables[v] = random.nextLong();
+				}
+				assertEquals(text, expression.evaluate(variables), function.applyAsLong(variables));
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that equal expressions share one compiled function.
+	 */
+	public void testCache () throws ExpressionParseException {
+		final ExpressionBytecodeCompiler compiler = new ExpressionBytecodeCompiler();
+		final ToLongFunction<long[]> first = compiler.compile(_parser.parse("x*(y+1)", false));
+		assertSame(first, compiler.compile(_parser.parse("x * ( y + 1 )", false)));
+		assertNotSame(first, compiler.compile(_parser.parse("x*(y+2)", false)));
+		assertEquals(2, compiler.getCompiledCount());
+		compiler.clearCache();
+		assertEquals(0, compiler.getCompiledCount());
+	}
+
+	@Test
+	/**
+	 * Verifies that an adaptive function only compiles after the call threshold.
+	 */
+	public void testAdaptive () throws ExpressionParseException {
+		final ExpressionBytecodeCompiler compiler = new ExpressionBytecodeCompiler(5);
+		final ToLongFunction<long[]> function = compiler.adaptive(_parser.parse("x*x+1", false));
+		final long[] variables = new long[26];
+		for (int i = 0; i < 10; i++) {
+			variables['x' - 'a'] = i;
+			assertEquals(i * i + 1, function.applyAsLong(variables));
+			assertEquals(i < 5 ? 0 : 1, compiler.getCompiledCount());
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that an expression too large for one method is still evaluated.
+	 */
+	public void testHugeExpression () throws ExpressionParseException {
+		final StringBuilder text = new StringBuilder("x");
+		for (int i = 0; i < 20000; i++) {
+			text.append("+x");
+		}
+		final long[] variables = new long[26];
+		variables['x' - 'a'] = 3;
+		assertEquals(3 * 20001, new ExpressionBytecodeCompiler().compile(_parser.parse(text.toString(), false))
+		                                                         .applyAsLong(variables));
+	}
+}
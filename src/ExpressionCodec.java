@@ -0,0 +1,569 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ *
+ * A compact binary format for expression trees, which is smaller than their text
+ * and can be read back without any lexing or backtracking: much faster than
+ * SimpleExpressionParser parses the text. It is not faster than LinearExpressionParser,
+ * though, since both spend most of their time building the same nodes: decoding is
+ * faster on deeply nested trees and a little slower on flat ones. It sizes every
+ * list of children from the stored counts, and converts the value of each distinct
+ * literal once.
+ *
+ * A tree is encoded as a record: its length in bytes, the table of its distinct
+ * literal values, its number of nodes, and its nodes in preorder. Every node is a
+ * single varint: the index of its value in the table for a literal, or its number
+ * of children for a compound expression, shifted left by two bits that hold its
+ * kind. So 2*x+3*y takes 18 bytes, against 24 for its convertToString output.
+ * Varints are unsigned LEB128, as in protocol buffers.
+ *
+ * An archive is a header followed by records. Archives can be written to and read
+ * from any channel with Writer and Reader, and files can be read through a memory
+ * mapping with read(Path, Consumer).
+ *
+ * Decoded trees are made of LiteralExpression, SimpleCompoundExpression and
+ * ParentheticalExpression without JavaFX nodes, like the output of
+ * ExpressionParser.parse(str, false). Only such trees can be encoded and decoded:
+ * every sum or product has at least two children, and every parenthetical one.
+ *
+ */
+public class ExpressionCodec {
+
+    /**
+     * The first bytes of an archive: "EXPR" and the version of the format
+     */
+    private static final byte[] HEADER = { 'E', 'X', 'P', 'R', 1 };
+
+    // node kinds, in the two low bits of every node
+    private static final int LITERAL = 0, ADDITIVE = 1, MULTIPLICATIVE = 2, PARENTHETICAL = 3;
+
+    /**
+     * The largest part of a file that is mapped at once
+     */
+    private static final int MAP_WINDOW = 1 << 30;
+
+    /**
+     * The size of the buffers of Reader and Writer
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private ExpressionCodec() {
+    }
+
+    /**
+     * Returns the record of an expression tree.
+     *
+     * @param expression
+     *            the expression to encode
+     * @return the encoded expression, starting with its length
+     */
+    public static byte[] encode(Expression expression) {
+        final ByteBuffer buffer = ByteBuffer.allocate(maxRecordSize(expression));
+        encode(expression, buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Writes the record of an expression tree at the position of a buffer, which is
+     * advanced past it.
+     *
+     * @param expression
+     *            the expression to encode
+     * @param out
+     *            the buffer to write to
+     * @throws BufferOverflowException
+     *             if the record does not fit in the remaining space; at most
+     *             maxRecordSize(expression) bytes are needed
+     */
+    public static void encode(Expression expression, ByteBuffer out) {
+        final Map<String, Integer> literalIndices = new HashMap<String, Integer>();
+        final List<String> literals = new ArrayList<String>();
+        final List<Expression> nodes = preOrder(expression, literalIndices, literals);
+
+        int length = varintSize(literals.size()) + varintSize(nodes.size());
+        for (String literal : literals) {
+            length += varintSize(literal.length()) + literal.length();
+        }
+        for (Expression node : nodes) {
+            length += varintSize(tag(node, literalIndices));
+        }
+        if (out.remaining() < varintSize(length) + length) {
+            throw new BufferOverflowException();
+        }
+        writeVarint(out, length);
+        writeVarint(out, literals.size());
+        for (String literal : literals) {
+            writeVarint(out, literal.length());
+            for (int i = 0; i < literal.length(); i++) {
+                out.put((byte) literal.charAt(i));
+            }
+        }
+        writeVarint(out, nodes.size());
+        for (Expression node : nodes) {
+            writeVarint(out, tag(node, literalIndices));
+        }
+    }
+
+    /**
+     * Returns an upper bound on the size of the record of an expression tree.
+     *
+     * @param expression
+     *            the expression to encode
+     * @return the largest number of bytes encode may write
+     */
+    public static int maxRecordSize(Expression expression) {
+        long size = 3 * 5;
+        final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+        stack.push(expression);
+        while (!stack.isEmpty()) {
+            final Expression e = stack.pop();
+            size += 5;
+            if (e instanceof CompoundExpression) {
+                for (Expression child : ((CompoundExpression) e).getChildren()) {
+                    stack.push(child);
+                }
+            } else {
+                size += 5 + ((LiteralExpression) e).getValue().length();
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Reads the record of an expression tree at the position of a buffer, which is
+     * advanced past it.
+     *
+     * @param in
+     *            the buffer to read from
+     * @return the decoded expression
+     * @throws IOException
+     *             if the record is malformed or truncated
+     */
+    public static Expression decode(ByteBuffer in) throws IOException {
+        try {
+            final int length = readVarint(in);
+            if (length > in.remaining()) {
+                throw new EOFException("Truncated record of " + length + " bytes");
+            }
+            final int end = in.position() + length;
+            final Expression expression = decodeBody(in);
+            if (in.position() != end) {
+                throw new IOException("Record of " + length + " bytes has " + (in.position() - end) + " extra bytes");
+            }
+            return expression;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated record");
+        }
+    }
+
+    /**
+     * Decodes the literal table and the nodes of a record, building the tree in
+     * preorder with an explicit stack of the compound expressions that still need
+     * children.
+     */
+    private static Expression decodeBody(ByteBuffer in) throws IOException {
+        // the value of every literal is converted once; its first node is the one in the table, and the others copy it
+        final int literalCount = readVarint(in);
+        if (literalCount > in.remaining()) { // every literal takes at least a byte
+            throw new EOFException("Truncated table of " + literalCount + " literals");
+        }
+        final LiteralExpression[] literals = new LiteralExpression[literalCount];
+        final boolean[] used = new boolean[literals.length];
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < literals.length; i++) {
+            final int length = readVarint(in);
+            if (length > in.remaining()) {
+                throw new EOFException("Truncated literal of " + length + " bytes");
+            }
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            in.get(bytes, 0, length);
+            literals[i] = new LiteralExpression(new String(bytes, 0, length, StandardCharsets.ISO_8859_1));
+        }
+
+        final int nodeCount = readVarint(in);
+        AbstractCompoundExpression[] parents = new AbstractCompoundExpression[16];
+        int[] remaining = new int[16];
+        int depth = 0;
+        Expression root = null;
+        for (int i = 0; i < nodeCount; i++) {
+            final int tag = readVarint(in);
+            final int value = tag >>> 2;
+            // every child takes at least a byte, which bounds the lists of malformed records
+            final int childCapacity = Math.min(value, in.remaining());
+            final Expression node;
+            // only the trees that the parsers build: a sum or product has 2 children or more, a parenthetical 1
+            if ((tag & 3) == PARENTHETICAL ? value != 1 : (tag & 3) != LITERAL && value < 2) {
+                throw new IOException("Node " + i + " of kind " + (tag & 3) + " has " + value + " children");
+            }
+            switch (tag & 3) {
+            case LITERAL:
+                if (value >= literals.length) {
+                    throw new IOException("No literal " + value + " in a table of " + literals.length);
+                }
+                node = used[value] ? literals[value].deepCopy() : literals[value];
+                used[value] = true;
+                break;
+            case ADDITIVE:
+                node = new SimpleCompoundExpression("+", childCapacity);
+                break;
+            case MULTIPLICATIVE:
+                node = new SimpleCompoundExpression("*", childCapacity);
+                break;
+            default:
+                node = new ParentheticalExpression();
+            }
+            if (depth > 0) {
+                parents[depth - 1].appendSubexpression(node);
+                if (--remaining[depth - 1] == 0) {
+                    depth--;
+                }
+            } else if (root == null) {
+                root = node;
+            } else {
+                throw new IOException("Node " + i + " is outside of the tree");
+            }
+            if ((tag & 3) != LITERAL) {
+                if (depth == parents.length) {
+                    parents = Arrays.copyOf(parents, 2 * depth);
+                    remaining = Arrays.copyOf(remaining, 2 * depth);
+                }
+                parents[depth] = (AbstractCompoundExpression) node;
+                remaining[depth++] = value;
+            }
+        }
+        if (root == null || depth > 0) {
+            throw new IOException("Incomplete tree of " + nodeCount + " nodes");
+        }
+        return root;
+    }
+
+    /**
+     * Lists the nodes in preorder, and assigns indices to the distinct literals in
+     * the order in which they appear.
+     */
+    private static List<Expression> preOrder(Expression expression, Map<String, Integer> literalIndices, List<String> literals) {
+        final List<Expression> nodes = new ArrayList<Expression>();
+        final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+        stack.push(expression);
+        while (!stack.isEmpty()) {
+            final Expression e = stack.pop();
+            nodes.add(e);
+            if (e instanceof CompoundExpression) {
+                final List<Expression> children = ((CompoundExpression) e).getChildren();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    stack.push(children.get(i));
+                }
+            } else {
+                final String value = ((LiteralExpression) e).getValue();
+                if (!literalIndices.containsKey(value)) {
+                    literalIndices.put(value, literals.size());
+                    literals.add(value);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static int tag(Expression e, Map<String, Integer> literalIndices) {
+        if (e instanceof LiteralExpression) {
+            return literalIndices.get(((LiteralExpression) e).getValue()) << 2 | LITERAL;
+        }
+        final int childCount = ((CompoundExpression) e).getChildren().size();
+        if (e instanceof ParentheticalExpression ? childCount != 1 : childCount < 2) {
+            throw new IllegalArgumentException("Cannot encode " + e.getClass().getName() + " of " + childCount + " children");
+        }
+        if (e instanceof SimpleCompoundExpression) {
+            return childCount << 2 | ("+".equals(((SimpleCompoundExpression) e).getOperation()) ? ADDITIVE : MULTIPLICATIVE);
+        } else if (e instanceof ParentheticalExpression) {
+            return childCount << 2 | PARENTHETICAL;
+        }
+        throw new IllegalArgumentException("Cannot encode " + e.getClass().getName());
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        final byte first = in.get();
+        if (first >= 0) {
+            return first; // most tags and lengths fit in a byte
+        }
+        int value = first & 0x7f;
+        for (int shift = 7; shift < 32; shift += 7) {
+            final byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    throw new IOException("Varint out of range");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 5 bytes");
+    }
+
+    /**
+     * Returns the length of the record at the position of a buffer, including the
+     * length itself, without moving the position.
+     *
+     * @return the size of the record, or -1 if the buffer does not even hold its
+     *         length
+     */
+    private static long recordSize(ByteBuffer in) throws IOException {
+        final int start = in.position();
+        try {
+            final int length = readVarint(in);
+            return (long) in.position() - start + length;
+        } catch (BufferUnderflowException e) {
+            return -1;
+        } finally {
+            in.position(start);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer in) throws IOException {
+        for (byte b : HEADER) {
+            if (!in.hasRemaining() || in.get() != b) {
+                throw new IOException("Not an expression archive");
+            }
+        }
+    }
+
+    /**
+     * Writes an archive of expression trees to a channel, through a buffer.
+     */
+    public static class Writer implements Closeable {
+        private final WritableByteChannel _channel;
+        private ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Starts an archive on a channel.
+         *
+         * @param channel
+         *            the channel to write to, which is closed with the writer
+         */
+        public Writer(WritableByteChannel channel) {
+            _channel = channel;
+            _buffer.put(HEADER);
+        }
+
+        /**
+         * Appends an expression to the archive.
+         *
+         * @param expression
+         *            the expression to write
+         * @throws IOException
+         *             if the channel cannot be written to
+         */
+        public void write(Expression expression) throws IOException {
+            final int size = maxRecordSize(expression);
+            if (_buffer.remaining() < size) {
+                flush();
+                if (_buffer.capacity() < size) {
+                    _buffer = ByteBuffer.allocate(size);
+                }
+            }
+            encode(expression, _buffer);
+        }
+
+        /**
+         * Writes the buffered records to the channel.
+         *
+         * @throws IOException
+         *             if the channel cannot be written to
+         */
+        public void flush() throws IOException {
+            _buffer.flip();
+            while (_buffer.hasRemaining()) {
+                _channel.write(_buffer);
+            }
+            _buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                _channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads an archive of expression trees from a channel, through a buffer.
+     */
+    public static class Reader implements Closeable {
+        private final ReadableByteChannel _channel;
+        private ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean _end;
+
+        /**
+         * Starts reading an archive from a channel.
+         *
+         * @param channel
+         *            the channel to read from, which is closed with the reader
+         * @throws IOException
+         *             if the channel cannot be read or does not hold an archive
+         */
+        public Reader(ReadableByteChannel channel) throws IOException {
+            _channel = channel;
+            _buffer.flip();
+            fill(HEADER.length);
+            checkHeader(_buffer);
+        }
+
+        /**
+         * Reads the next expression of the archive.
+         *
+         * @return the expression, or null at the end of the archive
+         * @throws IOException
+         *             if the channel cannot be read or the archive is malformed
+         */
+        public Expression read() throws IOException {
+            long size = recordSize(_buffer);
+            while (size < 0 || size > _buffer.remaining()) {
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Record of " + size + " bytes");
+                }
+                if (!fill(size < 0 ? _buffer.remaining() + 1 : (int) size)) {
+                    if (_buffer.hasRemaining()) {
+                        throw new EOFException("Truncated record");
+                    }
+                    return null;
+                }
+                size = recordSize(_buffer);
+            }
+            return decode(_buffer);
+        }
+
+        /**
+         * Reads from the channel until the buffer holds at least the specified number
+         * of bytes, or the channel ends.
+         *
+         * @return whether the buffer holds the bytes
+         */
+        private boolean fill(int bytes) throws IOException {
+            if (bytes > _buffer.capacity()) {
+                final ByteBuffer larger = ByteBuffer.allocate(Math.max(bytes, 2 * _buffer.capacity()));
+                larger.put(_buffer).flip();
+                _buffer = larger;
+            }
+            _buffer.compact();
+            try {
+                while (!_end && _buffer.position() < bytes) {
+                    _end = _channel.read(_buffer) < 0;
+                }
+            } finally {
+                _buffer.flip();
+            }
+            return _buffer.remaining() >= bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+    }
+
+    /**
+     * Writes an archive of expression trees to a file, replacing it.
+     *
+     * @param file
+     *            the file to write
+     * @param expressions
+     *            the expressions to write
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public static void write(Path file, Iterable<? extends Expression> expressions) throws IOException {
+        try (Writer writer = new Writer(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))) {
+            for (Expression expression : expressions) {
+                writer.write(expression);
+            }
+        }
+    }
+
+    /**
+     * Reads the expression trees of an archive file, which is memory-mapped rather
+     * than read, in windows of up to 1 GiB.
+     *
+     * @param file
+     *            the archive to read
+     * @param consumer
+     *            receives every expression of the archive, in order
+     * @throws IOException
+     *             if the file cannot be read or is malformed
+     */
+    public static void read(Path file, Consumer<? super Expression> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                final int length = (int) Math.min(MAP_WINDOW, size - position);
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (position == 0) {
+                    checkHeader(buffer);
+                }
+                // decode the records that are entirely in the window; the next window starts at the first that is not
+                long recordSize = recordSize(buffer);
+                while (recordSize >= 0 && recordSize <= buffer.remaining()) {
+                    consumer.accept(decode(buffer));
+                    recordSize = recordSize(buffer);
+                }
+                if (buffer.hasRemaining() && position + length == size) {
+                    throw new EOFException("Truncated record");
+                }
+                if (recordSize > MAP_WINDOW) {
+                    throw new IOException("Record of " + recordSize + " bytes is larger than " + MAP_WINDOW + " bytes");
+                }
+                position += buffer.position();
+            }
+        }
+    }
+
+    /**
+     * Reads all the expression trees of an archive file.
+     *
+     * @param file
+     *            the archive to read
+     * @return the expressions of the archive, in order
+     * @throws IOException
+     *             if the file cannot be read or is malformed
+     */
+    public static List<Expression> readAll(Path file) throws IOException {
+        final List<Expression> expressions = new ArrayList<Expression>();
+        read(file, expressions::add);
+        return expressions;
+    }
+}
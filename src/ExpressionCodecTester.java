@@ -0,0 +1,209 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Tests that ExpressionCodec reads back the trees it writes, through buffers, channels and mapped files.
+ */
+public class ExpressionCodecTester {
+	private static final String[] EXPRESSIONS = {
+		"x", "42", "2*x+3*y", "(x)", "2*x+3*y+4*z+(7+6*z)", "((a+b))*c*(d+e*f)", "10*(4+x)*8*(y+z*(u+0))"
+	};
+
+	/**
+	 * Returns a sum of many terms, whose record is larger than the buffers of Reader and Writer.
+	 */
+	private static Expression wideSum () throws ExpressionParseException {
+		final StringBuilder text = new StringBuilder("1");
+		for (int i = 2; i <= 30000; i++) {
+			text.append(i % 3 == 0 ? "+" : "+x*").append(i);
+		}
+		return new LinearExpressionParser().parse(text.toString(), false);
+	}
+
+	private static void assertSameTree (Expression expected, Expression actual) {
+		assertEquals(expected.convertToString(0), actual.convertToString(0));
+		assertNull(actual.getParent());
+		if (actual instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) actual).getChildren()) {
+				assertSame(actual, child.getParent());
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that decoding a record gives the tree that the parser returns.
+	 */
+	public void testRoundTrip () throws ExpressionParseException, IOException {
+		final ExpressionParser parser = new SimpleExpressionParser();
+		for (String text : EXPRESSIONS) {
+			final Expression expression = parser.parse(text, false);
+			final byte[] record = ExpressionCodec.encode(expression);
+			final ByteBuffer buffer = ByteBuffer.wrap(record);
+			assertSameTree(expression, ExpressionCodec.decode(buffer));
+			assertFalse(buffer.hasRemaining());
+			assertTrue(record.length <= ExpressionCodec.maxRecordSize(expression));
+		}
+		// length, 4 literals of 1 character, 7 nodes
+		assertEquals(1 + 1 + 4 * 2 + 1 + 7, ExpressionCodec.encode(parser.parse("2*x+3*y", false)).length);
+	}
+
+	@Test
+	/**
+	 * Verifies that every occurrence of a literal of the table gets its own node,
+	 * whose value is converted like the parsed one.
+	 */
+	public void testRepeatedLiterals () throws ExpressionParseException, IOException {
+		final Expression expression = new LinearExpressionParser().parse("x*x+x*12+12+(x)", false);
+		final Expression decoded = ExpressionCodec.decode(ByteBuffer.wrap(ExpressionCodec.encode(expression)));
+		final Set<Expression> literals = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+		final ArrayDeque<Expression> stack = new ArrayDeque<Expression>(Arrays.asList(decoded));
+		while (!stack.isEmpty()) {
+			final Expression e = stack.pop();
+			if (e instanceof CompoundExpression) {
+				for (Expression child : ((CompoundExpression) e).getChildren()) {
+					assertSame(e, child.getParent());
+					stack.push(child);
+				}
+			} else {
+				assertTrue(literals.add(e));
+			}
+		}
+		assertEquals(6, literals.size());
+		final long[] variables = new long[26];
+		variables['x' - 'a'] = 5;
+		assertEquals(expression.evaluate(variables), decoded.evaluate(variables));
+		assertEquals(25 + 60 + 12 + 5, decoded.evaluate(variables));
+	}
+
+	@Test
+	/**
+	 * Verifies that malformed records are rejected.
+	 */
+	public void testMalformedRecords () throws ExpressionParseException {
+		final byte[] record = ExpressionCodec.encode(new SimpleExpressionParser().parse("2*x+3*y", false));
+		for (int length = 0; length < record.length; length++) {
+			try {
+				ExpressionCodec.decode(ByteBuffer.wrap(Arrays.copyOf(record, length)));
+				fail("Decoded a truncated record of " + length + " bytes");
+			} catch (IOException e) {
+			}
+		}
+		final byte[] corrupt = record.clone();
+		corrupt[corrupt.length - 1] = 4 << 2; // the last literal, x, becomes a sum of 4 children
+		assertMalformed(corrupt);
+		// a table of 2^31 - 1 literals in a record of 5 bytes
+		assertMalformed(new byte[] { 5, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 7 });
+		// trees that no parser builds: (), (x x x), a sum of x alone, and an empty product
+		assertMalformed(record(0, 1, 0 << 2 | 3));
+		assertMalformed(record(1, 1, 'x', 4, 3 << 2 | 3, 0, 0, 0));
+		assertMalformed(record(1, 1, 'x', 2, 1 << 2 | 1, 0));
+		assertMalformed(record(0, 1, 0 << 2 | 2));
+		// while the smallest of each kind decodes
+		assertEquals("()\n\tx\n", decode(record(1, 1, 'x', 2, 1 << 2 | 3, 0)).convertToString(0));
+		assertEquals("+\n\tx\n\tx\n", decode(record(1, 1, 'x', 3, 2 << 2 | 1, 0, 0)).convertToString(0));
+	}
+
+	/**
+	 * Returns a record made of the specified bytes, after their length.
+	 */
+	private static byte[] record (int... body) {
+		final byte[] record = new byte[body.length + 1];
+		record[0] = (byte) body.length;
+		for (int i = 0; i < body.length; i++) {
+			record[i + 1] = (byte) body[i];
+		}
+		return record;
+	}
+
+	private static Expression decode (byte[] record) {
+		try {
+			return ExpressionCodec.decode(ByteBuffer.wrap(record));
+		} catch (IOException e) {
+			throw new AssertionError("Could not decode " + Arrays.toString(record), e);
+		}
+	}
+
+	private static void assertMalformed (byte[] record) {
+		try {
+			ExpressionCodec.decode(ByteBuffer.wrap(record));
+			fail("Decoded " + Arrays.toString(record));
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies an archive written to and read from channels.
+	 */
+	public void testChannels () throws ExpressionParseException, IOException {
+		final List<Expression> expressions = new ArrayList<Expression>();
+		for (String text : EXPRESSIONS) {
+			expressions.add(new LinearExpressionParser().parse(text, false));
+		}
+		expressions.add(wideSum());
+		expressions.add(expressions.get(2));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ExpressionCodec.Writer writer = new ExpressionCodec.Writer(Channels.newChannel(out))) {
+			for (Expression expression : expressions) {
+				writer.write(expression);
+			}
+		}
+		try (ExpressionCodec.Reader reader = new ExpressionCodec.Reader(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())))) {
+			for (Expression expression : expressions) {
+				assertSameTree(expression, reader.read());
+			}
+			assertNull(reader.read());
+		}
+
+		final byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+		try (ExpressionCodec.Reader reader = new ExpressionCodec.Reader(Channels.newChannel(new ByteArrayInputStream(truncated)))) {
+			for (int i = 0; i < expressions.size() - 1; i++) {
+				reader.read();
+			}
+			reader.read();
+			fail("Read a truncated record");
+		} catch (EOFException e) {
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies an archive file read through a memory mapping.
+	 */
+	public void testMappedFile () throws ExpressionParseException, IOException {
+		final Path file = Files.createTempFile("expressions", ".bin");
+		try {
+			final List<Expression> expressions = new ArrayList<Expression>();
+			for (int i = 0; i < 1000; i++) {
+				expressions.add(new LinearExpressionParser().parse(EXPRESSIONS[i % EXPRESSIONS.length], false));
+			}
+			expressions.add(wideSum());
+			ExpressionCodec.write(file, expressions);
+			final List<Expression> read = ExpressionCodec.readAll(file);
+			assertEquals(expressions.size(), read.size());
+			for (int i = 0; i < expressions.size(); i++) {
+				assertSameTree(expressions.get(i), read.get(i));
+			}
+
+			Files.write(file, "2*x+3*y\n".getBytes());
+			try {
+				ExpressionCodec.readAll(file);
+				fail("Read a text file");
+			} catch (IOException e) {
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
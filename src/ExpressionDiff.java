@@ -0,0 +1,633 @@
+import java.util.*;
+
+/**
+ *
+ * The differences between two expression trees, as a matching between their nodes
+ * and an edit script that turns the source tree into the target tree.
+ *
+ * Nodes are matched in four passes. First, subtrees with the same structural hash
+ * are matched as a whole when the hash is unique in both trees, as are the roots.
+ * Then unmatched compound expressions are matched to the parent of most of the
+ * partners of their children, and the unmatched children of matched parents are
+ * paired, first by hash and then by position. Last, any remaining subtree with an
+ * identical counterpart is matched to it, so that it can be moved rather than
+ * deleted and inserted again.
+ *
+ * The edit script is then derived from the matching as in Chawathe et al.'s
+ * algorithm: the target is visited breadth-first, and the children of each node are
+ * relabeled, inserted or moved into place, keeping the longest increasing
+ * subsequence of the matched children in place. Unmatched source nodes are deleted
+ * last. Subtrees that are identical in both trees are never visited, so the time
+ * is close to linear in the size of the trees, plus the size of the script.
+ *
+ * Edits refer to nodes of the source tree, except that inserted nodes, and the
+ * parents of nodes inserted into them, are identified by the target nodes they
+ * stand for. A null parent stands for the root. Applying the edits in order to the
+ * source tree, with apply() or by a consumer that mirrors the source tree in
+ * e.g. JavaFX nodes or cached results, yields the target tree.
+ *
+ */
+public class ExpressionDiff {
+	/**
+	 * The kinds of edits.
+	 */
+	public enum Kind {
+		INSERT, DELETE, MOVE, RELABEL
+	}
+
+	/**
+	 * An edit of the source tree.
+	 */
+	public static class Edit {
+		private final Kind _kind;
+		private final Expression _node, _parent;
+		private final int _index;
+		private final String _label;
+
+		private Edit (Kind kind, Expression node, Expression parent, int index, String label) {
+			_kind = kind;
+			_node = node;
+			_parent = parent;
+			_index = index;
+			_label = label;
+		}
+
+		/**
+		 * Returns the kind of the edit.
+		 * @return the kind of the edit
+		 */
+		public Kind getKind () {
+			return _kind;
+		}
+
+		/**
+		 * Returns the edited node: a source node, or the target node that an inserted
+		 * node stands for.
+		 * @return the edited node
+		 */
+		public Expression getNode () {
+			return _node;
+		}
+
+		/**
+		 * Returns the parent into which a node is inserted or moved.
+		 * @return the parent, or null for the root or if the node is deleted or relabeled
+		 */
+		public Expression getParent () {
+			return _parent;
+		}
+
+		/**
+		 * Returns the index among the children of the parent at which a node is
+		 * inserted or moved.
+		 * @return the index, or -1 if the node is deleted or relabeled
+		 */
+		public int getIndex () {
+			return _index;
+		}
+
+		/**
+		 * Returns the value of an inserted or relabeled literal, or the operation of an
+		 * inserted or relabeled compound expression.
+		 * @return the label, or null if the node is deleted or moved
+		 */
+		public String getLabel () {
+			return _label;
+		}
+
+		@Override
+		public String toString () {
+			switch (_kind) {
+			case INSERT:
+				return "insert " + _label + " into " + labelOf(_parent) + " at " + _index;
+			case DELETE:
+				return "delete " + labelOf(_node);
+			case MOVE:
+				return "move " + labelOf(_node) + " into " + labelOf(_parent) + " at " + _index;
+			default:
+				return "relabel " + labelOf(_node) + " as " + _label;
+			}
+		}
+
+		private static String labelOf (Expression expression) {
+			return expression == null ? "root" : ExpressionDiff.labelOf(expression);
+		}
+	}
+
+	// instance variables
+	private final Expression _source, _target;
+	private final IdentityHashMap<Expression, Expression> _toTarget = new IdentityHashMap<Expression, Expression>();
+	private final IdentityHashMap<Expression, Expression> _toSource = new IdentityHashMap<Expression, Expression>();
+	private final IdentityHashMap<Expression, Boolean> _unchanged = new IdentityHashMap<Expression, Boolean>();
+	private final IdentityHashMap<Expression, Long> _hashes = new IdentityHashMap<Expression, Long>();
+	private final IdentityHashMap<Expression, Boolean> _moved = new IdentityHashMap<Expression, Boolean>();
+	private final List<Edit> _edits = new ArrayList<Edit>();
+	private boolean _applied;
+
+	/**
+	 * Computes the differences between two trees, which are not modified.
+	 * @param source the tree to edit, made of LiteralExpression, SimpleCompoundExpression and ParentheticalExpression
+	 * @param target the tree that the edits produce
+	 */
+	public ExpressionDiff (Expression source, Expression target) {
+		_source = source;
+		_target = target;
+		final List<Expression> sourceOrder = preOrder(source), targetOrder = preOrder(target);
+		hash(sourceOrder);
+		hash(targetOrder);
+		matchUnique(sourceOrder, targetOrder);
+		matchParents(sourceOrder);
+		matchChildren(sourceOrder);
+		matchRemaining(sourceOrder, targetOrder);
+		editScript(sourceOrder);
+	}
+
+	/**
+	 * Returns the edit script.
+	 * @return the edits, in the order in which they must be applied
+	 */
+	public List<Edit> getEdits () {
+		return Collections.unmodifiableList(_edits);
+	}
+
+	/**
+	 * Returns the target node that a source node was matched to.
+	 * @param source a node of the source tree
+	 * @return the target node, or null if the source node is deleted
+	 */
+	public Expression getTarget (Expression source) {
+		return _toTarget.get(source);
+	}
+
+	/**
+	 * Returns the source node that a target node was matched to.
+	 * @param target a node of the target tree
+	 * @return the source node, or null if the target node is inserted
+	 */
+	public Expression getSource (Expression target) {
+		return _toSource.get(target);
+	}
+
+	/**
+	 * Returns whether a node of either tree roots a subtree that is identical in
+	 * both trees, so that e.g. a result cached for its partner is still valid.
+	 * @param node a node of the source or target tree
+	 * @return whether its subtree is unchanged
+	 */
+	public boolean isUnchanged (Expression node) {
+		return _unchanged.containsKey(node);
+	}
+
+	/**
+	 * Applies the edit script to the source tree, which then has the same structure
+	 * as the target tree. This can only be done once.
+	 * @return the root of the edited tree, which differs from the source if the root was replaced
+	 */
+	public Expression apply () {
+		if (_applied) {
+			throw new IllegalStateException("The edits were already applied");
+		}
+		_applied = true;
+		final List<Expression> roots = new ArrayList<Expression>();
+		roots.add(_source);
+		final IdentityHashMap<Expression, Expression> inserted = new IdentityHashMap<Expression, Expression>();
+		for (Edit edit : _edits) {
+			final Expression node = inserted.containsKey(edit._node) ? inserted.get(edit._node) : edit._node;
+			final Expression parent = inserted.containsKey(edit._parent) ? inserted.get(edit._parent) : edit._parent;
+			switch (edit._kind) {
+			case INSERT:
+				final Expression copy = edit._node instanceof CompoundExpression
+					? ((AbstractCompoundExpression) edit._node).copyNode() : new LiteralExpression(edit._label);
+				inserted.put(edit._node, copy);
+				attach(roots, copy, (CompoundExpression) parent, edit._index);
+				break;
+			case MOVE:
+				detach(roots, node);
+				attach(roots, node, (CompoundExpression) parent, edit._index);
+				break;
+			case DELETE:
+				detach(roots, node);
+				break;
+			case RELABEL:
+				if (node instanceof SimpleCompoundExpression) {
+					((SimpleCompoundExpression) node).setOperation(edit._label);
+				} else {
+					((LiteralExpression) node).setValue(edit._label);
+				}
+				break;
+			}
+		}
+		return roots.get(0);
+	}
+
+	private static void attach (List<Expression> roots, Expression node, CompoundExpression parent, int index) {
+		if (parent == null) {
+			roots.add(index, node);
+		} else {
+			parent.getChildren().add(index, node);
+		}
+		node.setParent(parent);
+	}
+
+	private static void detach (List<Expression> roots, Expression node) {
+		final List<Expression> siblings = node.getParent() == null ? roots : node.getParent().getChildren();
+		for (int i = 0; i < siblings.size(); i++) {
+			if (siblings.get(i) == node) {
+				siblings.remove(i);
+				break;
+			}
+		}
+		node.setParent(null);
+	}
+
+	/**
+	 * Returns the value of a literal, or the operation of a compound expression.
+	 */
+	private static String labelOf (Expression expression) {
+		if (expression instanceof CompoundExpression) {
+			return ((AbstractCompoundExpression) expression).getLabel();
+		}
+		return ((LiteralExpression) expression).getValue();
+	}
+
+	/**
+	 * Returns whether two nodes can be matched, i.e. are of the same class.
+	 */
+	private static boolean compatible (Expression a, Expression b) {
+		return a.getClass() == b.getClass();
+	}
+
+	private static List<Expression> children (Expression expression) {
+		return expression instanceof CompoundExpression ? ((CompoundExpression) expression).getChildren() : Collections.<Expression>emptyList();
+	}
+
+	private static List<Expression> preOrder (Expression root) {
+		final List<Expression> order = new ArrayList<Expression>();
+		final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Expression expression = stack.pop();
+			order.add(expression);
+			final List<Expression> children = children(expression);
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.push(children.get(i));
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Computes the structural hash of every subtree, children before parents.
+	 */
+	private void hash (List<Expression> preOrder) {
+		for (int i = preOrder.size() - 1; i >= 0; i--) {
+			final Expression expression = preOrder.get(i);
+			long hash = labelOf(expression).hashCode() * 0x9E3779B97F4A7C15L + expression.getClass().getName().hashCode();
+			for (Expression child : children(expression)) {
+				hash = mix(hash * 31 + _hashes.get(child));
+			}
+			_hashes.put(expression, mix(hash));
+		}
+	}
+
+	private static long mix (long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Returns whether two subtrees are identical, e.g. after their hashes matched.
+	 */
+	private static boolean identical (Expression a, Expression b) {
+		final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(a);
+		stack.push(b);
+		while (!stack.isEmpty()) {
+			final Expression y = stack.pop(), x = stack.pop();
+			if (!compatible(x, y) || !labelOf(x).equals(labelOf(y)) || children(x).size() != children(y).size()) {
+				return false;
+			}
+			for (int i = 0; i < children(x).size(); i++) {
+				stack.push(children(x).get(i));
+				stack.push(children(y).get(i));
+			}
+		}
+		return true;
+	}
+
+	private boolean isMatched (Expression expression) {
+		return _toTarget.containsKey(expression) || _toSource.containsKey(expression);
+	}
+
+	private void match (Expression source, Expression target) {
+		_toTarget.put(source, target);
+		_toSource.put(target, source);
+	}
+
+	/**
+	 * Matches two identical subtrees node by node.
+	 */
+	private void matchSubtree (Expression source, Expression target) {
+		final List<Expression> sources = preOrder(source), targets = preOrder(target);
+		for (int i = 0; i < sources.size(); i++) {
+			match(sources.get(i), targets.get(i));
+			_unchanged.put(sources.get(i), Boolean.TRUE);
+			_unchanged.put(targets.get(i), Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Returns whether no node of a subtree is matched yet.
+	 */
+	private boolean isUnmatched (Expression root) {
+		for (Expression expression : preOrder(root)) {
+			if (isMatched(expression)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tries to match a source subtree to an identical one among candidates. Both
+	 * subtrees must be entirely unmatched: matchSubtree() matches every node, and
+	 * would otherwise leave the earlier partners of their descendants pointing at
+	 * nodes that no longer point back.
+	 */
+	private boolean matchIdentical (Expression source, ArrayDeque<Expression> candidates) {
+		if (candidates == null) {
+			return false;
+		}
+		while (!candidates.isEmpty() && isMatched(candidates.peek())) {
+			candidates.pop();
+		}
+		if (candidates.isEmpty() || !isUnmatched(source)) {
+			return false;
+		}
+		for (Expression candidate : candidates) {
+			if (!isMatched(candidate) && identical(source, candidate) && isUnmatched(candidate)) {
+				matchSubtree(source, candidate);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private HashMap<Long, ArrayDeque<Expression>> byHash (Collection<Expression> expressions) {
+		final HashMap<Long, ArrayDeque<Expression>> byHash = new HashMap<Long, ArrayDeque<Expression>>();
+		for (Expression expression : expressions) {
+			byHash.computeIfAbsent(_hashes.get(expression), h -> new ArrayDeque<Expression>()).add(expression);
+		}
+		return byHash;
+	}
+
+	/**
+	 * Matches the roots if they are identical or compatible, and the largest subtrees
+	 * whose hash occurs once in each tree.
+	 */
+	private void matchUnique (List<Expression> sourceOrder, List<Expression> targetOrder) {
+		if (_hashes.get(_source).equals(_hashes.get(_target)) && identical(_source, _target)) {
+			matchSubtree(_source, _target);
+			return;
+		}
+		if (compatible(_source, _target)) {
+			match(_source, _target);
+		}
+		final HashMap<Long, ArrayDeque<Expression>> targets = byHash(targetOrder);
+		final HashMap<Long, Integer> sourceCounts = new HashMap<Long, Integer>();
+		for (Expression expression : sourceOrder) {
+			sourceCounts.merge(_hashes.get(expression), 1, Integer::sum);
+		}
+		final ArrayDeque<Expression> queue = new ArrayDeque<Expression>();
+		queue.add(_source);
+		while (!queue.isEmpty()) {
+			final Expression expression = queue.poll();
+			final ArrayDeque<Expression> candidates = targets.get(_hashes.get(expression));
+			if (isMatched(expression) || sourceCounts.get(_hashes.get(expression)) != 1 || candidates == null
+					|| candidates.size() != 1 || !matchIdentical(expression, candidates)) {
+				queue.addAll(children(expression));
+			}
+		}
+	}
+
+	/**
+	 * Matches every unmatched compound expression to the compatible parent of most
+	 * of the partners of its children, children before parents.
+	 */
+	private void matchParents (List<Expression> sourceOrder) {
+		final IdentityHashMap<Expression, Integer> votes = new IdentityHashMap<Expression, Integer>();
+		for (int i = sourceOrder.size() - 1; i >= 0; i--) {
+			final Expression expression = sourceOrder.get(i);
+			if (isMatched(expression) || !(expression instanceof CompoundExpression)) {
+				continue;
+			}
+			votes.clear();
+			Expression best = null;
+			int bestVotes = 0;
+			for (Expression child : children(expression)) {
+				final Expression partner = _toTarget.get(child);
+				final Expression parent = partner == null ? null : partner.getParent();
+				if (parent != null && !isMatched(parent) && compatible(expression, parent)) {
+					final int count = votes.merge(parent, 1, Integer::sum);
+					if (count > bestVotes) {
+						best = parent;
+						bestVotes = count;
+					}
+				}
+			}
+			if (best != null) {
+				match(expression, best);
+			}
+		}
+	}
+
+	/**
+	 * Pairs the unmatched children of every matched pair, first identical subtrees
+	 * and then compatible nodes in order, parents before children.
+	 */
+	private void matchChildren (List<Expression> sourceOrder) {
+		for (Expression expression : sourceOrder) {
+			final Expression partner = _toTarget.get(expression);
+			if (partner == null || isUnchanged(expression) || !(expression instanceof CompoundExpression)) {
+				continue;
+			}
+			final List<Expression> sources = new ArrayList<Expression>(), targets = new ArrayList<Expression>();
+			for (Expression child : children(expression)) {
+				if (!isMatched(child)) {
+					sources.add(child);
+				}
+			}
+			for (Expression child : children(partner)) {
+				if (!isMatched(child)) {
+					targets.add(child);
+				}
+			}
+			if (sources.isEmpty() || targets.isEmpty()) {
+				continue;
+			}
+			final HashMap<Long, ArrayDeque<Expression>> byHash = byHash(targets);
+			for (Expression child : sources) {
+				matchIdentical(child, byHash.get(_hashes.get(child)));
+			}
+			final Iterator<Expression> remaining = targets.stream().filter(e -> !isMatched(e)).iterator();
+			for (Expression child : sources) {
+				if (!isMatched(child) && remaining.hasNext()) {
+					final Expression target = remaining.next();
+					if (compatible(child, target)) {
+						match(child, target);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matches any remaining subtree that has an identical unmatched counterpart.
+	 */
+	private void matchRemaining (List<Expression> sourceOrder, List<Expression> targetOrder) {
+		final List<Expression> unmatched = new ArrayList<Expression>();
+		for (Expression expression : targetOrder) {
+			if (!isMatched(expression)) {
+				unmatched.add(expression);
+			}
+		}
+		if (unmatched.isEmpty()) {
+			return;
+		}
+		final HashMap<Long, ArrayDeque<Expression>> targets = byHash(unmatched);
+		for (Expression expression : sourceOrder) {
+			if (!isMatched(expression)) {
+				matchIdentical(expression, targets.get(_hashes.get(expression)));
+			}
+		}
+	}
+
+	/**
+	 * Derives the edit script from the matching.
+	 */
+	private void editScript (List<Expression> sourceOrder) {
+		placeChildren(null, Collections.singletonList(_target));
+		final ArrayDeque<Expression> queue = new ArrayDeque<Expression>();
+		queue.add(_target);
+		while (!queue.isEmpty()) {
+			final Expression target = queue.poll();
+			if (target instanceof CompoundExpression && !isUnchanged(target)) {
+				placeChildren(target, children(target));
+				queue.addAll(children(target));
+			}
+		}
+		for (int i = sourceOrder.size() - 1; i >= 0; i--) {
+			if (!isMatched(sourceOrder.get(i))) {
+				_edits.add(new Edit(Kind.DELETE, sourceOrder.get(i), null, -1, null));
+			}
+		}
+	}
+
+	/**
+	 * Relabels, inserts and moves the children of the counterpart of a target node,
+	 * so that their order is that of the children of the target node. Unmatched
+	 * children of the counterpart are left in between, to be moved or deleted later.
+	 */
+	private void placeChildren (Expression target, List<Expression> targetChildren) {
+		// the edited node is the source partner of the target node, or the target node itself if it was inserted
+		final Expression partner = target == null ? null : _toSource.get(target);
+		final Expression parent = partner != null ? partner : target;
+		// the current children of the parent, which were never moved, by their index
+		final IdentityHashMap<Expression, Integer> indices = new IdentityHashMap<Expression, Integer>();
+		final List<Expression> current = target == null ? Collections.singletonList(_source) : children(partner == null ? target : partner);
+		if (partner != null || target == null) {
+			for (Expression child : current) {
+				if (!_moved.containsKey(child)) {
+					indices.put(child, indices.size());
+				}
+			}
+		}
+
+		// the longest run of partners already in order stays in place
+		final int[] order = new int[targetChildren.size()];
+		for (int i = 0; i < order.length; i++) {
+			final Expression source = _toSource.get(targetChildren.get(i));
+			order[i] = source == null || !indices.containsKey(source) ? -1 : indices.get(source);
+		}
+		final boolean[] stays = longestIncreasing(order);
+
+		// the stable children split the others into intervals, numbered by the stable child that follows them
+		final int[] intervals = new int[indices.size() + 1];
+		final boolean[] stable = new boolean[indices.size()];
+		for (int i = 0; i < order.length; i++) {
+			if (stays[i]) {
+				stable[order[i]] = true;
+			}
+		}
+		for (int i = 0, interval = 0; i < stable.length; i++) {
+			intervals[i] = interval;
+			if (stable[i]) {
+				interval++;
+			}
+		}
+		final int[] removed = new int[indices.size() + 1];
+
+		int cursor = 0, lastStable = -1;
+		for (int i = 0; i < order.length; i++) {
+			final Expression child = targetChildren.get(i);
+			final Expression source = _toSource.get(child);
+			if (source != null && !labelOf(source).equals(labelOf(child))) {
+				_edits.add(new Edit(Kind.RELABEL, source, null, -1, labelOf(child)));
+			}
+			if (stays[i]) {
+				// skip the children between the previous stable child and this one that are still there
+				cursor += order[i] - lastStable - 1 - removed[intervals[order[i]]];
+				cursor++;
+				lastStable = order[i];
+			} else if (source == null) {
+				_edits.add(new Edit(Kind.INSERT, child, target == null ? null : parent, cursor++, labelOf(child)));
+			} else {
+				if (order[i] >= 0) {
+					removed[intervals[order[i]]]++;
+					if (order[i] < lastStable) { // it was before the cursor
+						cursor--;
+					}
+				}
+				_moved.put(source, Boolean.TRUE);
+				_edits.add(new Edit(Kind.MOVE, source, target == null ? null : parent, cursor++, null));
+			}
+		}
+	}
+
+	/**
+	 * Returns which of the non-negative elements form a longest strictly increasing
+	 * subsequence, by patience sorting.
+	 */
+	private static boolean[] longestIncreasing (int[] sequence) {
+		final int[] tails = new int[sequence.length]; // index of the smallest tail of a subsequence of each length
+		final int[] previous = new int[sequence.length];
+		int length = 0;
+		for (int i = 0; i < sequence.length; i++) {
+			if (sequence[i] < 0) {
+				continue;
+			}
+			int low = 0, high = length;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (sequence[tails[mid]] < sequence[i]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length) {
+				length++;
+			}
+		}
+		final boolean[] result = new boolean[sequence.length];
+		for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+			result[i] = true;
+		}
+		return result;
+	}
+}
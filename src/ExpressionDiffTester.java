@@ -0,0 +1,124 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests ExpressionDiff by applying its edits to the source tree and comparing the result with the target tree.
+ */
+public class ExpressionDiffTester {
+	private static final RandomExpressions EXPRESSIONS = new RandomExpressions(4, 4, 2, 4);
+	private static final RandomExpressions LARGE_EXPRESSIONS = new RandomExpressions(2, 3, 2, 6);
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	/**
+	 * Diffs two expressions, checks that applying the edits yields the target, and returns the edits.
+	 */
+	private List<ExpressionDiff.Edit> check (String source, String target) throws ExpressionParseException {
+		final Expression sourceTree = _parser.parse(source, false), targetTree = _parser.parse(target, false);
+		final ExpressionDiff diff = new ExpressionDiff(sourceTree, targetTree);
+		final List<ExpressionDiff.Edit> edits = new ArrayList<ExpressionDiff.Edit>(diff.getEdits());
+		final Expression result = diff.apply();
+		assertEquals(edits.toString(), targetTree.convertToString(0), result.convertToString(0));
+		assertNull(result.getParent());
+		return edits;
+	}
+
+	private static String kinds (List<ExpressionDiff.Edit> edits) {
+		final StringBuilder kinds = new StringBuilder();
+		for (ExpressionDiff.Edit edit : edits) {
+			kinds.append(edit.getKind().name().charAt(0));
+		}
+		return kinds.toString();
+	}
+
+	@Test
+	/**
+	 * Verifies that small edits give minimal scripts.
+	 */
+	public void testMinimalScripts () throws ExpressionParseException {
+		assertEquals("", kinds(check("2*x+3*y+(7+6*z)", "2*x+3*y+(7+6*z)")));
+		assertEquals("R", kinds(check("2*x+3*y+(7+6*z)", "2*x+3*y+(7+5*z)")));
+		assertEquals("M", kinds(check("2*x+3*y+(7+6*z)", "3*y+(7+6*z)+2*x")));
+		assertEquals("I", kinds(check("1+2+3", "1+2+3+4")));
+		assertEquals("D", kinds(check("1+2+3+4", "1+4+3")).substring(1)); // 2 is relabeled to 4 or deleted
+		assertEquals("R", kinds(check("a*b*c", "a+b+c")));
+		assertEquals("M", kinds(check("(x+y)*(z+w)", "(z+w)*(x+y)")));
+	}
+
+	@Test
+	/**
+	 * Verifies edits that change the root or the structure of the tree.
+	 */
+	public void testStructuralEdits () throws ExpressionParseException {
+		check("x", "y");
+		check("x", "x+y");
+		check("x+y", "x");
+		check("x+y", "(x+y)");
+		check("(x+y)", "x+y");
+		check("2*(x+y)", "(2*x)+y");
+		check("a+b*(c+d*(e+f))", "(e+f)*d+c+b*a");
+		check("1+2+3+4+5+6+7+8", "8+7+6+5+4+3+2+1");
+		check("x*x*x+y*y+x*x", "x*x+y*y+x*x*x");
+		// the identical 2*0 subtrees are matched after their children were
+		check("2*((2*0)+0+(2*0))", "2*((2*0)*0+(2*0))");
+	}
+
+	@Test
+	/**
+	 * Verifies random edits of random trees, small ones and deeper and wider ones
+	 * over fewer literals, which repeat more subtrees.
+	 */
+	public void testRandomEdits () throws ExpressionParseException {
+		final Random random = new Random(210);
+		for (int i = 0; i < 500; i++) {
+			final String source = EXPRESSIONS.next(random, 3);
+			final String target = random.nextBoolean() ? EXPRESSIONS.next(random, 3) : mutate(random, source);
+			check(source, target);
+		}
+		for (int i = 0; i < 2000; i++) {
+			final String source = LARGE_EXPRESSIONS.next(random, 5);
+			final String target = random.nextBoolean() ? LARGE_EXPRESSIONS.next(random, 5) : mutate(random, source);
+			check(source, target);
+		}
+	}
+
+	/**
+	 * Swaps two characters that are both literals or both operations.
+	 */
+	private static String mutate (Random random, String expression) {
+		final char[] chars = expression.toCharArray();
+		for (int tries = 0; tries < 10; tries++) {
+			final int i = random.nextInt(chars.length), j = random.nextInt(chars.length);
+			if (Character.isLetterOrDigit(chars[i]) == Character.isLetterOrDigit(chars[j])
+					&& (chars[i] == '+' || chars[i] == '*' || Character.isLetterOrDigit(chars[i]))
+					&& (chars[j] == '+' || chars[j] == '*' || Character.isLetterOrDigit(chars[j]))) {
+				final char c = chars[i];
+				chars[i] = chars[j];
+				chars[j] = c;
+			}
+		}
+		return new String(chars);
+	}
+
+	@Test
+	/**
+	 * Verifies that a change in a very wide sum gives a single edit, and that unchanged subtrees are reported.
+	 */
+	public void testWideSum () throws ExpressionParseException {
+		final int size = 100000;
+		final StringBuilder source = new StringBuilder("x*y");
+		for (int i = 1; i < size; i++) {
+			source.append('+').append(i);
+		}
+		final String target = source.toString().replace("+500+", "+(5+7)+").replace("x*y", "x*z");
+		final Expression sourceTree = _parser.parse(source.toString(), false), targetTree = _parser.parse(target, false);
+		final ExpressionDiff diff = new ExpressionDiff(sourceTree, targetTree);
+		// relabel y, insert (5+7) node by node and delete 500
+		assertEquals("IRIIID", kinds(diff.getEdits()));
+		final CompoundExpression sum = (CompoundExpression) targetTree;
+		assertTrue(diff.isUnchanged(sum.getChildren().get(1)));
+		assertFalse(diff.isUnchanged(sum.getChildren().get(0)));
+		assertSame(((CompoundExpression) sourceTree).getChildren().get(0), diff.getSource(sum.getChildren().get(0)));
+		assertEquals(targetTree.convertToString(0), diff.apply().convertToString(0));
+	}
+}
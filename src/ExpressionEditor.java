@@ -1,7 +1,9 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import java.util.*;
 import javafx.geometry.Point2D;
 import javafx.scene.control.Label;
+import javafx.scene.control.OverrunStyle;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.event.EventType;
@@ -15,6 +17,8 @@ import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.event.EventHandler;
 import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
 import javafx.stage.Stage;
 
 public class ExpressionEditor extends Application {
@@ -23,17 +27,125 @@ public class ExpressionEditor extends Application {
 	}
 
 	/**
-	 * Mouse event handler for the entire pane that constitutes the ExpressionEditor
+	 * Mouse event handler for the entire pane that constitutes the ExpressionEditor.
+	 * Pressing on the focused expression focuses its child under the mouse, and
+	 * pressing elsewhere focuses the child of the root under the mouse. Dragging
+	 * the focused expression moves a ghosted copy of it, and marks the position
+	 * among its siblings that it would be dropped at; releasing moves it there, and
+	 * writes the reordered expression back to the text field, so that the text stays
+	 * the source of what is shown.
+	 *
+	 * The positions are computed once when the drag starts, so that every mouse
+	 * move only translates the copy and the marker, after a binary search.
 	 */
 	private static class MouseEventHandler implements EventHandler<MouseEvent> {
-		MouseEventHandler (Pane pane_, CompoundExpression rootExpression_) {
+		private final ExpressionView _view;
+		private final TextField _textField;
+		private final CompoundExpression _rootExpression;
+		private final Label _ghost = new Label();
+		private final Rectangle _marker = new Rectangle(2, 0, Color.RED);
+		private double _pressX;
+		private SiblingOrderings _orderings;
+		private double _parentX, _startX;
+		private int _position;
+
+		MouseEventHandler (ExpressionView view_, TextField textField_, CompoundExpression rootExpression_) {
+			_view = view_;
+			_textField = textField_;
+			_rootExpression = rootExpression_;
+			_ghost.setTextFill(Expression.GHOST_COLOR);
+			_ghost.setTextOverrun(OverrunStyle.CLIP);
 		}
 
 		public void handle (MouseEvent event) {
 			if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
+				_pressX = event.getX();
+				_view.setFocus(expressionAt(event.getX(), event.getY()));
 			} else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
+				if (_orderings == null) {
+					startDrag();
+				}
+				if (_orderings != null) {
+					drag(event.getX());
+				}
 			} else if (event.getEventType() == MouseEvent.MOUSE_RELEASED) {
+				if (_orderings != null) {
+					drop();
+				}
+			}
+		}
+
+		/**
+		 * Returns the expression to focus when the mouse is pressed at (x, y).
+		 */
+		private Expression expressionAt (double x, double y) {
+			final ExpressionLayout layout = _view.getLayout();
+			final Node rootNode = _view.getNode(_rootExpression);
+			if (rootNode == null || y < rootNode.getBoundsInParent().getMinY() || y >= rootNode.getBoundsInParent().getMaxY()) {
+				return null;
+			}
+			final Expression focus = _view.getFocus();
+			Expression parent = _rootExpression;
+			if (focus instanceof CompoundExpression) {
+				final double start = _view.getRootX() + layout.getX(focus);
+				if (x >= start && x < start + layout.getWidth(focus)) {
+					parent = focus;
+				}
+			}
+			final int index = layout.childAt(parent, x - _view.getRootX() - layout.getX(parent));
+			return index < 0 ? null : ((CompoundExpression) parent).getChildren().get(index);
+		}
+
+		/**
+		 * Computes where the focused expression can be dropped, and shows its ghost.
+		 */
+		private void startDrag () {
+			final Expression focus = _view.getFocus();
+			if (focus == null || focus.getParent() == null || focus.getParent().getChildren().size() < 2) {
+				return;
+			}
+			final ExpressionLayout layout = _view.getLayout();
+			_orderings = new SiblingOrderings(layout, focus);
+			_position = _orderings.getPosition();
+			_parentX = layout.getX(_orderings.getParent());
+			_startX = _parentX + _orderings.getStart(_position);
+
+			final double width = layout.getWidth(focus);
+			_ghost.setText(ExpressionLayout.getText(focus));
+			_ghost.setMinWidth(width);
+			_ghost.setPrefWidth(width);
+			_ghost.setMaxWidth(width);
+			final Node rootNode = _view.getNode(_rootExpression);
+			_ghost.setLayoutY(rootNode.getBoundsInParent().getMinY());
+			_marker.setLayoutY(rootNode.getBoundsInParent().getMinY());
+			_marker.setHeight(rootNode.getBoundsInParent().getHeight());
+			_view.getOverlay().getChildren().setAll(_ghost, _marker);
+		}
+
+		/**
+		 * Moves the ghost with the mouse, and the marker to the closest position.
+		 */
+		private void drag (double x) {
+			final double start = _startX + x - _pressX;
+			_ghost.setLayoutX(_view.getRootX() + start);
+			_position = _orderings.getClosestPosition(start - _parentX);
+			_marker.setLayoutX(_view.getRootX() + _parentX + _orderings.getStart(_position) - _marker.getWidth() / 2);
+		}
+
+		/**
+		 * Moves the focused expression to the marked position, and updates the text
+		 * to match; the edit is re-parsed like any other.
+		 */
+		private void drop () {
+			_view.getOverlay().getChildren().clear();
+			final Expression focus = _orderings.getExpression();
+			if (_position != _orderings.getPosition()) {
+				_orderings.apply(_position);
+				_view.setExpression(_rootExpression);
+				_view.setFocus(focus);
+				_textField.setText(ExpressionLayout.getText(_rootExpression));
 			}
+			_orderings = null;
 		}
 	}
 
@@ -48,9 +160,17 @@ public class ExpressionEditor extends Application {
 	private static final String EXAMPLE_EXPRESSION = "2*x+3*y+4*z+(7+6*z)";
 
 	/**
-	 * Parser used for parsing expressions.
+	 * Parser used for parsing expressions. It remembers the last expression, so that
+	 * edits only re-parse the affected part of it. The view still gets a new copy of
+	 * the whole tree after every edit, since the parser's own tree is edited on the
+	 * worker thread of the parseService.
 	 */
-	private final ExpressionParser expressionParser = new SimpleExpressionParser();
+	private final IncrementalExpressionParser expressionParser = new IncrementalExpressionParser();
+
+	/**
+	 * Runs the expressionParser off the JavaFX application thread.
+	 */
+	private AsyncParseService parseService;
 
 	@Override
 	public void start (Stage primaryStage) {
@@ -62,36 +182,28 @@ public class ExpressionEditor extends Application {
 		final Button button = new Button("Parse");
 		queryPane.getChildren().add(textField);
 
-		final Pane expressionPane = new Pane();
+		// Only the visible part of the expression gets JavaFX nodes, so the trees need none of their own
+		final ExpressionView expressionView = new ExpressionView(WINDOW_WIDTH/4, WINDOW_HEIGHT/3);
+
+		// Parse in the background; the latest result is shown on the JavaFX application thread
+		parseService = new AsyncParseService(expressionParser, false, Platform::runLater, expression -> {
+			// Success! Show the expression in the expressionView
+			showExpression(expressionView, textField, expression);
+			textField.setStyle("-fx-text-fill: black");
+		}, epe -> {
+			// If we can't parse the expression, then mark it in red
+			textField.setStyle("-fx-text-fill: red");
+		});
 
 		// Add the callback to handle when the Parse button is pressed	
 		button.setOnMouseClicked(new EventHandler<MouseEvent>() {
 			public void handle (MouseEvent e) {
-				// Try to parse the expression
-				try {
-					// Success! Add the expression's Node to the expressionPane
-					final Expression expression = expressionParser.parse(textField.getText(), true);
-					System.out.println(expression.convertToString(0));
-					expression.setNode();
-					expressionPane.getChildren().clear();
-					expressionPane.getChildren().add(expression.getNode());
-					expression.getNode().setLayoutX(WINDOW_WIDTH/4);
-					expression.getNode().setLayoutY(WINDOW_HEIGHT/3);
-
-					// If the parsed expression is a CompoundExpression, then register some callbacks
-					if (expression instanceof CompoundExpression) {
-						((Pane) expression.getNode()).setBorder(Expression.NO_BORDER);
-						final MouseEventHandler eventHandler = new MouseEventHandler(expressionPane, (CompoundExpression) expression);
-						expressionPane.setOnMousePressed(eventHandler);
-						expressionPane.setOnMouseDragged(eventHandler);
-						expressionPane.setOnMouseReleased(eventHandler);
-					}
-				} catch (ExpressionParseException epe) {
-					// If we can't parse the expression, then mark it in red
-					textField.setStyle("-fx-text-fill: red");
-				}
+				parseService.submit(textField.getText());
 			}
 		});
+
+		// Re-parse the edited part of the expression whenever the text changes
+		textField.textProperty().addListener((observable, oldText, newText) -> parseService.submit(newText));
 		queryPane.getChildren().add(button);
 
 		// Reset the color to black whenever the user presses a key
@@ -99,9 +211,35 @@ public class ExpressionEditor extends Application {
 		
 		final BorderPane root = new BorderPane();
 		root.setTop(queryPane);
-		root.setCenter(expressionPane);
+		root.setCenter(expressionView);
 
 		primaryStage.setScene(new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT));
 		primaryStage.show();
 	}
+
+	@Override
+	public void stop () {
+		if (parseService != null) {
+			parseService.shutdown();
+		}
+	}
+
+	/**
+	 * Shows the expression in the expressionView.
+	 * @param expressionView the view in which to show the expression
+	 * @param textField the text field from which the expression was parsed
+	 * @param expression the expression to show
+	 */
+	private void showExpression (ExpressionView expressionView, TextField textField, Expression expression) {
+		expressionView.setExpression(expression);
+
+		// If the parsed expression is a CompoundExpression, then register some callbacks
+		if (expression instanceof CompoundExpression) {
+			final Pane expressionPane = expressionView.getViewport();
+			final MouseEventHandler eventHandler = new MouseEventHandler(expressionView, textField, (CompoundExpression) expression);
+			expressionPane.setOnMousePressed(eventHandler);
+			expressionPane.setOnMouseDragged(eventHandler);
+			expressionPane.setOnMouseReleased(eventHandler);
+		}
+	}
 }
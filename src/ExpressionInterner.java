@@ -0,0 +1,313 @@
+import javafx.scene.Node;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * A factory of hash-consed expression trees: immutable expressions in which every
+ * distinct subtree exists exactly once, so that e.g. every 2*x built by the same
+ * interner is the same instance. Each expression carries a structural hash computed
+ * when it is built, and two expressions from the same interner are structurally
+ * equal if and only if they are the same object.
+ *
+ * Compound expressions are flattened as they are built, as flatten() would do, so
+ * interned trees are always flat. Because subtrees are shared, interned expressions
+ * have no parent and no JavaFX node. To edit one, either use replaceChild, which
+ * copies only the path from the edited child to the root, or take a mutable
+ * deepCopy() and intern the result again.
+ *
+ * Interners are thread-safe.
+ *
+ */
+public class ExpressionInterner {
+
+    private final ConcurrentHashMap<Interned, Interned> _table = new ConcurrentHashMap<Interned, Interned>();
+
+    /**
+     * Returns the interned literal with the specified value.
+     *
+     * @param value
+     *            the value of the literal [0-9]+ | [a-z]
+     * @return the interned literal
+     */
+    public Expression literal(String value) {
+        return unique(new InternedLiteral(value));
+    }
+
+    /**
+     * Returns the interned additive or multiplicative expression with the specified
+     * children, after splicing in the children of any child with the same operation.
+     *
+     * @param operation
+     *            the operation (* or +)
+     * @param children
+     *            the children, which are interned first if necessary
+     * @return the interned expression
+     */
+    public Expression compound(String operation, List<? extends Expression> children) {
+        if (!"+".equals(operation) && !"*".equals(operation)) {
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        final List<Interned> flattened = new ArrayList<Interned>(children.size());
+        for (Expression child : children) {
+            final Interned interned = canonical(child);
+            if (interned instanceof InternedCompound && operation.equals(((InternedCompound) interned)._label)) {
+                flattened.addAll(((InternedCompound) interned)._children);
+            } else {
+                flattened.add(interned);
+            }
+        }
+        return unique(new InternedCompound(operation, flattened));
+    }
+
+    /**
+     * Returns the interned parenthetical expression around the specified child.
+     *
+     * @param child
+     *            the enclosed expression, which is interned first if necessary
+     * @return the interned expression
+     */
+    public Expression parenthetical(Expression child) {
+        return unique(new InternedCompound("()", Collections.singletonList(canonical(child))));
+    }
+
+    /**
+     * Returns the interned equivalent of the specified expression tree, which may be
+     * an ordinary mutable tree or an interned one.
+     *
+     * @param expression
+     *            the expression to intern
+     * @return the interned, flattened expression
+     */
+    public Expression intern(Expression expression) {
+        return canonical(expression);
+    }
+
+    /**
+     * Returns a copy of the parent in which the child at the specified index is
+     * replaced, sharing every other subtree with the original. Replace the parent in
+     * its own parent in the same way to update a whole tree.
+     *
+     * @param parent
+     *            the interned compound expression
+     * @param index
+     *            the index of the child to replace
+     * @param child
+     *            the new child
+     * @return the interned, flattened copy of the parent
+     */
+    public Expression replaceChild(Expression parent, int index, Expression child) {
+        final InternedCompound compound = (InternedCompound) canonical(parent);
+        final List<Expression> children = new ArrayList<Expression>(compound._children);
+        children.set(index, child);
+        return "()".equals(compound._label) ? parenthetical(child) : compound(compound._label, children);
+    }
+
+    /**
+     * Returns the number of distinct subtrees created by this interner.
+     *
+     * @return the number of interned expressions
+     */
+    public int size() {
+        return _table.size();
+    }
+
+    /**
+     * Returns the interned equivalent of the expression.
+     */
+    private Interned canonical(Expression expression) {
+        if (expression instanceof Interned) {
+            final Interned interned = (Interned) expression;
+            if (interned.interner() == this) {
+                return interned;
+            }
+            return canonical(interned.deepCopy()); // from another interner
+        }
+        if (expression instanceof LiteralExpression) {
+            return (Interned) literal(((LiteralExpression) expression).getValue());
+        }
+        if (expression instanceof ParentheticalExpression) {
+            return (Interned) parenthetical(((ParentheticalExpression) expression).getChildren().get(0));
+        }
+        if (expression instanceof SimpleCompoundExpression) {
+            final SimpleCompoundExpression compound = (SimpleCompoundExpression) expression;
+            return (Interned) compound(compound.getOperation(), compound.getChildren());
+        }
+        throw new IllegalArgumentException("Cannot intern " + expression.getClass().getName());
+    }
+
+    /**
+     * Returns the existing expression equal to the candidate, or the candidate itself
+     * if it is new.
+     */
+    private Interned unique(Interned candidate) {
+        final Interned existing = _table.putIfAbsent(candidate, candidate);
+        return existing != null ? existing : candidate;
+    }
+
+    /**
+     * Common code of interned expressions
+     */
+    private abstract class Interned implements Expression {
+        final int _hash;
+
+        Interned(int hash) {
+            _hash = hash;
+        }
+
+        ExpressionInterner interner() {
+            return ExpressionInterner.this;
+        }
+
+        /**
+         * Returns the structural hash, computed when the expression was built.
+         */
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        /**
+         * Interned expressions are shared by all their parents, so they have none.
+         */
+        public CompoundExpression getParent() {
+            return null;
+        }
+
+        public void setParent(CompoundExpression parent) {
+            throw new UnsupportedOperationException("Interned expressions are shared and have no parent");
+        }
+
+        /**
+         * Interned expressions are shared, so they have no JavaFX node.
+         */
+        public Node getNode() {
+            return null;
+        }
+
+        public void setNode() {
+            throw new UnsupportedOperationException("Interned expressions are shared; use deepCopy()");
+        }
+
+        /**
+         * Does nothing, since interned expressions are flattened when they are built.
+         */
+        public void flatten() {
+        }
+    }
+
+    /**
+     * An interned literal
+     */
+    private class InternedLiteral extends Interned {
+        private final String _value;
+        private final LiteralExpression _literal; // holds the converted value
+
+        InternedLiteral(String value) {
+            super(value.hashCode());
+            _value = value;
+            _literal = new LiteralExpression(value);
+        }
+
+        public long evaluate(long[] variables) {
+            return _literal.evaluate(variables);
+        }
+
+        public String getValue() {
+            return _value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InternedLiteral && _value.equals(((InternedLiteral) o)._value);
+        }
+
+        /**
+         * Returns an ordinary, mutable copy of this literal.
+         */
+        public Expression deepCopy() {
+            return new LiteralExpression(_value);
+        }
+
+        public void convertToString(Appendable out, int indentLevel) throws IOException {
+            Expression.indent(out, indentLevel);
+            out.append(_value).append('\n');
+        }
+    }
+
+    /**
+     * An interned additive, multiplicative or parenthetical expression. Its children
+     * are interned, so they are compared by identity.
+     */
+    private class InternedCompound extends Interned implements CompoundExpression {
+        private final String _label;
+        private final List<Interned> _children;
+
+        InternedCompound(String label, List<Interned> children) {
+            super(31 * label.hashCode() + children.hashCode());
+            _label = label;
+            _children = Collections.unmodifiableList(new ArrayList<Interned>(children));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof InternedCompound)) {
+                return false;
+            }
+            final InternedCompound other = (InternedCompound) o;
+            if (_hash != other._hash || !_label.equals(other._label) || _children.size() != other._children.size()) {
+                return false;
+            }
+            for (int i = 0; i < _children.size(); i++) {
+                if (_children.get(i) != other._children.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<Expression> getChildren() {
+            return (List<Expression>) (List<? extends Expression>) _children;
+        }
+
+        public void addSubexpression(Expression subexpression) {
+            throw new UnsupportedOperationException("Interned expressions are immutable; use replaceChild");
+        }
+
+        public long evaluate(long[] variables) {
+            if ("()".equals(_label)) {
+                return _children.get(0).evaluate(variables);
+            }
+            final boolean additive = "+".equals(_label);
+            long result = additive ? 0 : 1;
+            for (Interned child : _children) {
+                result = additive ? result + child.evaluate(variables) : result * child.evaluate(variables);
+            }
+            return result;
+        }
+
+        /**
+         * Returns an ordinary, mutable copy of this expression, which can be edited
+         * without affecting the other users of the shared subtrees.
+         */
+        public Expression deepCopy() {
+            final AbstractCompoundExpression copy = "()".equals(_label) ? new ParentheticalExpression()
+                    : new SimpleCompoundExpression(_label);
+            for (Interned child : _children) {
+                copy.addSubexpression(child.deepCopy());
+            }
+            return copy;
+        }
+
+        public void convertToString(Appendable out, int indentLevel) throws IOException {
+            Expression.indent(out, indentLevel);
+            out.append(_label).append('\n');
+            for (Interned child : _children) {
+                child.convertToString(out, indentLevel + 1);
+            }
+        }
+    }
+}
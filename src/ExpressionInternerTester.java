@@ -0,0 +1,62 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests that ExpressionInterner shares identical subtrees and keeps trees flattened.
+ */
+public class ExpressionInternerTester {
+	private ExpressionParser _parser;
+	private ExpressionInterner _interner;
+
+	@Before
+	/**
+	 * Instantiates the parser and an empty interner
+	 */
+	public void setUp () {
+		_parser = new LinearExpressionParser();
+		_interner = new ExpressionInterner();
+	}
+
+	@Test
+	/**
+	 * Verifies that equal subtrees of different expressions are the same instance.
+	 */
+	public void testSharing () throws ExpressionParseException {
+		final Expression first = _interner.intern(_parser.parse("2*x+3*(2*x)", false));
+		final Expression second = _interner.intern(_parser.parse("2*x+3*(2*x)", false));
+		assertSame(first, second);
+		final List<Expression> terms = ((CompoundExpression) first).getChildren();
+		final Expression parenthesized = ((CompoundExpression) terms.get(1)).getChildren().get(1);
+		assertSame(terms.get(0), ((CompoundExpression) parenthesized).getChildren().get(0));
+		assertEquals(_parser.parse("2*x+3*(2*x)", false).convertToString(0), first.convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that compound expressions are flattened as they are built.
+	 */
+	public void testFlatten () throws ExpressionParseException {
+		final Expression sum = _interner.compound("+", Arrays.asList(
+		        _interner.compound("+", Arrays.asList(_interner.literal("1"), _interner.literal("2"))),
+		        _interner.literal("3")));
+		assertSame(_interner.intern(_parser.parse("1+2+3", false)), sum);
+	}
+
+	@Test
+	/**
+	 * Verifies that replacing a shared subtree copies only the path to it.
+	 */
+	public void testReplaceChild () throws ExpressionParseException {
+		final Expression original = _interner.intern(_parser.parse("2*x+3*y+4", false));
+		final Expression edited = _interner.replaceChild(original, 1, _interner.literal("z"));
+		assertEquals(_parser.parse("2*x+3*y+4", false).convertToString(0), original.convertToString(0));
+		assertSame(_interner.intern(_parser.parse("2*x+z+4", false)), edited);
+		assertSame(((CompoundExpression) original).getChildren().get(0), ((CompoundExpression) edited).getChildren().get(0));
+
+		final Expression copy = original.deepCopy();
+		((AbstractCompoundExpression) copy).addSubexpression(new LiteralExpression("5"));
+		assertEquals(3, ((CompoundExpression) original).getChildren().size());
+	}
+}
@@ -0,0 +1,281 @@
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+/**
+ *
+ * The horizontal layout of an expression tree rendered on one line, as the text
+ * of its literals and operators: a sum or product shows its children separated by
+ * its operation, and a parenthetical expression shows its child between ( and ).
+ *
+ * The layout is computed once per tree, from the width of each piece of text, and
+ * stores the width of every expression and the offset of every child from the
+ * start of its parent. It can then answer where any expression is, and which
+ * children of a compound expression overlap a horizontal range, in logarithmic
+ * time -- without creating or measuring any JavaFX node.
+ *
+ * The tree must not be changed while its layout is in use.
+ *
+ */
+public class ExpressionLayout {
+	private final Expression _root;
+	private final ToDoubleFunction<String> _textWidth;
+	private final IdentityHashMap<Expression, Double> _widths = new IdentityHashMap<Expression, Double>();
+	private final IdentityHashMap<Expression, double[]> _offsets = new IdentityHashMap<Expression, double[]>();
+
+	/**
+	 * Computes the layout of the tree.
+	 *
+	 * @param root
+	 *            the expression to lay out, made of LiteralExpression,
+	 *            SimpleCompoundExpression and ParentheticalExpression
+	 * @param textWidth
+	 *            returns the width of a piece of text, e.g. a literal or "+"
+	 */
+	public ExpressionLayout(Expression root, ToDoubleFunction<String> textWidth) {
+		_root = root;
+		_textWidth = textWidth;
+		// post-order with an explicit stack, so that the children are done before their parents
+		final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+		final ArrayDeque<Expression> postOrder = new ArrayDeque<Expression>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Expression expression = stack.pop();
+			postOrder.push(expression);
+			if (expression instanceof CompoundExpression) {
+				for (Expression child : ((CompoundExpression) expression).getChildren()) {
+					stack.push(child);
+				}
+			}
+		}
+		while (!postOrder.isEmpty()) {
+			measure(postOrder.pop());
+		}
+	}
+
+	/**
+	 * Computes the width of the expression, and the offsets of its children.
+	 */
+	private void measure(Expression expression) {
+		if (!(expression instanceof CompoundExpression)) {
+			_widths.put(expression, _textWidth.applyAsDouble(((LiteralExpression) expression).getValue()));
+			return;
+		}
+		final List<Expression> children = ((CompoundExpression) expression).getChildren();
+		final double[] offsets = new double[children.size()];
+		double x = isParenthetical(expression) ? _textWidth.applyAsDouble("(") : 0;
+		final double separator = isParenthetical(expression) ? 0 : _textWidth.applyAsDouble(getOperation(expression));
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = x;
+			x += _widths.get(children.get(i)) + separator;
+		}
+		if (isParenthetical(expression)) {
+			x += _textWidth.applyAsDouble(")");
+		} else if (offsets.length > 0) {
+			x -= separator;
+		}
+		_offsets.put(expression, offsets);
+		_widths.put(expression, x);
+	}
+
+	/**
+	 * Returns whether the expression is shown in parentheses.
+	 *
+	 * @param expression
+	 *            a compound expression of the tree
+	 * @return whether it is a ParentheticalExpression
+	 */
+	public static boolean isParenthetical(Expression expression) {
+		return expression instanceof ParentheticalExpression;
+	}
+
+	/**
+	 * Returns the operation shown between the children of a compound expression.
+	 *
+	 * @param expression
+	 *            a compound expression of the tree
+	 * @return the operation (* or +), or the empty string for parentheses
+	 */
+	public static String getOperation(Expression expression) {
+		return expression instanceof SimpleCompoundExpression ? ((SimpleCompoundExpression) expression).getOperation() : "";
+	}
+
+	/**
+	 * Returns the text of the expression on one line, as it is laid out.
+	 *
+	 * @param expression
+	 *            an expression made of LiteralExpression, SimpleCompoundExpression
+	 *            and ParentheticalExpression
+	 * @return its text, e.g. 2*(x+1)
+	 */
+	public static String getText(Expression expression) {
+		final StringBuilder text = new StringBuilder();
+		// the stack holds expressions still to be written, and the strings between them
+		final ArrayDeque<Object> stack = new ArrayDeque<Object>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			final Object top = stack.pop();
+			if (top instanceof String) {
+				text.append((String) top);
+			} else if (!(top instanceof CompoundExpression)) {
+				text.append(((LiteralExpression) top).getValue());
+			} else {
+				final List<Expression> children = ((CompoundExpression) top).getChildren();
+				if (isParenthetical((Expression) top)) {
+					stack.push(")");
+				}
+				for (int i = children.size() - 1; i >= 0; i--) {
+					stack.push(children.get(i));
+					if (i > 0) {
+						stack.push(getOperation((Expression) top));
+					}
+				}
+				if (isParenthetical((Expression) top)) {
+					stack.push("(");
+				}
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns the expression that was laid out.
+	 *
+	 * @return the root of the tree
+	 */
+	public Expression getRoot() {
+		return _root;
+	}
+
+	/**
+	 * Returns the width of the text of the expression.
+	 *
+	 * @param expression
+	 *            an expression of the tree
+	 * @return its width
+	 */
+	public double getWidth(Expression expression) {
+		return _widths.get(expression);
+	}
+
+	/**
+	 * Returns the width of a piece of text, as measured by the layout.
+	 *
+	 * @param text
+	 *            the text, e.g. an operation
+	 * @return its width
+	 */
+	public double getTextWidth(String text) {
+		return _textWidth.applyAsDouble(text);
+	}
+
+	/**
+	 * Returns the offsets of the children of a compound expression from its start.
+	 * The array must not be modified.
+	 *
+	 * @param expression
+	 *            a compound expression of the tree
+	 * @return the offset of each child
+	 */
+	public double[] getChildOffsets(Expression expression) {
+		return _offsets.get(expression);
+	}
+
+	/**
+	 * Returns the offset of the expression from the start of the root, following its
+	 * parents.
+	 *
+	 * @param expression
+	 *            an expression of the tree
+	 * @return its x coordinate relative to the root
+	 */
+	public double getX(Expression expression) {
+		double x = 0;
+		while (expression != _root) {
+			final CompoundExpression parent = expression.getParent();
+			x += _offsets.get(parent)[indexOf(parent, expression)];
+			expression = parent;
+		}
+		return x;
+	}
+
+	private static int indexOf(CompoundExpression parent, Expression child) {
+		final List<Expression> children = parent.getChildren();
+		for (int i = 0; i < children.size(); i++) {
+			if (children.get(i) == child) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Not a child of its parent");
+	}
+
+	/**
+	 * Returns the child of a compound expression that contains an offset from the
+	 * start of the expression, by binary search.
+	 *
+	 * @param expression
+	 *            a compound expression of the tree
+	 * @param x
+	 *            an offset from the start of the expression
+	 * @return the index of the child, or -1 if x is on an operator, a parenthesis
+	 *         or outside of the expression
+	 */
+	public int childAt(Expression expression, double x) {
+		final int index = firstChildEndingAfter(expression, x);
+		if (index < _offsets.get(expression).length && _offsets.get(expression)[index] <= x) {
+			return index;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first child of a compound expression that ends after
+	 * the specified offset from the start of the expression, by binary search.
+	 *
+	 * @param expression
+	 *            a compound expression of the tree
+	 * @param x
+	 *            an offset from the start of the expression
+	 * @return the index of the first child that is not entirely before x, or the
+	 *         number of children if there is none
+	 */
+	public int firstChildEndingAfter(Expression expression, double x) {
+		final double[] offsets = _offsets.get(expression);
+		final List<Expression> children = ((CompoundExpression) expression).getChildren();
+		int low = 0, high = offsets.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (offsets[mid] + _widths.get(children.get(mid)) <= x) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the index of the last child of a compound expression that starts
+	 * before the specified offset from the start of the expression, by binary
+	 * search.
+	 *
+	 * @param expression
+	 *            a compound expression of the tree
+	 * @param x
+	 *            an offset from the start of the expression
+	 * @return the index of the last child that is not entirely after x, or -1 if
+	 *         there is none
+	 */
+	public int lastChildStartingBefore(Expression expression, double x) {
+		final double[] offsets = _offsets.get(expression);
+		int low = -1, high = offsets.length - 1;
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (offsets[mid] < x) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+}
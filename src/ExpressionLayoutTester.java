@@ -0,0 +1,52 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests ExpressionLayout with every character one unit wide, so that widths and offsets are text positions.
+ */
+public class ExpressionLayoutTester {
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	private ExpressionLayout layout (Expression expression) {
+		return new ExpressionLayout(expression, String::length);
+	}
+
+	@Test
+	/**
+	 * Verifies the widths and offsets of a tree against the positions in its text.
+	 */
+	public void testWidthsAndOffsets () throws ExpressionParseException {
+		final String text = "2*x+33*y+(7+6*z)";
+		final CompoundExpression root = (CompoundExpression) _parser.parse(text, false);
+		final ExpressionLayout layout = layout(root);
+		assertEquals(text.length(), layout.getWidth(root), 0);
+		assertArrayEquals(new double[] { 0, 4, 9 }, layout.getChildOffsets(root), 0);
+		final CompoundExpression parenthetical = (CompoundExpression) root.getChildren().get(2);
+		assertEquals("(7+6*z)".length(), layout.getWidth(parenthetical), 0);
+		assertArrayEquals(new double[] { 1 }, layout.getChildOffsets(parenthetical), 0);
+		final CompoundExpression product = (CompoundExpression) ((CompoundExpression) parenthetical.getChildren().get(0)).getChildren().get(1);
+		assertEquals(text.indexOf("6*z"), layout.getX(product), 0);
+		assertEquals(text.indexOf("z"), layout.getX(product.getChildren().get(1)), 0);
+	}
+
+	@Test
+	/**
+	 * Verifies the binary searches for the children overlapping a range.
+	 */
+	public void testVisibleChildren () throws ExpressionParseException {
+		final Expression root = _parser.parse("1+22+333+4444", false); // children at 0, 2, 5, 9
+		final ExpressionLayout layout = layout(root);
+		assertEquals(0, layout.firstChildEndingAfter(root, -5));
+		assertEquals(0, layout.firstChildEndingAfter(root, 0.5));
+		assertEquals(1, layout.firstChildEndingAfter(root, 1));
+		assertEquals(2, layout.firstChildEndingAfter(root, 4));
+		assertEquals(4, layout.firstChildEndingAfter(root, 13));
+		assertEquals(-1, layout.lastChildStartingBefore(root, 0));
+		assertEquals(0, layout.lastChildStartingBefore(root, 2));
+		assertEquals(1, layout.lastChildStartingBefore(root, 2.5));
+		assertEquals(3, layout.lastChildStartingBefore(root, 100));
+		assertEquals(1, layout.childAt(root, 3));
+		assertEquals(-1, layout.childAt(root, 4)); // the second +
+		assertEquals(-1, layout.childAt(root, 13));
+	}
+}
@@ -0,0 +1,238 @@
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * A reusable lexer for the expression grammar, which scans its input in place.
+ *
+ * The input is a CharSequence, or the ASCII bytes of a ByteBuffer (e.g. a mapped
+ * file), and the tokens are written into an int array that is reused from one
+ * input to the next: token i occupies the entries 3i, 3i+1 and 3i+2, which hold
+ * its kind, its start and its end. No substrings are created and no exceptions
+ * are thrown; characters that cannot start a token become INVALID tokens, and it
+ * is up to the parser to reject them.
+ *
+ * Spaces separate tokens, except that spaces between digits are part of the
+ * number, since the parsers remove all spaces before parsing: "1 2" is the number
+ * 12, spanning three characters.
+ *
+ * A lexer is not thread-safe, but parsers can keep one per parse or per thread.
+ *
+ */
+public class ExpressionLexer {
+	// token kinds
+	public static final int NUMBER = 0, VARIABLE = 1, PLUS = 2, TIMES = 3, OPEN = 4, CLOSE = 5, INVALID = 6;
+
+	/**
+	 * The number of ints per token
+	 */
+	public static final int TOKEN_SIZE = 3;
+
+	// instance variables
+	private int[] _tokens = new int[16 * TOKEN_SIZE];
+	private int _count;
+	private CharSequence _chars;
+	private ByteBuffer _bytes;
+
+	/**
+	 * Tokenizes the whole sequence.
+	 *
+	 * @param input
+	 *            the text to tokenize
+	 * @return the number of tokens
+	 */
+	public int tokenize(CharSequence input) {
+		return tokenize(input, 0, input.length());
+	}
+
+	/**
+	 * Tokenizes the characters in [start, end) of the sequence. Token offsets are
+	 * indices into the sequence.
+	 *
+	 * @param input
+	 *            the text to tokenize
+	 * @param start
+	 *            the index of the first character
+	 * @param end
+	 *            the index after the last character
+	 * @return the number of tokens
+	 */
+	public int tokenize(CharSequence input, int start, int end) {
+		_chars = input;
+		_bytes = null;
+		return scan(start, end);
+	}
+
+	/**
+	 * Tokenizes the ASCII bytes between the position and the limit of the buffer,
+	 * without changing its position. Token offsets are absolute indices into the
+	 * buffer.
+	 *
+	 * @param input
+	 *            the text to tokenize
+	 * @return the number of tokens
+	 */
+	public int tokenize(ByteBuffer input) {
+		_chars = null;
+		_bytes = input;
+		return scan(input.position(), input.limit());
+	}
+
+	/**
+	 * Returns the character at the index of the current input.
+	 */
+	private char charAt(int index) {
+		return _chars != null ? _chars.charAt(index) : (char) (_bytes.get(index) & 0xff);
+	}
+
+	private int scan(int start, int end) {
+		_count = 0;
+		int i = start;
+		while (i < end) {
+			final char c = charAt(i);
+			if (c == ' ') {
+				i++;
+				continue;
+			}
+			final int tokenStart = i++;
+			final int kind;
+			if (c >= '0' && c <= '9') {
+				// [0-9]+, continuing across spaces that are followed by another digit
+				int last = i;
+				while (i < end) {
+					final char next = charAt(i);
+					if (next >= '0' && next <= '9') {
+						last = ++i;
+					} else if (next == ' ') {
+						i++;
+					} else {
+						break;
+					}
+				}
+				i = last;
+				kind = NUMBER;
+			} else if (c >= 'a' && c <= 'z') {
+				kind = VARIABLE;
+			} else if (c == '+') {
+				kind = PLUS;
+			} else if (c == '*') {
+				kind = TIMES;
+			} else if (c == '(') {
+				kind = OPEN;
+			} else if (c == ')') {
+				kind = CLOSE;
+			} else {
+				kind = INVALID;
+			}
+			add(kind, tokenStart, i);
+		}
+		return _count;
+	}
+
+	private void add(int kind, int start, int end) {
+		int index = _count * TOKEN_SIZE;
+		if (index == _tokens.length) {
+			final int[] tokens = new int[_tokens.length * 2];
+			System.arraycopy(_tokens, 0, tokens, 0, index);
+			_tokens = tokens;
+		}
+		_tokens[index] = kind;
+		_tokens[index + 1] = start;
+		_tokens[index + 2] = end;
+		_count++;
+	}
+
+	/**
+	 * Returns the number of tokens of the last input.
+	 *
+	 * @return the number of tokens
+	 */
+	public int getTokenCount() {
+		return _count;
+	}
+
+	/**
+	 * Returns the token array, which holds the kind, start and end of every token of
+	 * the last input in getTokenCount() * TOKEN_SIZE entries. The array is reused by
+	 * the next call of tokenize.
+	 *
+	 * @return the token array
+	 */
+	public int[] getTokens() {
+		return _tokens;
+	}
+
+	/**
+	 * Returns the kind, start or end of a token of the last input.
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the kind, e.g. NUMBER, or the index of the first character of the
+	 *         token, or the index after its last character
+	 */
+	public int getKind(int token) {
+		return _tokens[token * TOKEN_SIZE];
+	}
+
+	public int getStart(int token) {
+		return _tokens[token * TOKEN_SIZE + 1];
+	}
+
+	public int getEnd(int token) {
+		return _tokens[token * TOKEN_SIZE + 2];
+	}
+
+	/**
+	 * Returns the value of a NUMBER token, skipping its spaces.
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the value, or -1 if it does not fit in a long
+	 */
+	public long getNumber(int token) {
+		long value = 0;
+		for (int i = getStart(token); i < getEnd(token); i++) {
+			final char c = charAt(i);
+			if (c != ' ') {
+				if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+					return -1;
+				}
+				value = value * 10 + (c - '0');
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns whether the characters in [start, end) of the sequence are exactly one
+	 * literal of the grammar L -> [0-9]+ | [a-z], where numbers must fit in an int
+	 * (which is what the parsers accept). Unlike tokenize, spaces are not allowed.
+	 *
+	 * @param input
+	 *            the text to check
+	 * @param start
+	 *            the index of the first character
+	 * @param end
+	 *            the index after the last character
+	 * @return whether the range is a literal
+	 */
+	public static boolean isLiteral(CharSequence input, int start, int end) {
+		if (end - start == 1 && input.charAt(start) >= 'a' && input.charAt(start) <= 'z') {
+			return true;
+		}
+		if (start == end) {
+			return false;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			final char c = input.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+			value = value * 10 + (c - '0');
+			if (value > Integer.MAX_VALUE) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,70 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests ExpressionLexer on character and byte input.
+ */
+public class ExpressionLexerTester {
+	/**
+	 * Returns the tokens of the last input as kind:start-end, separated by spaces.
+	 */
+	private static String describe (ExpressionLexer lexer) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lexer.getTokenCount(); i++) {
+			sb.append(i == 0 ? "" : " ").append(lexer.getKind(i)).append(':').append(lexer.getStart(i)).append('-').append(lexer.getEnd(i));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	/**
+	 * Verifies the tokens of a CharSequence, including a number with spaces and an invalid character.
+	 */
+	public void testCharSequence () {
+		final ExpressionLexer lexer = new ExpressionLexer();
+		assertEquals(8, lexer.tokenize(new StringBuilder("12 3*(x + y)$")));
+		assertEquals("0:0-4 3:4-5 4:5-6 1:6-7 2:8-9 1:10-11 5:11-12 6:12-13", describe(lexer));
+		assertEquals(123, lexer.getNumber(0));
+		assertEquals(1, lexer.tokenize("  7  ", 0, 5));
+		assertEquals("0:2-3", describe(lexer));
+		lexer.tokenize("99999999999999999999");
+		assertEquals(-1, lexer.getNumber(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that byte input gives the same tokens at absolute offsets.
+	 */
+	public void testByteBuffer () {
+		final ExpressionLexer lexer = new ExpressionLexer();
+		final ByteBuffer buffer = ByteBuffer.wrap("##2*(x+10)".getBytes(StandardCharsets.US_ASCII));
+		buffer.position(2);
+		assertEquals(7, lexer.tokenize(buffer));
+		assertEquals("0:2-3 3:3-4 4:4-5 1:5-6 2:6-7 0:7-9 5:9-10", describe(lexer));
+		assertEquals(10, lexer.getNumber(5));
+		assertEquals(2, buffer.position());
+	}
+
+	@Test
+	/**
+	 * Verifies the literal check used by the parsers, which accepts exactly [0-9]+ within an int, and [a-z].
+	 */
+	public void testIsLiteral () throws ExpressionParseException {
+		assertTrue(ExpressionLexer.isLiteral("x", 0, 1));
+		assertTrue(ExpressionLexer.isLiteral("(2147483647)", 1, 11));
+		assertFalse(ExpressionLexer.isLiteral("2147483648", 0, 10));
+		assertFalse(ExpressionLexer.isLiteral("+5", 0, 2));
+		assertFalse(ExpressionLexer.isLiteral("X", 0, 1));
+		assertFalse(ExpressionLexer.isLiteral("", 0, 0));
+		for (String str : new String[] { "1++5", "-5", "$" }) {
+			try {
+				new SimpleExpressionParser().parse(str, false);
+				fail("Expected ExpressionParseException for " + str);
+			} catch (ExpressionParseException epe) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * Receives the measurements of an InstrumentedExpressionParser. Sinks are called
+ * on the threads that parse, so they must be thread-safe and should be cheap.
+ */
+interface ExpressionMetricsSink {
+	/**
+	 * Records one parse.
+	 * @param input the string that was parsed
+	 * @param nodeCount the number of nodes of the tree, or 0 if the string could not be parsed
+	 * @param splitAttempts how many times the A and M rules tried to split a string on an operator, or -1 if the parser does not tell
+	 * @param nanos how long the parse took, in nanoseconds
+	 * @param succeeded whether the string could be parsed
+	 */
+	void recordParse (String input, int nodeCount, long splitAttempts, long nanos, boolean succeeded);
+
+	/**
+	 * Records one operation on a tree, e.g. flatten or deepCopy.
+	 * @param operation the name of the operation
+	 * @param nodeCount the number of nodes of the tree it was applied to
+	 * @param nanos how long the operation took, in nanoseconds
+	 */
+	void recordOperation (String operation, int nodeCount, long nanos);
+}
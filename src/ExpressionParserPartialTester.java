@@ -103,4 +103,18 @@ public class ExpressionParserPartialTester {
 		final String expressionStr = "()()";
 		_parser.parse(expressionStr, false);
 	}
+
+	@Test
+	/**
+	 * Verifies that streaming an expression tree to a Writer gives the same result as convertToString.
+	 */
+	public void testConvertToStringWriter () throws ExpressionParseException, IOException {
+		final Expression expression = _parser.parse("4*(z+5*x)", false);
+		final StringWriter writer = new StringWriter();
+		expression.convertToString(writer, 1);
+		assertEquals(expression.convertToString(1), writer.toString());
+		final StringBuffer sb = new StringBuffer();
+		expression.convertToString(sb, 1);
+		assertEquals(expression.convertToString(1), sb.toString());
+	}
 }
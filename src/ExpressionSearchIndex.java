@@ -0,0 +1,408 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ *
+ * An inverted index from the subexpressions of a corpus of expression trees to
+ * the ids of the trees that contain them, to answer queries such as "which
+ * expressions contain x*y" or "which use the variable q".
+ *
+ * Every subtree of an indexed tree, including its variables and numbers, is keyed
+ * by a canonical 64-bit hash that does not depend on the order of the children of
+ * sums and products, so y*x finds x*y. Trees are expected to be flattened, as the
+ * parsers return them, and queries match whole subtrees: x*y finds x*y and
+ * 2*(x*y), but not x*y*z, whose flattened product has no x*y child. Hashes of
+ * different subtrees may collide with a probability of about n^2 / 2^65 for n
+ * distinct subtrees, in which case a query also returns the trees of the other
+ * subtree.
+ *
+ * The ids of the trees with a given key are kept in a CompressedBitmap, and a
+ * conjunctive query intersects the bitmaps of its subterms from the smallest one
+ * up, stopping as soon as the result is empty. Trees are added and removed one at a
+ * time; removing a tree takes the tree, since the index keeps no list of the keys
+ * of each id.
+ *
+ * save() writes the index to a file, with a directory of the keys sorted by hash
+ * followed by the serialized bitmaps, and load() maps such a file into memory, so
+ * that startup only reads the header: queries binary search the directory and
+ * decode the bitmaps they need, and a bitmap is only copied to the heap when it
+ * is modified. Files are limited to 2 GB, the size of one mapping.
+ *
+ * Indexes are not thread-safe, but any number of threads may query an index that
+ * is not being modified.
+ *
+ */
+public class ExpressionSearchIndex {
+	// file format
+	private static final int MAGIC = 0x45585049; // "EXPI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int DIRECTORY_ENTRY_SIZE = 16;
+
+	// hash seeds of the kinds of expressions
+	private static final long LITERAL = 0x5851F42D4C957F2DL, PARENTHETICAL = 0x14057B7EF767814FL;
+	private static final long ADDITIVE = 0xC2B2AE3D27D4EB4FL, MULTIPLICATIVE = 0x165667B19E3779F9L;
+
+	// instance variables
+	private final HashMap<Long, CompressedBitmap> _bitmaps = new HashMap<Long, CompressedBitmap>();
+	// the mapped file this index was loaded from, or null; a key in _bitmaps overrides it
+	private final ByteBuffer _mapped;
+	private final int _mappedKeyCount;
+
+	/**
+	 * Constructs an empty index.
+	 */
+	public ExpressionSearchIndex() {
+		this(null, 0);
+	}
+
+	private ExpressionSearchIndex(ByteBuffer mapped, int mappedKeyCount) {
+		_mapped = mapped;
+		_mappedKeyCount = mappedKeyCount;
+	}
+
+	/**
+	 * Adds a tree to the index.
+	 *
+	 * @param id
+	 *            the id of the tree, which must not be negative
+	 * @param expression
+	 *            the root of the tree, made of LiteralExpression,
+	 *            SimpleCompoundExpression and ParentheticalExpression
+	 */
+	public void add(int id, Expression expression) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Negative id " + id);
+		}
+		for (long key : keys(expression)) {
+			CompressedBitmap bitmap = modifiable(key);
+			if (bitmap == null) {
+				bitmap = new CompressedBitmap();
+				_bitmaps.put(key, bitmap);
+			}
+			bitmap.add(id);
+		}
+	}
+
+	/**
+	 * Removes a tree from the index.
+	 *
+	 * @param id
+	 *            the id of the tree
+	 * @param expression
+	 *            the tree that was added with the id, or an equal one
+	 */
+	public void remove(int id, Expression expression) {
+		for (long key : keys(expression)) {
+			final CompressedBitmap bitmap = modifiable(key);
+			if (bitmap != null) {
+				bitmap.remove(id); // an empty bitmap stays, to override the mapped one
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of the trees that contain a subtree equal to the expression,
+	 * up to the order of the children of sums and products.
+	 *
+	 * @param subterm
+	 *            the flattened subtree to look for
+	 * @return a new set of ids
+	 */
+	public CompressedBitmap containing(Expression subterm) {
+		return query(subterm);
+	}
+
+	/**
+	 * Returns the ids of the trees that use a variable.
+	 *
+	 * @param variable
+	 *            the variable, [a-z]
+	 * @return a new set of ids
+	 */
+	public CompressedBitmap withVariable(char variable) {
+		return find(literalHash(String.valueOf(variable)), true);
+	}
+
+	/**
+	 * Returns the ids of the trees that contain all of the subterms.
+	 *
+	 * @param subterms
+	 *            the flattened subtrees to look for
+	 * @return a new set of ids
+	 */
+	public CompressedBitmap query(Expression... subterms) {
+		final List<CompressedBitmap> bitmaps = new ArrayList<CompressedBitmap>(subterms.length);
+		for (Expression subterm : subterms) {
+			final CompressedBitmap bitmap = find(hash(subterm), false);
+			if (bitmap == null || bitmap.isEmpty()) {
+				return new CompressedBitmap();
+			}
+			bitmaps.add(bitmap);
+		}
+		if (bitmaps.isEmpty()) {
+			return new CompressedBitmap();
+		}
+		// intersect the smallest sets first, so that the intermediate results stay small
+		bitmaps.sort(Comparator.comparingInt(CompressedBitmap::getCardinality));
+		CompressedBitmap result = CompressedBitmap.and(bitmaps.get(0), bitmaps.get(0)); // a copy, for a single subterm
+		for (int i = 1; i < bitmaps.size() && !result.isEmpty(); i++) {
+			result = CompressedBitmap.and(result, bitmaps.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the index to a file, replacing it atomically. The file may be the one
+	 * this index was loaded from.
+	 *
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 *             if the file cannot be written, or the index exceeds 2 GB
+	 */
+	public void save(Path file) throws IOException {
+		// the keys and bitmaps, sorted by key
+		final TreeMap<Long, CompressedBitmap> entries = new TreeMap<Long, CompressedBitmap>();
+		for (int i = 0; i < _mappedKeyCount; i++) {
+			final long key = _mapped.getLong(HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE);
+			if (!_bitmaps.containsKey(key)) {
+				entries.put(key, readMapped(i));
+			}
+		}
+		for (Map.Entry<Long, CompressedBitmap> entry : _bitmaps.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				entries.put(entry.getKey(), entry.getValue());
+			}
+		}
+		long size = HEADER_SIZE + (long) DIRECTORY_ENTRY_SIZE * entries.size();
+		for (CompressedBitmap bitmap : entries.values()) {
+			size += bitmap.getSerializedSize();
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Index of " + size + " bytes exceeds 2 GB");
+		}
+
+		final Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				final ByteBuffer directory = ByteBuffer.allocate(HEADER_SIZE + DIRECTORY_ENTRY_SIZE * entries.size());
+				directory.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(0);
+				long offset = directory.capacity();
+				for (Map.Entry<Long, CompressedBitmap> entry : entries.entrySet()) {
+					directory.putLong(entry.getKey()).putLong(offset);
+					offset += entry.getValue().getSerializedSize();
+				}
+				directory.flip();
+				writeFully(channel, directory);
+				final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+				for (CompressedBitmap bitmap : entries.values()) {
+					if (bitmap.getSerializedSize() > buffer.remaining()) {
+						buffer.flip();
+						writeFully(channel, buffer);
+						buffer.clear();
+					}
+					if (bitmap.getSerializedSize() > buffer.capacity()) {
+						final ByteBuffer large = ByteBuffer.allocate(bitmap.getSerializedSize());
+						bitmap.write(large);
+						large.flip();
+						writeFully(channel, large);
+					} else {
+						bitmap.write(buffer);
+					}
+				}
+				buffer.flip();
+				writeFully(channel, buffer);
+				channel.force(false);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Opens an index written by save() by mapping its file into memory. Later
+	 * changes to the index stay in memory until it is saved.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the index
+	 * @throws IOException
+	 *             if the file cannot be read or is not an index
+	 */
+	public static ExpressionSearchIndex load(Path file) throws IOException {
+		final MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Index of " + channel.size() + " bytes exceeds 2 GB");
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+			throw new IOException("Not an expression index: " + file);
+		}
+		if (mapped.getInt(4) != VERSION) {
+			throw new IOException("Unsupported expression index version " + mapped.getInt(4));
+		}
+		final int keyCount = mapped.getInt(8);
+		if (keyCount < 0 || HEADER_SIZE + (long) DIRECTORY_ENTRY_SIZE * keyCount > mapped.capacity()) {
+			throw new IOException("Corrupt expression index: " + keyCount + " keys");
+		}
+		return new ExpressionSearchIndex(mapped, keyCount);
+	}
+
+	/**
+	 * Returns the bitmap of a key to modify it, copying it from the mapped file if
+	 * necessary.
+	 * @return the bitmap, or null if the key has none
+	 */
+	private CompressedBitmap modifiable(long key) {
+		CompressedBitmap bitmap = _bitmaps.get(key);
+		if (bitmap == null) {
+			final int index = findMapped(key);
+			if (index >= 0) {
+				bitmap = readMapped(index);
+				_bitmaps.put(key, bitmap);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns the bitmap of a key, which must not be modified unless it is a copy.
+	 * @param key the key
+	 * @param copy whether to return a new set
+	 * @return the bitmap, or an empty set if copy is true and the key has none, or null
+	 */
+	private CompressedBitmap find(long key, boolean copy) {
+		CompressedBitmap bitmap = _bitmaps.get(key);
+		if (bitmap == null) {
+			final int index = findMapped(key);
+			if (index >= 0) {
+				return readMapped(index); // a new set
+			}
+			return copy ? new CompressedBitmap() : null;
+		}
+		return copy ? CompressedBitmap.and(bitmap, bitmap) : bitmap;
+	}
+
+	/**
+	 * Returns the index of a key in the directory of the mapped file, or -1.
+	 */
+	private int findMapped(long key) {
+		int low = 0, high = _mappedKeyCount - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final long middleKey = _mapped.getLong(HEADER_SIZE + middle * DIRECTORY_ENTRY_SIZE);
+			if (middleKey < key) {
+				low = middle + 1;
+			} else if (middleKey > key) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	private CompressedBitmap readMapped(int index) {
+		final long offset = _mapped.getLong(HEADER_SIZE + index * DIRECTORY_ENTRY_SIZE + 8);
+		final ByteBuffer buffer = _mapped.duplicate(); // a position of its own, for concurrent queries
+		buffer.position((int) offset);
+		return CompressedBitmap.read(buffer);
+	}
+
+	/**
+	 * Returns the distinct hashes of the subtrees of a tree, sorted.
+	 */
+	private static long[] keys(Expression expression) {
+		final long[] hashes = hashSubtrees(expression);
+		Arrays.sort(hashes);
+		int count = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (i == 0 || hashes[i] != hashes[i - 1]) {
+				hashes[count++] = hashes[i];
+			}
+		}
+		return Arrays.copyOf(hashes, count);
+	}
+
+	/**
+	 * Returns the canonical hash of a tree.
+	 */
+	static long hash(Expression expression) {
+		final long[] hashes = hashSubtrees(expression);
+		return hashes[hashes.length - 1];
+	}
+
+	/**
+	 * Returns the canonical hashes of the subtrees of a tree in post-order, so that
+	 * the last one is that of the root. The hashes of the children of the current
+	 * expression are the top of a stack, where the sum of those of a sum or product
+	 * makes its hash independent of the order of its children.
+	 */
+	private static long[] hashSubtrees(Expression root) {
+		final ExpressionTraversal traversal = new ExpressionTraversal(ExpressionTraversal.Order.POST_ORDER);
+		long[] hashes = new long[16];
+		long[] stack = new long[16];
+		int count = 0, depth = 0;
+		for (Expression e = traversal.reset(root); e != null; e = traversal.next()) {
+			final long hash;
+			if (e instanceof LiteralExpression) {
+				hash = literalHash(((LiteralExpression) e).getValue());
+			} else if (e instanceof ParentheticalExpression) {
+				hash = mix(PARENTHETICAL + stack[--depth]);
+			} else if (e instanceof SimpleCompoundExpression) {
+				final int children = ((SimpleCompoundExpression) e).getChildren().size();
+				depth -= children;
+				long sum = 0;
+				for (int i = depth; i < depth + children; i++) {
+					sum += stack[i];
+				}
+				hash = mix(("+".equals(((SimpleCompoundExpression) e).getOperation()) ? ADDITIVE : MULTIPLICATIVE) ^ mix(sum + children));
+			} else {
+				throw new IllegalArgumentException("Cannot index " + e.getClass().getName());
+			}
+			if (depth == stack.length) {
+				stack = Arrays.copyOf(stack, 2 * depth);
+			}
+			stack[depth++] = hash;
+			if (count == hashes.length) {
+				hashes = Arrays.copyOf(hashes, 2 * count);
+			}
+			hashes[count++] = hash;
+		}
+		return Arrays.copyOf(hashes, count);
+	}
+
+	private static long literalHash(String value) {
+		long hash = 0xCBF29CE484222325L; // FNV-1a
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+		}
+		return mix(LITERAL ^ hash);
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, which spreads every bit of the input over the output.
+	 */
+	private static long mix(long hash) {
+		hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+		hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Tests the queries of ExpressionSearchIndex, in memory and loaded from a file.
+ */
+public class ExpressionSearchIndexTester {
+	private static final RandomExpressions EXPRESSIONS = new RandomExpressions(4, 3, 1, 3);
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	private Expression parse (String text) throws ExpressionParseException {
+		return _parser.parse(text, false);
+	}
+
+	private ExpressionSearchIndex index (String... texts) throws ExpressionParseException {
+		final ExpressionSearchIndex index = new ExpressionSearchIndex();
+		for (int i = 0; i < texts.length; i++) {
+			index.add(i, parse(texts[i]));
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the text of a subtree with the children of sums and products sorted, recursively.
+	 */
+	private static String canonical (Expression expression) {
+		if (!(expression instanceof CompoundExpression)) {
+			return ((LiteralExpression) expression).getValue();
+		}
+		final List<String> children = new ArrayList<String>();
+		for (Expression child : ((CompoundExpression) expression).getChildren()) {
+			children.add(canonical(child));
+		}
+		Collections.sort(children);
+		return ExpressionLayout.getOperation(expression) + children;
+	}
+
+	private static void canonicalSubtrees (Expression expression, Set<String> subtrees) {
+		subtrees.add(canonical(expression));
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				canonicalSubtrees(child, subtrees);
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies which trees contain a subterm, up to the order of operands.
+	 */
+	public void testQueries () throws ExpressionParseException {
+		final ExpressionSearchIndex index = index("x*y+z", "2*(y*x)", "x*y*z", "q+1", "(x*y)");
+		assertArrayEquals(new int[] { 0, 1, 4 }, index.containing(parse("x*y")).toArray());
+		assertArrayEquals(new int[] { 0, 1, 4 }, index.containing(parse("y*x")).toArray());
+		assertArrayEquals(new int[] { 2 }, index.containing(parse("z*y*x")).toArray());
+		assertArrayEquals(new int[] { 1, 4 }, index.containing(parse("(x*y)")).toArray());
+		assertArrayEquals(new int[] { 3 }, index.withVariable('q').toArray());
+		assertArrayEquals(new int[] { 0, 1, 2, 4 }, index.withVariable('y').toArray());
+		assertArrayEquals(new int[] { 3 }, index.containing(parse("1")).toArray());
+		assertTrue(index.withVariable('w').isEmpty());
+		assertTrue(index.containing(parse("x+y")).isEmpty());
+
+		// conjunctive queries
+		assertArrayEquals(new int[] { 0 }, index.query(parse("x*y"), parse("z")).toArray());
+		assertArrayEquals(new int[] { 1 }, index.query(parse("x*y"), parse("2"), parse("y")).toArray());
+		assertTrue(index.query(parse("x*y"), parse("q")).isEmpty());
+		assertTrue(index.query(parse("x*y"), parse("w")).isEmpty());
+		assertEquals(ExpressionSearchIndex.hash(parse("2*x+3*y")), ExpressionSearchIndex.hash(parse("y*3+x*2")));
+	}
+
+	@Test
+	/**
+	 * Verifies that removed trees are no longer found.
+	 */
+	public void testRemove () throws ExpressionParseException {
+		final ExpressionSearchIndex index = index("x*y+z", "2*(y*x)", "x*y*z");
+		index.remove(0, parse("z+y*x"));
+		assertArrayEquals(new int[] { 1 }, index.containing(parse("x*y")).toArray());
+		assertArrayEquals(new int[] { 2 }, index.withVariable('z').toArray());
+		index.remove(1, parse("2*(x*y)"));
+		index.remove(2, parse("x*y*z"));
+		assertTrue(index.withVariable('x').isEmpty());
+		index.add(7, parse("x"));
+		assertArrayEquals(new int[] { 7 }, index.withVariable('x').toArray());
+	}
+
+	@Test
+	/**
+	 * Verifies a random corpus against a search of the canonical texts of every subtree.
+	 */
+	public void testRandomCorpus () throws ExpressionParseException {
+		final Random random = new Random(25);
+		final List<Expression> corpus = new ArrayList<Expression>();
+		final List<Set<String>> subtrees = new ArrayList<Set<String>>();
+		final ExpressionSearchIndex index = new ExpressionSearchIndex();
+		for (int i = 0; i < 3000; i++) {
+			final Expression expression = parse(EXPRESSIONS.next(random, 4));
+			corpus.add(expression);
+			subtrees.add(new HashSet<String>());
+			canonicalSubtrees(expression, subtrees.get(i));
+			index.add(i, expression);
+		}
+		for (int i = 0; i < 200; i++) {
+			// subterms of the corpus, and random ones
+			final Expression first = random.nextBoolean() ? parse(EXPRESSIONS.next(random, 2)) : randomSubtree(random, corpus.get(random.nextInt(corpus.size())));
+			final Expression second = parse(EXPRESSIONS.next(random, 1));
+			final List<Integer> expected = new ArrayList<Integer>();
+			for (int id = 0; id < corpus.size(); id++) {
+				if (subtrees.get(id).contains(canonical(first)) && subtrees.get(id).contains(canonical(second))) {
+					expected.add(id);
+				}
+			}
+			final int[] actual = index.query(first, second).toArray();
+			assertEquals(ExpressionLayout.getText(first) + " & " + ExpressionLayout.getText(second), expected.toString(), Arrays.toString(actual));
+		}
+	}
+
+	private static Expression randomSubtree (Random random, Expression expression) {
+		while (expression instanceof CompoundExpression && random.nextInt(3) != 0) {
+			final List<Expression> children = ((CompoundExpression) expression).getChildren();
+			expression = children.get(random.nextInt(children.size()));
+		}
+		return expression;
+	}
+
+	@Test
+	/**
+	 * Verifies an index saved to a file and mapped back, then modified and saved over its own file.
+	 */
+	public void testSaveAndLoad () throws ExpressionParseException, IOException {
+		final Path file = Files.createTempFile("expressions", ".index");
+		try {
+			final ExpressionSearchIndex index = new ExpressionSearchIndex();
+			for (int i = 0; i < 100000; i++) {
+				index.add(i, parse(i % 3 == 0 ? "x*y+" + (i % 1000) : "q*" + (i % 7)));
+			}
+			index.save(file);
+			final ExpressionSearchIndex loaded = ExpressionSearchIndex.load(file);
+			assertEquals(index.containing(parse("x*y")), loaded.containing(parse("x*y")));
+			assertEquals(33334, loaded.containing(parse("x*y")).getCardinality());
+			assertEquals(index.query(parse("q"), parse("5")), loaded.query(parse("q"), parse("5")));
+			assertArrayEquals(new int[] { 999, 3999 }, Arrays.copyOf(loaded.query(parse("x*y"), parse("999")).toArray(), 2));
+
+			loaded.remove(3, parse("x*y+3"));
+			loaded.add(100000, parse("x*y"));
+			loaded.add(100001, parse("w"));
+			assertEquals(33334, loaded.containing(parse("x*y")).getCardinality());
+			assertArrayEquals(new int[] { 100001 }, loaded.withVariable('w').toArray());
+			loaded.save(file);
+			final ExpressionSearchIndex reloaded = ExpressionSearchIndex.load(file);
+			assertEquals(loaded.containing(parse("x*y")), reloaded.containing(parse("x*y")));
+			assertFalse(reloaded.containing(parse("x*y")).contains(3));
+			assertArrayEquals(new int[] { 100001 }, reloaded.withVariable('w').toArray());
+			assertEquals(index.withVariable('q'), reloaded.withVariable('q'));
+
+			Files.write(file, "not an index".getBytes());
+			try {
+				ExpressionSearchIndex.load(file);
+				fail("Loaded a text file");
+			} catch (IOException ioe) {
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
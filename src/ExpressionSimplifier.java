@@ -0,0 +1,383 @@
+import java.util.*;
+
+/**
+ *
+ * Rewrites an expression tree into a simpler, canonical form with the same value:
+ *
+ * - parentheses are removed unless they enclose a sum inside a product;
+ * - children with the same operation as their parent are spliced into it, as
+ *   flatten() does, and sums or products of a single child are replaced by it;
+ * - numbers are written in decimal without leading zeros or a sign, e.g. 007 as 7;
+ * - numbers are folded into one constant, which is dropped if it is 0 in a sum or
+ *   1 in a product, while a product with a constant 0 becomes 0;
+ * - like terms of a sum are collected, e.g. 2*x+3*x+x*y+y*x into 2*x*y+5*x;
+ * - the children of sums and products are sorted: numbers first, then the other
+ *   children in the order of their canonical text, so equal expressions that
+ *   only differ in the order of their operands get the same form.
+ *
+ * The rules are applied to a fixpoint with a worklist: every compound expression
+ * is processed once, children before parents, and afterwards only the parents of
+ * rewritten expressions and the expressions created by rewrites are processed
+ * again. Constants are only folded while they fit in a long, so that every literal
+ * keeps its value; beyond that the arithmetic is that of evaluate().
+ *
+ * Trees are rewritten in place, and their JavaFX nodes are not updated.
+ *
+ */
+public class ExpressionSimplifier {
+	// instance variables
+	private Expression _root;
+	private final ArrayDeque<Expression> _worklist = new ArrayDeque<Expression>();
+	private final IdentityHashMap<Expression, Boolean> _queued = new IdentityHashMap<Expression, Boolean>();
+	private final IdentityHashMap<Expression, String> _keys = new IdentityHashMap<Expression, String>();
+
+	/**
+	 * Orders numbers by value before the other expressions, which are ordered by their canonical text
+	 */
+	private final Comparator<Expression> _order = (a, b) -> {
+		final boolean aNumber = isNumber(a), bNumber = isNumber(b);
+		if (aNumber || bNumber) {
+			return aNumber && bNumber ? Long.compare(number(a), number(b)) : aNumber ? -1 : 1;
+		}
+		return key(a).compareTo(key(b));
+	};
+
+	private ExpressionSimplifier (Expression root) {
+		_root = root;
+	}
+
+	/**
+	 * Simplifies an expression tree in place.
+	 * @param expression the root of the tree, made of LiteralExpression, SimpleCompoundExpression and ParentheticalExpression
+	 * @return the root of the simplified tree, which is a different expression if the root was rewritten
+	 */
+	public static Expression simplify (Expression expression) {
+		final ExpressionSimplifier simplifier = new ExpressionSimplifier(expression);
+		simplifier.run();
+		return simplifier._root;
+	}
+
+	/**
+	 * Returns the canonical text of an expression, which is that of its simplified
+	 * form; equal canonical texts mean equal values. The expression is not changed.
+	 * @param expression the expression
+	 * @return the text of its simplified form
+	 */
+	public static String canonicalText (Expression expression) {
+		return ExpressionLayout.getText(simplify(expression.deepCopy()));
+	}
+
+	private void run () {
+		// children before parents, so that every parent sees its simplified children
+		final ExpressionTraversal traversal = new ExpressionTraversal(ExpressionTraversal.Order.POST_ORDER);
+		for (Expression expression = traversal.reset(_root); expression != null; expression = traversal.next()) {
+			if (isNumber(expression)) {
+				final String text = Long.toString(number(expression));
+				if (!text.equals(((LiteralExpression) expression).getValue())) {
+					((LiteralExpression) expression).setValue(text);
+				}
+			}
+			enqueue(expression);
+		}
+		while (!_worklist.isEmpty()) {
+			final Expression expression = _worklist.poll();
+			_queued.remove(expression);
+			if (expression == _root || expression.getParent() != null) { // else it was removed from the tree
+				if (expression instanceof ParentheticalExpression) {
+					simplifyParenthetical((ParentheticalExpression) expression);
+				} else {
+					simplifyCompound((SimpleCompoundExpression) expression);
+				}
+			}
+		}
+	}
+
+	private void enqueue (Expression expression) {
+		if (expression instanceof CompoundExpression && _queued.put(expression, Boolean.TRUE) == null) {
+			_worklist.add(expression);
+		}
+	}
+
+	/**
+	 * Removes the parentheses unless they enclose a sum inside a product.
+	 */
+	private void simplifyParenthetical (ParentheticalExpression parenthetical) {
+		final Expression child = parenthetical.getChildren().get(0);
+		final CompoundExpression parent = parenthetical.getParent();
+		if (!(isOperation(child, "+") && isOperation(parent, "*"))) {
+			replace(parenthetical, child);
+		}
+	}
+
+	private void simplifyCompound (SimpleCompoundExpression compound) {
+		final String operation = compound.getOperation();
+		final boolean additive = "+".equals(operation);
+		final List<Expression> children = compound.getChildren();
+
+		// splice in children with the same operation, and fold the numbers
+		final List<Expression> terms = new ArrayList<Expression>(children.size());
+		final List<Expression> constants = new ArrayList<Expression>(1);
+		long constant = additive ? 0 : 1;
+		final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+		for (int i = children.size() - 1; i >= 0; i--) {
+			stack.push(children.get(i));
+		}
+		while (!stack.isEmpty()) {
+			final Expression child = stack.pop();
+			if (isOperation(child, operation)) {
+				final List<Expression> grandchildren = ((CompoundExpression) child).getChildren();
+				for (int i = grandchildren.size() - 1; i >= 0; i--) {
+					stack.push(grandchildren.get(i));
+				}
+			} else if (isNumber(child) && fits(constant, number(child), additive)) {
+				constant = additive ? constant + number(child) : constant * number(child);
+				constants.add(child);
+			} else {
+				terms.add(child);
+			}
+		}
+		final List<Expression> result;
+		if (!additive && !constants.isEmpty() && constant == 0) {
+			result = new ArrayList<Expression>();
+		} else {
+			result = additive ? collectLikeTerms(terms) : terms;
+			if (constant != (additive ? 0 : 1)) {
+				result.add(constants.size() == 1 ? constants.get(0) : new LiteralExpression(Long.toString(constant)));
+			}
+			result.sort(_order);
+			if (result.size() > 1 && sameElements(children, result)) {
+				return;
+			}
+		}
+
+		final List<Expression> former = new ArrayList<Expression>(children);
+		if (result.isEmpty()) {
+			replace(compound, new LiteralExpression(additive || constant == 0 ? "0" : "1"));
+		} else if (result.size() == 1) {
+			replace(compound, result.get(0));
+		} else {
+			children.clear();
+			for (Expression child : result) {
+				children.add(child);
+				child.setParent(compound);
+			}
+			changed(compound);
+		}
+		// the children that were spliced, folded or collected are no longer in the tree, so skip them if they are queued
+		final IdentityHashMap<Expression, Boolean> kept = new IdentityHashMap<Expression, Boolean>();
+		for (Expression child : result) {
+			kept.put(child, Boolean.TRUE);
+		}
+		for (Expression child : former) {
+			if (child.getParent() == compound && !kept.containsKey(child)) {
+				child.setParent(null);
+			}
+		}
+	}
+
+	/**
+	 * Collects the terms of a sum that are the same but for their constant factor.
+	 * Terms that have no like terms are returned unchanged.
+	 */
+	private List<Expression> collectLikeTerms (List<Expression> terms) {
+		final LinkedHashMap<String, List<Expression>> groups = new LinkedHashMap<String, List<Expression>>();
+		for (Expression term : terms) {
+			groups.computeIfAbsent(monomialKey(term), k -> new ArrayList<Expression>(1)).add(term);
+		}
+		final List<Expression> result = new ArrayList<Expression>(groups.size() + 1);
+		for (List<Expression> group : groups.values()) {
+			if (group.size() == 1) {
+				result.add(group.get(0));
+				continue;
+			}
+			long coefficient = 0;
+			boolean fits = true;
+			for (Expression term : group) {
+				fits &= fits(coefficient, coefficient(term), true);
+				coefficient += coefficient(term);
+			}
+			if (!fits) {
+				result.addAll(group);
+				continue;
+			}
+			if (coefficient == 0) {
+				continue;
+			}
+			// reuse the factors of the first term
+			final List<Expression> factors = factors(group.get(0));
+			if (coefficient == 1 && factors.size() == 1) {
+				result.add(factors.get(0));
+			} else {
+				final SimpleCompoundExpression product = new SimpleCompoundExpression("*");
+				if (coefficient != 1) {
+					product.addSubexpression(new LiteralExpression(Long.toString(coefficient)));
+				}
+				for (Expression factor : factors) {
+					product.addSubexpression(factor);
+				}
+				result.add(product);
+				enqueue(product);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the constant factor of a term of a sum: that of a product with a number, or 1.
+	 */
+	private static long coefficient (Expression term) {
+		if (isOperation(term, "*")) {
+			final Expression first = ((CompoundExpression) term).getChildren().get(0);
+			if (isNumber(first)) {
+				return number(first);
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Returns the factors of a term of a sum other than its constant factor.
+	 */
+	private static List<Expression> factors (Expression term) {
+		if (isOperation(term, "*")) {
+			final List<Expression> factors = new ArrayList<Expression>(((CompoundExpression) term).getChildren());
+			if (isNumber(factors.get(0))) {
+				factors.remove(0);
+			}
+			return factors;
+		}
+		return new ArrayList<Expression>(Collections.singletonList(term));
+	}
+
+	/**
+	 * Returns the canonical text of a term of a sum without its constant factor.
+	 */
+	private String monomialKey (Expression term) {
+		final List<Expression> factors = factors(term);
+		factors.sort(_order);
+		if (factors.size() == 1) {
+			return key(factors.get(0));
+		}
+		final StringBuilder key = new StringBuilder();
+		for (Expression factor : factors) {
+			if (key.length() > 0) {
+				key.append('*');
+			}
+			key.append(key(factor));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the canonical text of an expression, which is its text once its
+	 * children are sorted, computed once until it is rewritten.
+	 */
+	private String key (Expression expression) {
+		final String key = _keys.get(expression);
+		if (key != null) {
+			return key;
+		}
+		// the keys of the children first, with an explicit stack
+		final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+		stack.push(expression);
+		while (!stack.isEmpty()) {
+			final Expression top = stack.peek();
+			if (!(top instanceof CompoundExpression)) {
+				_keys.put(top, isNumber(top) ? Long.toString(number(top)) : ((LiteralExpression) top).getValue());
+				stack.pop();
+				continue;
+			}
+			boolean ready = true;
+			for (Expression child : ((CompoundExpression) top).getChildren()) {
+				if (!_keys.containsKey(child)) {
+					stack.push(child);
+					ready = false;
+				}
+			}
+			if (ready) {
+				stack.pop();
+				// the children in canonical order, so that the key does not depend on their current order
+				final List<Expression> children = new ArrayList<Expression>(((CompoundExpression) top).getChildren());
+				children.sort(_order);
+				final StringBuilder text = new StringBuilder();
+				final String operation = ExpressionLayout.getOperation(top);
+				for (Expression child : children) {
+					if (text.length() > 0) {
+						text.append(operation);
+					}
+					text.append(_keys.get(child));
+				}
+				_keys.put(top, top instanceof ParentheticalExpression ? "(" + text + ")" : text.toString());
+			}
+		}
+		return _keys.get(expression);
+	}
+
+	/**
+	 * Replaces an expression by another in its parent, or as the root.
+	 */
+	private void replace (Expression expression, Expression replacement) {
+		final CompoundExpression parent = expression.getParent();
+		if (parent == null) {
+			_root = replacement;
+		} else {
+			final List<Expression> siblings = parent.getChildren();
+			for (int i = 0; i < siblings.size(); i++) {
+				if (siblings.get(i) == expression) {
+					siblings.set(i, replacement);
+					break;
+				}
+			}
+		}
+		expression.setParent(null);
+		replacement.setParent(parent);
+		// the replacement may simplify further in its new place, e.g. parentheses that are no longer needed
+		enqueue(replacement);
+		changed(replacement);
+	}
+
+	/**
+	 * Forgets the texts of a rewritten expression and of its ancestors, and queues
+	 * its parent. The parent of every ancestor whose text was known is queued too,
+	 * since it may have ordered or collected its children by that text.
+	 */
+	private void changed (Expression expression) {
+		_keys.remove(expression);
+		enqueue(expression.getParent());
+		// a key is only computed after the keys of the children, so no ancestor above one without a key has one
+		for (Expression e = expression.getParent(); e != null && _keys.remove(e) != null; e = e.getParent()) {
+			enqueue(e.getParent());
+		}
+	}
+
+	private static boolean sameElements (List<Expression> a, List<Expression> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (a.get(i) != b.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isOperation (Expression expression, String operation) {
+		return expression instanceof SimpleCompoundExpression && operation.equals(((SimpleCompoundExpression) expression).getOperation());
+	}
+
+	private static boolean isNumber (Expression expression) {
+		return expression instanceof LiteralExpression && ((LiteralExpression) expression).isNumber();
+	}
+
+	private static long number (Expression expression) {
+		return ((LiteralExpression) expression).getNumber();
+	}
+
+	/**
+	 * Returns whether the sum or product of two non-negative longs fits in a long.
+	 */
+	private static boolean fits (long a, long b, boolean additive) {
+		return additive ? a <= Long.MAX_VALUE - b : b == 0 || a <= Long.MAX_VALUE / b;
+	}
+}
@@ -0,0 +1,113 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests ExpressionSimplifier on the text of the simplified trees, and that simplification preserves values.
+ */
+public class ExpressionSimplifierTester {
+	private static final RandomExpressions EXPRESSIONS = new RandomExpressions(3, 4, 2, 4);
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	private String simplify (String text) throws ExpressionParseException {
+		final Expression simplified = ExpressionSimplifier.simplify(_parser.parse(text, false));
+		assertNull(simplified.getParent());
+		return ExpressionLayout.getText(simplified);
+	}
+
+	@Test
+	/**
+	 * Verifies the removal of redundant parentheses.
+	 */
+	public void testParentheses () throws ExpressionParseException {
+		assertEquals("x", simplify("(x)"));
+		assertEquals("x", simplify("(((x)))"));
+		assertEquals("x+y+z", simplify("((x+y))+z"));
+		assertEquals("x*y+z", simplify("(x*y)+z"));
+		assertEquals("x*y*z", simplify("(x*y)*(z)"));
+		assertEquals("2*(x+y)", simplify("2*(x+y)"));
+		assertEquals("2*(x+y)", simplify("2*((x+y))"));
+	}
+
+	@Test
+	/**
+	 * Verifies constant folding and the identities of sums and products.
+	 */
+	public void testConstants () throws ExpressionParseException {
+		assertEquals("6", simplify("2*3"));
+		assertEquals("15", simplify("(1+2)*(2+3)"));
+		assertEquals("3+12*x", simplify("1+2+x*3*4"));
+		assertEquals("y", simplify("x*0+y"));
+		assertEquals("0", simplify("x*(y+0)*0"));
+		assertEquals("x", simplify("x*1"));
+		assertEquals("x", simplify("0+x"));
+		assertEquals("1", simplify("1*1"));
+
+		// the parser only accepts numbers that fit in an int, so the overflow is built by hand
+		final SimpleCompoundExpression sum = new SimpleCompoundExpression("+");
+		sum.addSubexpression(new LiteralExpression("9223372036854775807"));
+		sum.addSubexpression(new LiteralExpression("1"));
+		assertEquals("1+9223372036854775807", ExpressionLayout.getText(ExpressionSimplifier.simplify(sum)));
+	}
+
+	@Test
+	/**
+	 * Verifies the collection of like terms, and the canonical order of operands.
+	 */
+	public void testLikeTermsAndOrder () throws ExpressionParseException {
+		assertEquals("5*x", simplify("2*x+3*x"));
+		assertEquals("2*x", simplify("x+x"));
+		assertEquals("9*x", simplify("2*x+3*x+(x*4)"));
+		assertEquals("3*x*y", simplify("x*y+2*y*x"));
+		assertEquals("2*x*y+5*x", simplify("2*x+3*x+x*y+y*x"));
+		assertEquals("0", simplify("0*x+0*x"));
+		assertEquals("5*(x+y)", simplify("2*(x+y)+3*(y+x)"));
+		assertEquals("2+x*y+z", simplify("z+y*x+2"));
+		assertEquals("7", simplify("(007)"));
+		assertEquals("7*x", simplify("x*007"));
+		assertEquals(ExpressionSimplifier.canonicalText(_parser.parse("x+7", false)),
+			ExpressionSimplifier.canonicalText(_parser.parse("x+007", false)));
+		assertEquals(ExpressionSimplifier.canonicalText(_parser.parse("2*(x+7)*y", false)),
+			ExpressionSimplifier.canonicalText(_parser.parse("(x+007)*y+(x+7)*y", false)));
+		assertEquals(ExpressionSimplifier.canonicalText(_parser.parse("y+x+b*a", false)),
+			ExpressionSimplifier.canonicalText(_parser.parse("(a*b)+(x+y)", false)));
+	}
+
+	@Test
+	/**
+	 * Verifies that simplification preserves the value of random expressions, and reaches a fixpoint.
+	 */
+	public void testRandomExpressions () throws ExpressionParseException {
+		final Random random = new Random(220);
+		final long[] variables = new long[26];
+		for (int i = 0; i < 1000; i++) {
+			final String text = EXPRESSIONS.next(random, 4);
+			for (int j = 0; j < variables.length; j++) {
+				variables[j] = random.nextInt(100) - 50;
+			}
+			final long expected = _parser.parse(text, false).evaluate(variables);
+			final Expression simplified = ExpressionSimplifier.simplify(_parser.parse(text, false));
+			assertEquals(text, expected, simplified.evaluate(variables));
+			final String simplifiedText = ExpressionLayout.getText(simplified);
+			assertEquals(text, simplifiedText, simplify(simplifiedText));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that deeply nested parentheses are simplified without recursion, on a tree built by hand since the parsers recurse.
+	 */
+	public void testDeepNesting () {
+		final int levels = 20000;
+		Expression expression = new LiteralExpression("x");
+		for (int i = 0; i < levels; i++) {
+			final SimpleCompoundExpression sum = new SimpleCompoundExpression("+");
+			sum.addSubexpression(new LiteralExpression("x"));
+			sum.addSubexpression(expression);
+			final ParentheticalExpression parenthetical = new ParentheticalExpression();
+			parenthetical.addSubexpression(sum);
+			expression = parenthetical;
+		}
+		assertEquals((levels + 1) + "*x", ExpressionLayout.getText(ExpressionSimplifier.simplify(expression)));
+	}
+}
@@ -0,0 +1,314 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * A reusable cursor over the expressions of a tree, in pre-order, post-order or
+ * level order, so that a pass over a tree can be written as a loop instead of
+ * as recursion spread over the expression classes:
+ *
+ *     final ExpressionTraversal traversal = new ExpressionTraversal(ExpressionTraversal.Order.PRE_ORDER);
+ *     for (Expression e = traversal.reset(root); e != null; e = traversal.next()) {
+ *         ...
+ *     }
+ *
+ * The cursor keeps the path to the current expression (or, in level order, the
+ * queue of the next ones) in arrays that grow as needed and are kept by reset(),
+ * and it reads children by index, so a traversal allocates nothing once the
+ * arrays are large enough, and no depth of tree overflows the call stack. In
+ * pre-order and level order, skipChildren() prunes the subtree of the current
+ * expression; stopping early is just not calling next() again. walk() runs a
+ * Visitor over a tree in depth-first order with the same stack.
+ *
+ * A cursor is used by one thread, and the tree must not change while it is
+ * traversed.
+ *
+ */
+public class ExpressionTraversal {
+	/**
+	 * The orders of a traversal.
+	 */
+	public enum Order {
+		PRE_ORDER, POST_ORDER, LEVEL_ORDER
+	}
+
+	/**
+	 * What a traversal does after a Visitor entered an expression.
+	 */
+	public enum Action {
+		CONTINUE, SKIP_CHILDREN, STOP
+	}
+
+	/**
+	 * Receives the expressions of a tree from walk().
+	 */
+	public interface Visitor {
+		/**
+		 * Called for every expression before its children.
+		 * @param expression the expression
+		 * @param depth its depth, which is 0 for the root
+		 * @return whether to visit its children, skip them, or stop the walk
+		 */
+		Action enter (Expression expression, int depth);
+
+		/**
+		 * Called for every expression after its children, unless the walk stopped.
+		 * Does nothing by default.
+		 * @param expression the expression
+		 * @param depth its depth, which is 0 for the root
+		 */
+		default void exit (Expression expression, int depth) {
+		}
+	}
+
+	// instance variables
+	private final Order _order;
+	// the path from the root in depth-first orders, or the ring buffer of the queue in level order
+	private Expression[] _nodes = new Expression[16];
+	// the index of the next child of each expression on the path
+	private int[] _nextChildren = new int[16];
+	private int _size;
+	private Expression _current;
+	private int _depth;
+	private boolean _skipChildren;
+	// level order: the start of the queue, and the number of expressions left in the current level and queued for the next one
+	private int _head;
+	private int _levelRemaining, _nextLevelCount;
+
+	/**
+	 * Constructs a cursor
+	 *
+	 * @param order
+	 *            the order in which next() returns the expressions
+	 */
+	public ExpressionTraversal(Order order) {
+		_order = order;
+	}
+
+	/**
+	 * Returns the order of this cursor.
+	 * @return the order
+	 */
+	public Order getOrder() {
+		return _order;
+	}
+
+	/**
+	 * Starts a traversal of a tree, forgetting the previous one.
+	 *
+	 * @param root
+	 *            the root of the tree
+	 * @return the first expression of the traversal
+	 */
+	public Expression reset(Expression root) {
+		clear();
+		switch (_order) {
+		case PRE_ORDER:
+			return current(root, 0);
+		case LEVEL_ORDER:
+			_levelRemaining = 0;
+			_nextLevelCount = 0;
+			return current(root, 0);
+		default:
+			push(root);
+			return next();
+		}
+	}
+
+	/**
+	 * Moves to the next expression of the traversal.
+	 *
+	 * @return the next expression, or null at the end of the traversal
+	 */
+	public Expression next() {
+		switch (_order) {
+		case PRE_ORDER:
+			return nextPreOrder();
+		case LEVEL_ORDER:
+			return nextLevelOrder();
+		default:
+			return nextPostOrder();
+		}
+	}
+
+	/**
+	 * Returns the expression that reset() or next() returned last.
+	 * @return the current expression, or null at the end of the traversal
+	 */
+	public Expression getCurrent() {
+		return _current;
+	}
+
+	/**
+	 * Returns the depth of the current expression.
+	 * @return its depth, which is 0 for the root
+	 */
+	public int getDepth() {
+		return _depth;
+	}
+
+	/**
+	 * Skips the descendants of the current expression, in pre-order or level order.
+	 *
+	 * @throws IllegalStateException
+	 *             in post-order, where the descendants were already returned
+	 */
+	public void skipChildren() {
+		if (_order == Order.POST_ORDER) {
+			throw new IllegalStateException("The children were already visited in post-order");
+		}
+		_skipChildren = true;
+	}
+
+	/**
+	 * Visits the expressions of a tree in depth-first order, with the stack of this
+	 * cursor; the current expression of a traversal in progress is lost.
+	 *
+	 * @param root
+	 *            the root of the tree
+	 * @param visitor
+	 *            receives the expressions
+	 * @return false if the visitor stopped the walk, true otherwise
+	 */
+	public boolean walk(Expression root, Visitor visitor) {
+		clear();
+		if (!enter(root, 0, visitor)) {
+			return false;
+		}
+		while (_size > 0) {
+			final Expression top = _nodes[_size - 1];
+			final List<Expression> children = ((CompoundExpression) top).getChildren();
+			final int next = _nextChildren[_size - 1];
+			if (next < children.size()) {
+				_nextChildren[_size - 1] = next + 1;
+				if (!enter(children.get(next), _size, visitor)) {
+					return false;
+				}
+			} else {
+				_nodes[--_size] = null;
+				visitor.exit(top, _size);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Enters an expression of walk(): pushes it if its children are to be visited,
+	 * and exits it at once otherwise.
+	 * @return false if the visitor stopped the walk
+	 */
+	private boolean enter(Expression expression, int depth, Visitor visitor) {
+		final Action action = visitor.enter(expression, depth);
+		if (action == Action.STOP) {
+			return false;
+		}
+		if (action == Action.CONTINUE && expression instanceof CompoundExpression) {
+			push(expression);
+		} else {
+			visitor.exit(expression, depth);
+		}
+		return true;
+	}
+
+	private Expression nextPreOrder() {
+		if (_current instanceof CompoundExpression && !_skipChildren) {
+			push(_current);
+		}
+		while (_size > 0) {
+			final List<Expression> children = ((CompoundExpression) _nodes[_size - 1]).getChildren();
+			final int next = _nextChildren[_size - 1];
+			if (next < children.size()) {
+				_nextChildren[_size - 1] = next + 1;
+				return current(children.get(next), _size);
+			}
+			_nodes[--_size] = null;
+		}
+		return current(null, 0);
+	}
+
+	private Expression nextPostOrder() {
+		while (_size > 0) {
+			final Expression top = _nodes[_size - 1];
+			if (top instanceof CompoundExpression) {
+				final List<Expression> children = ((CompoundExpression) top).getChildren();
+				final int next = _nextChildren[_size - 1];
+				if (next < children.size()) {
+					_nextChildren[_size - 1] = next + 1;
+					push(children.get(next));
+					continue;
+				}
+			}
+			_nodes[--_size] = null;
+			return current(top, _size);
+		}
+		return current(null, 0);
+	}
+
+	private Expression nextLevelOrder() {
+		if (_current instanceof CompoundExpression && !_skipChildren) {
+			final List<Expression> children = ((CompoundExpression) _current).getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				enqueue(children.get(i));
+			}
+			_nextLevelCount += children.size();
+		}
+		if (_size == 0) {
+			return current(null, 0);
+		}
+		int depth = _depth;
+		if (_levelRemaining == 0) {
+			depth++;
+			_levelRemaining = _nextLevelCount;
+			_nextLevelCount = 0;
+		}
+		_levelRemaining--;
+		final Expression expression = _nodes[_head];
+		_nodes[_head] = null;
+		_head = (_head + 1) & (_nodes.length - 1);
+		_size--;
+		return current(expression, depth);
+	}
+
+	private Expression current(Expression expression, int depth) {
+		_current = expression;
+		_depth = depth;
+		_skipChildren = false;
+		return expression;
+	}
+
+	private void push(Expression expression) {
+		if (_size == _nodes.length) {
+			_nodes = Arrays.copyOf(_nodes, 2 * _size);
+			_nextChildren = Arrays.copyOf(_nextChildren, 2 * _size);
+		}
+		_nodes[_size] = expression;
+		_nextChildren[_size] = 0;
+		_size++;
+	}
+
+	private void enqueue(Expression expression) {
+		if (_size == _nodes.length) {
+			// unroll the ring into a larger array; its length stays a power of two
+			final Expression[] nodes = new Expression[2 * _size];
+			for (int i = 0; i < _size; i++) {
+				nodes[i] = _nodes[(_head + i) & (_nodes.length - 1)];
+			}
+			_nodes = nodes;
+			_head = 0;
+		}
+		_nodes[(_head + _size) & (_nodes.length - 1)] = expression;
+		_size++;
+	}
+
+	/**
+	 * Forgets the previous traversal, and the references to its tree.
+	 */
+	private void clear() {
+		for (int i = 0; i < _size; i++) {
+			_nodes[(_head + i) & (_nodes.length - 1)] = null; // a stack starts at 0, a queue at _head
+		}
+		_size = 0;
+		_head = 0;
+		current(null, 0);
+	}
+}
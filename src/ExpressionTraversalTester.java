@@ -0,0 +1,187 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests the orders, pruning and early exit of ExpressionTraversal.
+ */
+public class ExpressionTraversalTester {
+	private static final RandomExpressions EXPRESSIONS = new RandomExpressions(26, 10, 1, 4);
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	/**
+	 * Returns the text of an expression, or its tree for the views of a CompactExpressionStore.
+	 */
+	private static String text (Expression expression) {
+		return expression instanceof LiteralExpression || expression instanceof AbstractCompoundExpression
+			? ExpressionLayout.getText(expression) : expression.convertToString(0);
+	}
+
+	/**
+	 * Returns the texts and depths of the expressions of a traversal, e.g. x@2.
+	 */
+	private static List<String> traverse (ExpressionTraversal traversal, Expression root) {
+		final List<String> visited = new ArrayList<String>();
+		for (Expression e = traversal.reset(root); e != null; e = traversal.next()) {
+			assertSame(e, traversal.getCurrent());
+			visited.add(text(e) + "@" + traversal.getDepth());
+		}
+		assertNull(traversal.getCurrent());
+		return visited;
+	}
+
+	/**
+	 * Appends the expressions of the tree in pre-order or post-order, recursively.
+	 */
+	private static void reference (Expression expression, int depth, boolean preOrder, List<String> visited) {
+		if (preOrder) {
+			visited.add(text(expression) + "@" + depth);
+		}
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				reference(child, depth + 1, preOrder, visited);
+			}
+		}
+		if (!preOrder) {
+			visited.add(text(expression) + "@" + depth);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the three orders on a small tree.
+	 */
+	public void testOrders () throws ExpressionParseException {
+		final Expression root = _parser.parse("2*x+(y+z)", false);
+		assertEquals(Arrays.asList("2*x+(y+z)@0", "2*x@1", "2@2", "x@2", "(y+z)@1", "y+z@2", "y@3", "z@3"),
+			traverse(new ExpressionTraversal(ExpressionTraversal.Order.PRE_ORDER), root));
+		assertEquals(Arrays.asList("2@2", "x@2", "2*x@1", "y@3", "z@3", "y+z@2", "(y+z)@1", "2*x+(y+z)@0"),
+			traverse(new ExpressionTraversal(ExpressionTraversal.Order.POST_ORDER), root));
+		assertEquals(Arrays.asList("2*x+(y+z)@0", "2*x@1", "(y+z)@1", "2@2", "x@2", "y+z@2", "y@3", "z@3"),
+			traverse(new ExpressionTraversal(ExpressionTraversal.Order.LEVEL_ORDER), root));
+		for (ExpressionTraversal.Order order : ExpressionTraversal.Order.values()) {
+			assertEquals(Arrays.asList("x@0"), traverse(new ExpressionTraversal(order), _parser.parse("x", false)));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies random trees against recursive traversals, with the same cursors reused
+	 * for every tree, and on the views of a CompactExpressionStore.
+	 */
+	public void testRandomTrees () throws ExpressionParseException {
+		final Random random = new Random(24);
+		final ExpressionTraversal preOrder = new ExpressionTraversal(ExpressionTraversal.Order.PRE_ORDER);
+		final ExpressionTraversal postOrder = new ExpressionTraversal(ExpressionTraversal.Order.POST_ORDER);
+		final ExpressionTraversal levelOrder = new ExpressionTraversal(ExpressionTraversal.Order.LEVEL_ORDER);
+		for (int i = 0; i < 500; i++) {
+			final Expression root = _parser.parse(EXPRESSIONS.next(random, 5), false);
+			final CompactExpressionStore store = new CompactExpressionStore();
+			store.add(root);
+			for (Expression tree : new Expression[] { root, store.get(0) }) {
+				final List<String> expectedPreOrder = new ArrayList<String>();
+				reference(tree, 0, true, expectedPreOrder);
+				assertEquals(expectedPreOrder, traverse(preOrder, tree));
+				final List<String> expectedPostOrder = new ArrayList<String>();
+				reference(tree, 0, false, expectedPostOrder);
+				assertEquals(expectedPostOrder, traverse(postOrder, tree));
+
+				// level order is the pre-order sorted by depth
+				final List<String> levels = traverse(levelOrder, tree);
+				final List<String> sorted = new ArrayList<String>(expectedPreOrder);
+				sorted.sort(Comparator.comparingInt(s -> Integer.parseInt(s.substring(s.lastIndexOf('@') + 1))));
+				assertEquals(sorted, levels);
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that skipChildren() prunes the subtree of the current expression.
+	 */
+	public void testSkipChildren () throws ExpressionParseException {
+		final Expression root = _parser.parse("2*x+(y+z)+w", false);
+		for (ExpressionTraversal.Order order : new ExpressionTraversal.Order[] { ExpressionTraversal.Order.PRE_ORDER, ExpressionTraversal.Order.LEVEL_ORDER }) {
+			final ExpressionTraversal traversal = new ExpressionTraversal(order);
+			final List<String> visited = new ArrayList<String>();
+			for (Expression e = traversal.reset(root); e != null; e = traversal.next()) {
+				visited.add(ExpressionLayout.getText(e));
+				if (ExpressionLayout.isParenthetical(e)) {
+					traversal.skipChildren();
+				}
+			}
+			assertEquals(order == ExpressionTraversal.Order.PRE_ORDER
+				? Arrays.asList("2*x+(y+z)+w", "2*x", "2", "x", "(y+z)", "w")
+				: Arrays.asList("2*x+(y+z)+w", "2*x", "(y+z)", "w", "2", "x"), visited);
+		}
+		final ExpressionTraversal postOrder = new ExpressionTraversal(ExpressionTraversal.Order.POST_ORDER);
+		postOrder.reset(root);
+		try {
+			postOrder.skipChildren();
+			fail("Skipped the children in post-order");
+		} catch (IllegalStateException ise) {
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the enter and exit events of walk(), with pruning and early exit.
+	 */
+	public void testWalk () throws ExpressionParseException {
+		final Expression root = _parser.parse("2*x+(y+z)+w", false);
+		final List<String> events = new ArrayList<String>();
+		final ExpressionTraversal traversal = new ExpressionTraversal(ExpressionTraversal.Order.PRE_ORDER);
+		assertTrue(traversal.walk(root, new ExpressionTraversal.Visitor() {
+			public ExpressionTraversal.Action enter (Expression expression, int depth) {
+				events.add("<" + ExpressionLayout.getText(expression));
+				return ExpressionLayout.isParenthetical(expression) ? ExpressionTraversal.Action.SKIP_CHILDREN : ExpressionTraversal.Action.CONTINUE;
+			}
+
+			public void exit (Expression expression, int depth) {
+				events.add(ExpressionLayout.getText(expression) + ">" + depth);
+			}
+		}));
+		assertEquals(Arrays.asList("<2*x+(y+z)+w", "<2*x", "<2", "2>2", "<x", "x>2", "2*x>1", "<(y+z)", "(y+z)>1", "<w", "w>1", "2*x+(y+z)+w>0"), events);
+
+		// find the first variable, and stop
+		final Expression[] found = new Expression[1];
+		assertFalse(traversal.walk(root, (expression, depth) -> {
+			if (expression instanceof LiteralExpression && !((LiteralExpression) expression).isNumber()) {
+				found[0] = expression;
+				return ExpressionTraversal.Action.STOP;
+			}
+			return ExpressionTraversal.Action.CONTINUE;
+		}));
+		assertEquals("x", ExpressionLayout.getText(found[0]));
+	}
+
+	@Test
+	/**
+	 * Verifies that a deeply nested tree is traversed without recursion.
+	 */
+	public void testDeepNesting () throws ExpressionParseException {
+		final int depth = 200000;
+		final Expression root = new StreamingExpressionParser().parse("(".repeat(depth) + "x" + ")".repeat(depth), false);
+		for (ExpressionTraversal.Order order : ExpressionTraversal.Order.values()) {
+			final ExpressionTraversal traversal = new ExpressionTraversal(order);
+			int count = 0, maxDepth = 0;
+			for (Expression e = traversal.reset(root); e != null; e = traversal.next()) {
+				count++;
+				maxDepth = Math.max(maxDepth, traversal.getDepth());
+			}
+			assertEquals(depth + 1, count);
+			assertEquals(depth, maxDepth);
+		}
+		final int[] exits = new int[1];
+		assertTrue(new ExpressionTraversal(ExpressionTraversal.Order.PRE_ORDER).walk(root, new ExpressionTraversal.Visitor() {
+			public ExpressionTraversal.Action enter (Expression expression, int d) {
+				return ExpressionTraversal.Action.CONTINUE;
+			}
+
+			public void exit (Expression expression, int d) {
+				exits[0]++;
+			}
+		}));
+		assertEquals(depth + 1, exits[0]);
+	}
+}
@@ -0,0 +1,366 @@
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.control.OverrunStyle;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.layout.Border;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import java.util.*;
+
+/**
+ *
+ * A horizontally scrolling view of an expression tree, rendered as a hierarchy of
+ * JavaFX nodes: an HBox per compound expression, holding the nodes of its children
+ * and Labels for its operators or parentheses, and a Label per literal.
+ *
+ * Only the expressions that overlap the visible part of the viewport get nodes.
+ * Every run of expressions outside of it is replaced by a single empty Region of
+ * the same width, so the visible nodes are exactly where they would be if the
+ * whole tree was rendered. The widths come from an ExpressionLayout, and every
+ * Label is sized to its width in the layout. Whenever the view is scrolled,
+ * resized or given a new expression, all nodes are returned to pools and the
+ * visible part is rebuilt from them, so nodes are recycled rather than created.
+ *
+ * The focused expression is drawn with a red border, and an overlay pane on top
+ * of the expression survives re-rendering, for whatever follows the mouse.
+ *
+ * Unlike Expression.setNode(), the view does not need the expressions to have
+ * nodes of their own, so trees can be parsed without JavaFX controls.
+ *
+ */
+public class ExpressionView extends BorderPane {
+	// instance variables
+	private final double _originX, _originY;
+	private final Pane _viewport = new Pane();
+	private final Pane _overlay = new Pane();
+	private final ScrollBar _scrollBar = new ScrollBar();
+	private final Font _font = Font.getDefault();
+	private final double[] _charWidths = new double[128];
+	private ExpressionLayout _layout;
+	private Expression _focus;
+	private Node _rootNode;
+
+	// materialized nodes and the expressions they show
+	private final IdentityHashMap<Node, Expression> _expressions = new IdentityHashMap<Node, Expression>();
+	private final IdentityHashMap<Expression, Node> _nodes = new IdentityHashMap<Expression, Node>();
+
+	// pools, and the pooled nodes in use
+	private final ArrayDeque<HBox> _boxPool = new ArrayDeque<HBox>();
+	private final ArrayDeque<Label> _labelPool = new ArrayDeque<Label>();
+	private final ArrayDeque<Region> _spacerPool = new ArrayDeque<Region>();
+	private final List<HBox> _boxes = new ArrayList<HBox>();
+	private final List<Label> _labels = new ArrayList<Label>();
+	private final List<Region> _spacers = new ArrayList<Region>();
+
+	/**
+	 * Constructor for ExpressionView
+	 *
+	 * @param originX
+	 *            the x coordinate in the viewport at which the expression starts when
+	 *            it is not scrolled
+	 * @param originY
+	 *            the y coordinate in the viewport of the expression
+	 */
+	public ExpressionView(double originX, double originY) {
+		_originX = originX;
+		_originY = originY;
+		Arrays.fill(_charWidths, Double.NaN);
+		final Rectangle clip = new Rectangle();
+		clip.widthProperty().bind(_viewport.widthProperty());
+		clip.heightProperty().bind(_viewport.heightProperty());
+		_viewport.setClip(clip);
+		_overlay.setMouseTransparent(true);
+		_scrollBar.setOrientation(Orientation.HORIZONTAL);
+		_scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> render());
+		_viewport.widthProperty().addListener((observable, oldWidth, newWidth) -> {
+			updateScrollBar();
+			render();
+		});
+		setCenter(_viewport);
+		setBottom(_scrollBar);
+	}
+
+	/**
+	 * Shows the expression, replacing the previous one. The expression must not be
+	 * changed while it is shown, except by calling setExpression again afterwards.
+	 *
+	 * @param expression
+	 *            the expression to show, or null to show nothing
+	 */
+	public void setExpression(Expression expression) {
+		_layout = expression == null ? null : new ExpressionLayout(expression, this::textWidth);
+		_focus = null;
+		updateScrollBar();
+		render();
+	}
+
+	/**
+	 * Returns the layout of the expression that is shown.
+	 *
+	 * @return the layout, or null if nothing is shown
+	 */
+	public ExpressionLayout getLayout() {
+		return _layout;
+	}
+
+	/**
+	 * Returns the pane in which the expression is drawn, e.g. to handle mouse events.
+	 *
+	 * @return the viewport
+	 */
+	public Pane getViewport() {
+		return _viewport;
+	}
+
+	/**
+	 * Returns a pane drawn over the expression, which is kept when the expression
+	 * is re-rendered, e.g. for an expression that is dragged. It does not receive
+	 * mouse events, and its coordinates are those of the viewport.
+	 *
+	 * @return the overlay
+	 */
+	public Pane getOverlay() {
+		return _overlay;
+	}
+
+	/**
+	 * Returns the expression that has the focus.
+	 *
+	 * @return the focused expression, or null if there is none
+	 */
+	public Expression getFocus() {
+		return _focus;
+	}
+
+	/**
+	 * Gives the focus to an expression, which is shown with a red border.
+	 *
+	 * @param focus
+	 *            an expression of the tree that is shown, or null to remove the
+	 *            focus
+	 */
+	public void setFocus(Expression focus) {
+		setBorder(_focus, Expression.NO_BORDER);
+		_focus = focus;
+		setBorder(_focus, Expression.RED_BORDER);
+	}
+
+	private void setBorder(Expression expression, Border border) {
+		final Node node = expression == null ? null : _nodes.get(expression);
+		if (node != null) {
+			((Region) node).setBorder(border);
+		}
+	}
+
+	/**
+	 * Returns the x coordinate in the viewport at which the expression currently
+	 * starts, after scrolling.
+	 *
+	 * @return the x coordinate of the root of the expression
+	 */
+	public double getRootX() {
+		return _originX - _scrollBar.getValue();
+	}
+
+	/**
+	 * Returns the node that shows the expression, if it is visible.
+	 *
+	 * @param expression
+	 *            an expression of the tree that is shown
+	 * @return its node, or null if it has none because it is scrolled out of view
+	 */
+	public Node getNode(Expression expression) {
+		return _nodes.get(expression);
+	}
+
+	/**
+	 * Returns the expression that a node shows.
+	 *
+	 * @param node
+	 *            a node in the view
+	 * @return the expression, or null if the node is an operator, a parenthesis or
+	 *         a placeholder
+	 */
+	public Expression getExpression(Node node) {
+		return _expressions.get(node);
+	}
+
+	/**
+	 * Rebuilds the nodes of the visible part of the expression, e.g. after its
+	 * nodes were changed.
+	 */
+	public void refresh() {
+		render();
+	}
+
+	/**
+	 * Returns the width of the text in the font of the labels, from the cached
+	 * widths of its characters.
+	 */
+	private double textWidth(String text) {
+		double width = 0;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c >= _charWidths.length) {
+				width += measure(String.valueOf(c));
+			} else {
+				if (Double.isNaN(_charWidths[c])) {
+					_charWidths[c] = measure(String.valueOf(c));
+				}
+				width += _charWidths[c];
+			}
+		}
+		return width;
+	}
+
+	private double measure(String text) {
+		final Text measured = new Text(text);
+		measured.setFont(_font);
+		return Math.ceil(measured.getLayoutBounds().getWidth());
+	}
+
+	private void updateScrollBar() {
+		final double width = _layout == null ? 0 : _layout.getWidth(_layout.getRoot());
+		final double max = Math.max(0, 2 * _originX + width - _viewport.getWidth());
+		_scrollBar.setMax(max);
+		_scrollBar.setVisibleAmount(_viewport.getWidth());
+		_scrollBar.setValue(Math.min(_scrollBar.getValue(), max));
+		_scrollBar.setVisible(max > 0);
+	}
+
+	/**
+	 * Returns every node to its pool, and materializes the visible part of the
+	 * expression.
+	 */
+	private void render() {
+		release();
+		if (_layout == null) {
+			_viewport.getChildren().setAll(_overlay);
+			return;
+		}
+		final double left = _scrollBar.getValue() - _originX;
+		final double right = left + _viewport.getWidth();
+		_rootNode = materialize(_layout.getRoot(), 0, left, right);
+		_rootNode.setLayoutX(getRootX());
+		_rootNode.setLayoutY(_originY);
+		_viewport.getChildren().setAll(_rootNode, _overlay);
+	}
+
+	/**
+	 * Returns the node of the expression, which starts at x in the layout; only the
+	 * parts in [left, right) are materialized.
+	 */
+	private Node materialize(Expression expression, double x, double left, double right) {
+		final double width = _layout.getWidth(expression);
+		if (x >= right || x + width <= left) {
+			return spacer(width);
+		}
+		final Node node;
+		if (!(expression instanceof CompoundExpression)) {
+			node = label(((LiteralExpression) expression).getValue(), width);
+		} else {
+			final HBox box = box();
+			final List<Expression> children = ((CompoundExpression) expression).getChildren();
+			final double[] offsets = _layout.getChildOffsets(expression);
+			if (ExpressionLayout.isParenthetical(expression)) {
+				box.getChildren().add(label("(", _layout.getTextWidth("(")));
+				for (int i = 0; i < children.size(); i++) {
+					box.getChildren().add(materialize(children.get(i), x + offsets[i], left, right));
+				}
+				box.getChildren().add(label(")", _layout.getTextWidth(")")));
+			} else {
+				final String operation = ExpressionLayout.getOperation(expression);
+				final int first = _layout.firstChildEndingAfter(expression, left - x);
+				final int last = _layout.lastChildStartingBefore(expression, right - x);
+				if (first > last) { // only an operator is visible
+					box.getChildren().add(spacer(width));
+				} else {
+					if (offsets[first] > 0) {
+						box.getChildren().add(spacer(offsets[first]));
+					}
+					for (int i = first; i <= last; i++) {
+						if (i > first) {
+							box.getChildren().add(label(operation, _layout.getTextWidth(operation)));
+						}
+						box.getChildren().add(materialize(children.get(i), x + offsets[i], left, right));
+					}
+					final double end = offsets[last] + _layout.getWidth(children.get(last));
+					if (end < width) {
+						box.getChildren().add(spacer(width - end));
+					}
+				}
+			}
+			node = box;
+		}
+		if (expression == _focus) {
+			((Region) node).setBorder(Expression.RED_BORDER);
+		}
+		_expressions.put(node, expression);
+		_nodes.put(expression, node);
+		return node;
+	}
+
+	private HBox box() {
+		HBox box = _boxPool.poll();
+		if (box == null) {
+			box = new HBox();
+		}
+		box.setBorder(Expression.NO_BORDER);
+		_boxes.add(box);
+		return box;
+	}
+
+	private Label label(String text, double width) {
+		Label label = _labelPool.poll();
+		if (label == null) {
+			label = new Label();
+			label.setFont(_font);
+			label.setTextOverrun(OverrunStyle.CLIP);
+		}
+		label.setText(text);
+		label.setTextFill(Color.BLACK);
+		label.setBorder(Expression.NO_BORDER);
+		label.setMinWidth(width);
+		label.setPrefWidth(width);
+		label.setMaxWidth(width);
+		_labels.add(label);
+		return label;
+	}
+
+	private Region spacer(double width) {
+		Region spacer = _spacerPool.poll();
+		if (spacer == null) {
+			spacer = new Region();
+		}
+		spacer.setMinWidth(width);
+		spacer.setPrefWidth(width);
+		spacer.setMaxWidth(width);
+		_spacers.add(spacer);
+		return spacer;
+	}
+
+	/**
+	 * Detaches every materialized node and returns it to its pool.
+	 */
+	private void release() {
+		for (HBox box : _boxes) {
+			box.getChildren().clear();
+		}
+		_boxPool.addAll(_boxes);
+		_labelPool.addAll(_labels);
+		_spacerPool.addAll(_spacers);
+		_boxes.clear();
+		_labels.clear();
+		_spacers.clear();
+		_expressions.clear();
+		_nodes.clear();
+		_rootNode = null;
+	}
+}
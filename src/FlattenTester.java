@@ -0,0 +1,105 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests in-place flattening and the tracking of which subtrees are already flat.
+ */
+public class FlattenTester {
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	/**
+	 * Returns the tree of the string without flattening it: every operator gets its own expression.
+	 */
+	private static Expression unflattened (String str) {
+		final Deque<Expression> operands = new ArrayDeque<Expression>();
+		final Deque<Character> operators = new ArrayDeque<Character>();
+		for (int i = 0; i < str.length(); i++) {
+			final char c = str.charAt(i);
+			if (c == '(' || c == '*') {
+				operators.push(c);
+			} else if (c == '+') {
+				while (!operators.isEmpty() && operators.peek() == '*') {
+					reduce(operands, operators.pop());
+				}
+				operators.push(c);
+			} else if (c == ')') {
+				while (operators.peek() != '(') {
+					reduce(operands, operators.pop());
+				}
+				operators.pop();
+				final ParentheticalExpression parenthetical = new ParentheticalExpression();
+				parenthetical.addSubexpression(operands.pop());
+				operands.push(parenthetical);
+			} else {
+				operands.push(new LiteralExpression(String.valueOf(c)));
+			}
+		}
+		while (!operators.isEmpty()) {
+			reduce(operands, operators.pop());
+		}
+		return operands.pop();
+	}
+
+	private static void reduce (Deque<Expression> operands, char operator) {
+		final Expression right = operands.pop();
+		final SimpleCompoundExpression compound = new SimpleCompoundExpression(String.valueOf(operator));
+		compound.addSubexpression(operands.pop());
+		compound.addSubexpression(right);
+		operands.push(compound);
+	}
+
+	private static void assertParents (Expression expression, CompoundExpression parent) {
+		assertSame(parent, expression.getParent());
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				assertParents(child, (CompoundExpression) expression);
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that flattening unflattened trees gives the parser's trees, with correct parents.
+	 */
+	public void testFlatten () throws ExpressionParseException {
+		final String[] strs = { "1+2+3", "1*2*3+4*5*6", "(1+2)+(3+4)", "1*(2*3)*4+((5+6)+7)", "x", "(((x)))" };
+		for (String str : strs) {
+			final Expression expression = unflattened(str);
+			expression.flatten();
+			assertEquals(str, _parser.parse(str, false).convertToString(0), expression.convertToString(0));
+			assertParents(expression, null);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies that a flattened tree is only flattened again after it changes.
+	 */
+	public void testFlatFlag () throws ExpressionParseException {
+		final AbstractCompoundExpression root = (AbstractCompoundExpression) unflattened("1+2*(3+4)");
+		assertFalse(root.isFlat());
+		root.flatten();
+		assertTrue(root.isFlat());
+		final AbstractCompoundExpression product = (AbstractCompoundExpression) root.getChildren().get(1);
+		final AbstractCompoundExpression sum = (AbstractCompoundExpression) ((CompoundExpression) product.getChildren().get(1)).getChildren().get(0);
+		assertTrue(sum.isFlat());
+
+		// a change deep in the tree marks its ancestors, but not its siblings
+		final SimpleCompoundExpression nested = new SimpleCompoundExpression("+");
+		nested.addSubexpression(new LiteralExpression("5"));
+		nested.addSubexpression(new LiteralExpression("6"));
+		sum.getChildren().add(nested);
+		nested.setParent(sum);
+		assertFalse(sum.isFlat());
+		assertFalse(product.isFlat());
+		assertFalse(root.isFlat());
+		root.flatten();
+		assertTrue(root.isFlat());
+		assertEquals(_parser.parse("1+2*(3+4+5+6)", false).convertToString(0), root.convertToString(0));
+		assertParents(root, null);
+
+		root.clearSubexpression();
+		assertFalse(root.isFlat());
+	}
+}
@@ -0,0 +1,203 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * An ExpressionMetricsSink that aggregates the measurements in memory, for tests
+ * and for reporting from within the application.
+ *
+ * Counters are LongAdders, which stripe their updates over several cells, so
+ * threads that record at the same time do not contend on one cache line. Latencies
+ * go into histograms with one bucket per power of two nanoseconds, which bounds the
+ * relative error of a percentile by a factor of two at a fixed, small size.
+ *
+ */
+public class InMemoryMetricsSink implements ExpressionMetricsSink {
+	// instance variables
+	private final Histogram _parseLatencies = new Histogram();
+	private final LongAdder _failures = new LongAdder();
+	private final LongAdder _splitAttempts = new LongAdder();
+	private final LongAdder _inputLength = new LongAdder();
+	private final LongAdder _nodes = new LongAdder();
+	private final AtomicReference<Slowest> _slowest = new AtomicReference<Slowest>();
+	private final ConcurrentHashMap<String, Histogram> _operations = new ConcurrentHashMap<String, Histogram>();
+
+	public void recordParse(String input, int nodeCount, long splitAttempts, long nanos, boolean succeeded) {
+		_parseLatencies.record(nanos);
+		if (!succeeded) {
+			_failures.increment();
+		}
+		if (splitAttempts > 0) {
+			_splitAttempts.add(splitAttempts);
+		}
+		_inputLength.add(input.length());
+		_nodes.add(nodeCount);
+		Slowest slowest = _slowest.get();
+		while (slowest == null || nanos > slowest._nanos) {
+			if (_slowest.compareAndSet(slowest, new Slowest(input, nanos))) {
+				break;
+			}
+			slowest = _slowest.get();
+		}
+	}
+
+	public void recordOperation(String operation, int nodeCount, long nanos) {
+		_operations.computeIfAbsent(operation, k -> new Histogram()).record(nanos);
+	}
+
+	/**
+	 * Returns the number of recorded parses, including the failed ones.
+	 * @return the number of parses
+	 */
+	public long getParseCount() {
+		return _parseLatencies.getCount();
+	}
+
+	/**
+	 * Returns the number of recorded parses of strings that could not be parsed.
+	 * @return the number of failed parses
+	 */
+	public long getFailureCount() {
+		return _failures.sum();
+	}
+
+	/**
+	 * Returns the total number of split attempts of the recorded parses.
+	 * @return the number of split attempts
+	 */
+	public long getSplitAttempts() {
+		return _splitAttempts.sum();
+	}
+
+	/**
+	 * Returns the total length of the recorded inputs.
+	 * @return the number of characters parsed
+	 */
+	public long getInputLength() {
+		return _inputLength.sum();
+	}
+
+	/**
+	 * Returns the total number of nodes of the parsed trees.
+	 * @return the number of nodes
+	 */
+	public long getNodeCount() {
+		return _nodes.sum();
+	}
+
+	/**
+	 * Returns the input of the slowest recorded parse.
+	 * @return the input, or null if no parse was recorded
+	 */
+	public String getSlowestInput() {
+		final Slowest slowest = _slowest.get();
+		return slowest == null ? null : slowest._input;
+	}
+
+	/**
+	 * Returns the histogram of the parse latencies.
+	 * @return the histogram
+	 */
+	public Histogram getParseLatencies() {
+		return _parseLatencies;
+	}
+
+	/**
+	 * Returns the histogram of the latencies of an operation.
+	 * @param operation the name of the operation, e.g. "flatten"
+	 * @return the histogram, or null if the operation was never recorded
+	 */
+	public Histogram getOperationLatencies(String operation) {
+		return _operations.get(operation);
+	}
+
+	/**
+	 * A histogram of latencies, whose bucket i counts the latencies in [2^(i-1), 2^i)
+	 * nanoseconds, and bucket 0 the latencies of 0.
+	 */
+	public static class Histogram {
+		private final LongAdder[] _buckets = new LongAdder[Long.SIZE];
+		private final LongAdder _totalNanos = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < _buckets.length; i++) {
+				_buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			nanos = Math.max(nanos, 0);
+			_buckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+			_totalNanos.add(nanos);
+		}
+
+		/**
+		 * Returns the number of recorded latencies.
+		 * @return the count
+		 */
+		public long getCount() {
+			long count = 0;
+			for (LongAdder bucket : _buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		/**
+		 * Returns the sum of the recorded latencies.
+		 * @return the total, in nanoseconds
+		 */
+		public long getTotalNanos() {
+			return _totalNanos.sum();
+		}
+
+		/**
+		 * Returns the counts of the buckets.
+		 * @return the counts, where count i is that of the latencies in [2^(i-1), 2^i) nanoseconds
+		 */
+		public long[] getBuckets() {
+			final long[] counts = new long[_buckets.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = _buckets[i].sum();
+			}
+			return counts;
+		}
+
+		/**
+		 * Returns an upper bound of a percentile of the recorded latencies, which is at
+		 * most twice the percentile.
+		 * @param percentile the percentile, between 0 and 100
+		 * @return the exclusive upper bound of the bucket of the percentile, in nanoseconds, or 0 if nothing was recorded
+		 */
+		public long getPercentile(double percentile) {
+			final long[] counts = getBuckets();
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return i == 0 ? 1 : i == counts.length - 1 ? Long.MAX_VALUE : 1L << i;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static class Slowest {
+		final String _input;
+		final long _nanos;
+
+		Slowest(String input, long nanos) {
+			_input = input;
+			_nanos = nanos;
+		}
+	}
+}
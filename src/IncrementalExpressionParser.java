@@ -0,0 +1,352 @@
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ *
+ * An ExpressionParser that remembers the text it parsed last, so that after an
+ * edit of that text only the smallest affected subtree is parsed again.
+ *
+ * Every expression of the current tree is mapped to its span of the text, stored
+ * as an offset relative to its parent's span and a length. An edit therefore only
+ * changes the spans of the ancestors of the re-parsed subtree and of their later
+ * siblings, and the path to the edit is found by a binary search among the
+ * children of every expression on it. The edit is first re-parsed as the smallest expression whose span
+ * contains it; if the new text of that expression no longer fits its position in
+ * the tree (e.g. a factor of a product that became a sum), its parent is tried
+ * next, up to the whole text. Expressions outside the re-parsed subtree are kept,
+ * together with their JavaFX nodes.
+ *
+ * Only the parse is proportional to the re-parsed text; an edit still takes time
+ * linear in the length of the text and in the number of children of the ancestors
+ * of the re-parsed subtree. The text is kept as a String, so it is copied with the
+ * edit (and update() compares the old and new texts to find the edit), the spans of
+ * the later siblings of every ancestor are shifted one by one, and the JavaFX
+ * nodes of the ancestors are rebuilt from the nodes of all their children. These
+ * are copies of references rather than parses, so in practice they take a small
+ * part of the time of re-parsing the whole text, but in a very wide sum the
+ * bookkeeping rather than the parse dominates the time of an edit.
+ *
+ * A long parse can be abandoned through a cancellation check, which is polled
+ * for every expression that is built; a cancelled parse leaves the previous text
+ * and tree in place.
+ *
+ * This class is not thread-safe.
+ */
+public class IncrementalExpressionParser implements ExpressionParser {
+	private final SpanRecordingParser _parser = new SpanRecordingParser();
+	private Map<Expression, Span> _spans = new IdentityHashMap<Expression, Span>();
+	private String _text;
+	private Expression _expression;
+	private int _lastReparsedLength;
+
+	/**
+	 * Parses the whole string, and remembers it as the text to which later edits
+	 * apply. Throws a ExpressionParseException if the specified string cannot be
+	 * parsed, in which case the previous text and tree are kept.
+	 *
+	 * @param str
+	 *            the string to parse into an expression tree
+	 *
+	 * @param withJavaFXControls
+	 *            whether to create JavaFX GUI objects for the expression tree
+	 *
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		final Map<Expression, Span> spans = _parser.record();
+		final Expression expression = _parser.parse(str, withJavaFXControls);
+		relativize(expression, 0, spans);
+		if (withJavaFXControls) {
+			expression.setNode();
+		}
+		_spans = spans;
+		_text = str;
+		_expression = expression;
+		_lastReparsedLength = str.length();
+		return expression;
+	}
+
+	/**
+	 * Re-parses after the text last parsed was changed to the specified string. The
+	 * edit is taken to be the part between the longest common prefix and the longest
+	 * common suffix of the old and new text.
+	 *
+	 * @param str
+	 *            the new text
+	 * @param withJavaFXControls
+	 *            whether to create JavaFX GUI objects for the expression tree
+	 * @return the updated expression tree
+	 * @throws ExpressionParseException
+	 *             if the new text cannot be parsed, in which case the previous
+	 *             text and tree are kept
+	 */
+	public Expression update(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		if (_text == null) {
+			return parse(str, withJavaFXControls);
+		}
+		final int maxLength = Math.min(_text.length(), str.length());
+		int prefix = 0;
+		while (prefix < maxLength && _text.charAt(prefix) == str.charAt(prefix)) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < maxLength - prefix
+		        && _text.charAt(_text.length() - 1 - suffix) == str.charAt(str.length() - 1 - suffix)) {
+			suffix++;
+		}
+		if (prefix == _text.length() && prefix == str.length()) {
+			return _expression; // nothing changed
+		}
+		return reparse(prefix, _text.length() - prefix - suffix, str.substring(prefix, str.length() - suffix),
+		               withJavaFXControls);
+	}
+
+	/**
+	 * Applies an edit to the text last parsed and re-parses only the smallest
+	 * affected subtree. The returned tree shares every unaffected expression with
+	 * the previous one.
+	 *
+	 * @param offset
+	 *            the index in the previous text at which the edit starts
+	 * @param removedLength
+	 *            the number of characters removed at the offset
+	 * @param insertedText
+	 *            the text inserted at the offset
+	 * @param withJavaFXControls
+	 *            whether to create JavaFX GUI objects for the re-parsed subtree
+	 *            and update those of its ancestors
+	 * @return the updated expression tree
+	 * @throws ExpressionParseException
+	 *             if the edited text cannot be parsed, in which case the previous
+	 *             text and tree are kept
+	 */
+	public Expression reparse(int offset, int removedLength, String insertedText, boolean withJavaFXControls)
+	        throws ExpressionParseException {
+		if (_text == null) {
+			throw new IllegalStateException("Nothing has been parsed yet");
+		}
+		if (offset < 0 || removedLength < 0 || offset + removedLength > _text.length()) {
+			throw new IndexOutOfBoundsException("Edit [" + offset + ", " + (offset + removedLength)
+			        + ") is outside of the text of length " + _text.length());
+		}
+		final String newText = _text.substring(0, offset) + insertedText + _text.substring(offset + removedLength);
+		final int delta = insertedText.length() - removedLength;
+
+		// Find the path from the root to the smallest expression containing the edit,
+		// with the index of every expression among the children of the previous one
+		final List<Expression> path = new ArrayList<Expression>();
+		final List<Integer> starts = new ArrayList<Integer>(), indices = new ArrayList<Integer>();
+		Expression expression = _expression;
+		int start = _spans.get(expression)._offset, index = -1;
+		while (start <= offset && offset + removedLength <= start + _spans.get(expression)._length) {
+			path.add(expression);
+			starts.add(start);
+			indices.add(index);
+			if (!(expression instanceof CompoundExpression)) {
+				break;
+			}
+			final List<Expression> children = ((CompoundExpression) expression).getChildren();
+			index = childAt(children, offset - start);
+			expression = children.get(index);
+			start += _spans.get(expression)._offset;
+		}
+
+		// Re-parse the innermost expression that still fits its position, ending with the root
+		for (int i = path.size() - 1; i > 0; i--) {
+			final AbstractCompoundExpression parent = (AbstractCompoundExpression) path.get(i - 1);
+			final Expression old = path.get(i);
+			final int oldStart = starts.get(i);
+			final int newEnd = oldStart + _spans.get(old)._length + delta;
+			final boolean product = parent instanceof SimpleCompoundExpression
+			        && "*".equals(((SimpleCompoundExpression) parent).getOperation());
+			final Map<Expression, Span> spans = _parser.record();
+			final Expression replacement = _parser.parse(newText, oldStart, newEnd, product);
+			if (replacement != null) {
+				replace(parent, starts.get(i - 1), indices.get(i), old, replacement, spans, delta, withJavaFXControls);
+				for (int j = i - 1; j >= 0; j--) {
+					final Expression ancestor = path.get(j);
+					_spans.get(ancestor)._length += delta;
+					if (j > 0) {
+						shiftFollowingSiblings((CompoundExpression) path.get(j - 1), indices.get(j), delta);
+					}
+					if (withJavaFXControls) {
+						((AbstractCompoundExpression) ancestor).updateNode();
+					}
+				}
+				_text = newText;
+				_lastReparsedLength = newEnd - oldStart;
+				return _expression;
+			}
+		}
+		return parse(newText, withJavaFXControls);
+	}
+
+	/**
+	 * Sets the check that is polled while parsing. Once it returns true, the parse
+	 * in progress is abandoned with a CancellationException.
+	 *
+	 * @param cancelled
+	 *            the cancellation check, or null to never cancel
+	 */
+	public void setCancellationCheck(BooleanSupplier cancelled) {
+		_parser._cancelled = cancelled;
+	}
+
+	/**
+	 * Returns the text that was parsed last.
+	 *
+	 * @return the text of the current expression tree
+	 */
+	public String getText() {
+		return _text;
+	}
+
+	/**
+	 * Returns the expression tree that was parsed last.
+	 *
+	 * @return the current expression tree
+	 */
+	public Expression getExpression() {
+		return _expression;
+	}
+
+	/**
+	 * Returns the number of characters that had to be parsed for the last parse or
+	 * edit.
+	 *
+	 * @return the length of the re-parsed text
+	 */
+	public int getLastReparsedLength() {
+		return _lastReparsedLength;
+	}
+
+	/**
+	 * Returns the index of the last child whose span starts at or before the
+	 * specified offset relative to its parent.
+	 */
+	private int childAt(List<Expression> children, int relativeOffset) {
+		int low = 0, high = children.size() - 1;
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (_spans.get(children.get(mid))._offset <= relativeOffset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Replaces the child at the specified index of the parent by the re-parsed
+	 * expression, or by its children if it has the same operation as the parent, so
+	 * that the tree stays flattened.
+	 */
+	private void replace(AbstractCompoundExpression parent, int parentStart, int index, Expression old,
+	                     Expression replacement, Map<Expression, Span> spans, int delta, boolean withJavaFXControls) {
+		relativize(replacement, parentStart, spans);
+		if (withJavaFXControls) {
+			replacement.setNode();
+		}
+		forget(old);
+		final List<Expression> children = parent.getChildren();
+		shiftFollowingSiblings(parent, index, delta);
+		children.remove(index);
+		final List<Expression> added;
+		if (replacement instanceof SimpleCompoundExpression && parent instanceof SimpleCompoundExpression
+		        && ((SimpleCompoundExpression) replacement).getOperation()
+		                .equals(((SimpleCompoundExpression) parent).getOperation())) {
+			final int offset = spans.get(replacement)._offset;
+			spans.remove(replacement);
+			added = ((SimpleCompoundExpression) replacement).getChildren();
+			for (Expression child : added) {
+				spans.get(child)._offset += offset;
+			}
+		} else {
+			added = Collections.singletonList(replacement);
+		}
+		children.addAll(index, added);
+		for (Expression child : added) {
+			child.setParent(parent);
+		}
+		_spans.putAll(spans);
+	}
+
+	/**
+	 * Moves the spans of the siblings after the child at the specified index by the
+	 * specified amount.
+	 */
+	private void shiftFollowingSiblings(CompoundExpression parent, int index, int delta) {
+		final List<Expression> children = parent.getChildren();
+		for (int i = index + 1; i < children.size(); i++) {
+			_spans.get(children.get(i))._offset += delta;
+		}
+	}
+
+	/**
+	 * Converts the absolute spans recorded while parsing the subtree to spans
+	 * relative to the parent, which starts at the specified index.
+	 */
+	private static void relativize(Expression expression, int parentStart, Map<Expression, Span> spans) {
+		final Span span = spans.get(expression);
+		final int start = span._offset;
+		span._offset = start - parentStart;
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				relativize(child, start, spans);
+			}
+		}
+	}
+
+	/**
+	 * Removes the spans of the subtree that is no longer part of the tree.
+	 */
+	private void forget(Expression expression) {
+		_spans.remove(expression);
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				forget(child);
+			}
+		}
+	}
+
+	/**
+	 * The span of an expression in the text: its offset relative to the start of
+	 * its parent's span (or of the text, for the root) and its length.
+	 */
+	private static class Span {
+		int _offset;
+		int _length;
+
+		Span(int offset, int length) {
+			_offset = offset;
+			_length = length;
+		}
+	}
+
+	/**
+	 * A LinearExpressionParser that records the absolute span of every expression it
+	 * builds, and polls the cancellation check.
+	 */
+	private static class SpanRecordingParser extends LinearExpressionParser {
+		private Map<Expression, Span> _recording;
+		private BooleanSupplier _cancelled;
+
+		/**
+		 * Starts recording into a new map, which is returned.
+		 */
+		Map<Expression, Span> record() {
+			_recording = new IdentityHashMap<Expression, Span>();
+			return _recording;
+		}
+
+		@Override
+		protected void parsed(Expression expression, int start, int end) {
+			if (_cancelled != null && _cancelled.getAsBoolean()) {
+				throw new CancellationException("Parse was cancelled");
+			}
+			_recording.put(expression, new Span(start, end - start));
+		}
+	}
+}
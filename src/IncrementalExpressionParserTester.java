@@ -0,0 +1,102 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests that re-parsing edits with IncrementalExpressionParser gives the same trees as parsing from scratch.
+ */
+public class IncrementalExpressionParserTester {
+	private IncrementalExpressionParser _parser;
+	private ExpressionParser _reference;
+
+	@Before
+	/**
+	 * Instantiates the parser under test and the reference parser
+	 */
+	public void setUp () {
+		_parser = new IncrementalExpressionParser();
+		_reference = new LinearExpressionParser();
+	}
+
+	@Test
+	/**
+	 * Verifies that editing one term only re-parses that term and keeps the other terms.
+	 */
+	public void testEditReusesSiblings () throws ExpressionParseException {
+		final Expression before = _parser.parse("2*x+3*y+4*z+(7+6*z)", false);
+		final List<Expression> terms = new ArrayList<Expression>(((CompoundExpression) before).getChildren());
+		final Expression after = _parser.reparse(6, 1, "q*r", false); // y -> q*r
+		assertEquals(_reference.parse("2*x+3*q*r+4*z+(7+6*z)", false).convertToString(0), after.convertToString(0));
+		assertSame(before, after);
+		final List<Expression> newTerms = ((CompoundExpression) after).getChildren();
+		assertSame(terms.get(0), newTerms.get(0));
+		assertSame(terms.get(2), newTerms.get(2));
+		assertSame(terms.get(3), newTerms.get(3));
+		assertEquals("q*r".length(), _parser.getLastReparsedLength());
+	}
+
+	@Test
+	/**
+	 * Verifies that an invalid edit is rejected and leaves the previous tree in place.
+	 */
+	public void testInvalidEdit () throws ExpressionParseException {
+		final Expression before = _parser.parse("1+(2*3)", false);
+		try {
+			_parser.update("1+(2*3", false);
+			fail("Expected ExpressionParseException");
+		} catch (ExpressionParseException epe) {
+			// expected
+		}
+		assertEquals("1+(2*3)", _parser.getText());
+		assertSame(before, _parser.getExpression());
+		assertEquals(_reference.parse("1+(2*3)+4", false).convertToString(0),
+		             _parser.update("1+(2*3)+4", false).convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies random sequences of edits against parsing the edited text from scratch.
+	 */
+	public void testRandomEdits () throws ExpressionParseException {
+		final String alphabet = "12xy+*() ";
+		final Random random = new Random(6);
+		for (int run = 0; run < 200; run++) {
+			String text = "2*x+3*y+4*z+(7+6*z)";
+			_parser.parse(text, false);
+			for (int i = 0; i < 30; i++) {
+				final int offset = random.nextInt(text.length() + 1);
+				final int removedLength = random.nextInt(Math.min(3, text.length() - offset) + 1);
+				final StringBuilder inserted = new StringBuilder();
+				for (int j = random.nextInt(4); j > 0; j--) {
+					inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+				final String newText = text.substring(0, offset) + inserted + text.substring(offset + removedLength);
+				Expression expected;
+				try {
+					expected = _reference.parse(newText, false);
+				} catch (ExpressionParseException epe) {
+					expected = null;
+				}
+				try {
+					final Expression actual = _parser.reparse(offset, removedLength, inserted.toString(), false);
+					assertNotNull(newText, expected);
+					assertEquals(newText, expected.convertToString(0), actual.convertToString(0));
+					assertParents(actual, null);
+					text = newText;
+				} catch (ExpressionParseException epe) {
+					assertNull(newText, expected);
+				}
+			}
+		}
+	}
+
+	private static void assertParents (Expression expression, CompoundExpression parent) {
+		assertSame(parent, expression.getParent());
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				assertParents(child, (CompoundExpression) expression);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * An ExpressionParser that measures the parses of another parser, and reports
+ * them to an ExpressionMetricsSink: the latency, the length of the input, the
+ * number of nodes of the tree and, for a SimpleExpressionParser, the number of
+ * split attempts of its A and M rules, which is how much it backtracked. It also
+ * measures flatten() and deepCopy() on the trees of its callers.
+ *
+ * Only a random sample of the calls is measured, so the instrumentation can stay
+ * on in production: an unsampled call costs one random number more than the
+ * wrapped call. The split attempts of a parse are read from the wrapped parser's
+ * striped counter before and after the parse, so they are exact as long as no
+ * other thread parses with the same SimpleExpressionParser at the same time, and
+ * otherwise include the splits of the concurrent parses.
+ *
+ * This class is thread-safe if the underlying parser and the sink are.
+ *
+ */
+public class InstrumentedExpressionParser implements ExpressionParser {
+	// instance variables
+	private final ExpressionParser _parser;
+	private final ExpressionMetricsSink _sink;
+	private final int _sampleEvery;
+
+	/**
+	 * Constructs a parser that measures every call.
+	 *
+	 * @param parser
+	 *            the parser to measure
+	 * @param sink
+	 *            receives the measurements
+	 */
+	public InstrumentedExpressionParser(ExpressionParser parser, ExpressionMetricsSink sink) {
+		this(parser, sink, 1);
+	}
+
+	/**
+	 * Constructs a parser
+	 *
+	 * @param parser
+	 *            the parser to measure
+	 * @param sink
+	 *            receives the measurements
+	 * @param sampleEvery
+	 *            measures one call in this many on average, chosen at random
+	 */
+	public InstrumentedExpressionParser(ExpressionParser parser, ExpressionMetricsSink sink, int sampleEvery) {
+		if (sampleEvery < 1) {
+			throw new IllegalArgumentException("Sampling rate must be positive: " + sampleEvery);
+		}
+		_parser = parser;
+		_sink = sink;
+		_sampleEvery = sampleEvery;
+	}
+
+	/**
+	 * Parses the string with the underlying parser, and measures the parse if it is
+	 * sampled. Throws a ExpressionParseException if the specified string cannot be
+	 * parsed.
+	 *
+	 * @param str
+	 *            the string to parse into an expression tree
+	 *
+	 * @param withJavaFXControls
+	 *            whether to create JavaFX GUI objects for the expression tree
+	 *
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		if (!isSampled()) {
+			return _parser.parse(str, withJavaFXControls);
+		}
+		final SimpleExpressionParser simple = _parser instanceof SimpleExpressionParser ? (SimpleExpressionParser) _parser : null;
+		final long splitsBefore = simple == null ? 0 : simple.getSplitAttempts();
+		final long start = System.nanoTime();
+		Expression expression = null;
+		try {
+			expression = _parser.parse(str, withJavaFXControls);
+			return expression;
+		} finally {
+			final long nanos = System.nanoTime() - start;
+			final long splits = simple == null ? -1 : simple.getSplitAttempts() - splitsBefore;
+			_sink.recordParse(str, expression == null ? 0 : countNodes(expression), splits, nanos, expression != null);
+		}
+	}
+
+	/**
+	 * Flattens the expression, and measures it if the call is sampled.
+	 *
+	 * @param expression
+	 *            the expression to flatten
+	 */
+	public void flatten(Expression expression) {
+		if (!isSampled()) {
+			expression.flatten();
+			return;
+		}
+		final long start = System.nanoTime();
+		expression.flatten();
+		final long nanos = System.nanoTime() - start;
+		_sink.recordOperation("flatten", countNodes(expression), nanos);
+	}
+
+	/**
+	 * Copies the expression, and measures it if the call is sampled.
+	 *
+	 * @param expression
+	 *            the expression to copy
+	 * @return the copy
+	 */
+	public Expression deepCopy(Expression expression) {
+		if (!isSampled()) {
+			return expression.deepCopy();
+		}
+		final long start = System.nanoTime();
+		final Expression copy = expression.deepCopy();
+		final long nanos = System.nanoTime() - start;
+		_sink.recordOperation("deepCopy", countNodes(copy), nanos);
+		return copy;
+	}
+
+	private boolean isSampled() {
+		return _sampleEvery == 1 || ThreadLocalRandom.current().nextInt(_sampleEvery) == 0;
+	}
+
+	/**
+	 * Returns the number of nodes of the tree, counted after the measurement so that
+	 * it is not part of the latency.
+	 */
+	private static int countNodes(Expression expression) {
+		final ExpressionTraversal traversal = new ExpressionTraversal(ExpressionTraversal.Order.PRE_ORDER);
+		int count = 0;
+		for (Expression e = traversal.reset(expression); e != null; e = traversal.next()) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,152 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests InstrumentedExpressionParser with the in-memory and the JFR sinks.
+ */
+public class InstrumentedExpressionParserTester {
+	@Test
+	/**
+	 * Verifies the measurements of successful and failed parses.
+	 */
+	public void testParses () throws ExpressionParseException {
+		final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+		final ExpressionParser parser = new InstrumentedExpressionParser(new SimpleExpressionParser(true), sink);
+		assertEquals("2*x+3*y", ExpressionLayout.getText(parser.parse("2*x+3*y", false)));
+		try {
+			parser.parse("2*+x", false);
+			fail("Parsed 2*+x");
+		} catch (ExpressionParseException epe) {
+		}
+		assertEquals(2, sink.getParseCount());
+		assertEquals(1, sink.getFailureCount());
+		assertEquals(11, sink.getInputLength());
+		assertEquals(7, sink.getNodeCount());
+		assertTrue(sink.getSplitAttempts() > 0);
+		assertNotNull(sink.getSlowestInput());
+		assertEquals(2, sink.getParseLatencies().getCount());
+		assertTrue(sink.getParseLatencies().getTotalNanos() > 0);
+	}
+
+	@Test
+	/**
+	 * Verifies that the split attempts show how much more the parser backtracks without packrat mode.
+	 */
+	public void testSplitAttempts () throws ExpressionParseException {
+		final String text = "x*(y+1)+x*(y+1)*x+x*(y+1)+x*(y+1)*x";
+		final InMemoryMetricsSink naive = new InMemoryMetricsSink();
+		new InstrumentedExpressionParser(new SimpleExpressionParser(), naive).parse(text, false);
+		final InMemoryMetricsSink packrat = new InMemoryMetricsSink();
+		new InstrumentedExpressionParser(new SimpleExpressionParser(true), packrat).parse(text, false);
+		assertTrue(naive.getSplitAttempts() > 10 * packrat.getSplitAttempts());
+
+		// other parsers do not report their split attempts
+		final InMemoryMetricsSink linear = new InMemoryMetricsSink();
+		new InstrumentedExpressionParser(new LinearExpressionParser(), linear).parse(text, false);
+		assertEquals(0, linear.getSplitAttempts());
+		assertEquals(1, linear.getParseCount());
+	}
+
+	@Test
+	/**
+	 * Verifies that only a sample of the calls is measured.
+	 */
+	public void testSampling () throws ExpressionParseException {
+		final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+		final InstrumentedExpressionParser parser = new InstrumentedExpressionParser(new LinearExpressionParser(), sink, 10);
+		for (int i = 0; i < 10000; i++) {
+			parser.parse("x+1", false);
+		}
+		assertTrue(sink.getParseCount() > 800 && sink.getParseCount() < 1200);
+		assertEquals(3 * sink.getParseCount(), sink.getNodeCount());
+		assertNull(sink.getOperationLatencies("flatten"));
+	}
+
+	@Test
+	/**
+	 * Verifies the measurements of flatten and deepCopy.
+	 */
+	public void testOperations () throws ExpressionParseException {
+		final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+		final InstrumentedExpressionParser parser = new InstrumentedExpressionParser(new LinearExpressionParser(), sink);
+		final Expression expression = parser.parse("(x+y)*2", false);
+		final Expression copy = parser.deepCopy(expression);
+		assertEquals(expression.convertToString(0), copy.convertToString(0));
+		parser.flatten(copy);
+		parser.flatten(copy);
+		assertEquals(1, sink.getOperationLatencies("deepCopy").getCount());
+		assertEquals(2, sink.getOperationLatencies("flatten").getCount());
+	}
+
+	@Test
+	/**
+	 * Verifies the buckets and percentiles of the histograms.
+	 */
+	public void testHistogram () {
+		final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+		for (int i = 0; i < 90; i++) {
+			sink.recordOperation("op", 1, 100);
+		}
+		for (int i = 0; i < 10; i++) {
+			sink.recordOperation("op", 1, 5000);
+		}
+		sink.recordOperation("op", 1, 0);
+		final InMemoryMetricsSink.Histogram histogram = sink.getOperationLatencies("op");
+		assertEquals(101, histogram.getCount());
+		assertEquals(90 * 100 + 10 * 5000, histogram.getTotalNanos());
+		assertEquals(1, histogram.getBuckets()[0]);
+		assertEquals(90, histogram.getBuckets()[7]); // [64, 128)
+		assertEquals(10, histogram.getBuckets()[13]); // [4096, 8192)
+		assertEquals(128, histogram.getPercentile(50));
+		assertEquals(8192, histogram.getPercentile(99));
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(0, new InMemoryMetricsSink().getParseLatencies().getPercentile(50));
+	}
+
+	@Test
+	/**
+	 * Verifies the events recorded by the JFR sink.
+	 */
+	public void testJfrEvents () throws Exception {
+		final Path file = Files.createTempFile("parses", ".jfr");
+		try {
+			final StringBuilder longInput = new StringBuilder("x");
+			for (int i = 0; i < 200; i++) {
+				longInput.append("+x");
+			}
+			try (Recording recording = new Recording()) {
+				recording.enable("cs210x.ExpressionParse");
+				recording.enable("cs210x.ExpressionOperation");
+				recording.start();
+				final InstrumentedExpressionParser parser = new InstrumentedExpressionParser(new SimpleExpressionParser(true), new JfrMetricsSink());
+				parser.deepCopy(parser.parse("2*x+3*y", false));
+				parser.parse(longInput.toString(), false);
+				recording.stop();
+				recording.dump(file);
+			}
+			final List<RecordedEvent> parses = new ArrayList<RecordedEvent>();
+			final List<RecordedEvent> operations = new ArrayList<RecordedEvent>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				final String name = event.getEventType().getName();
+				(name.equals("cs210x.ExpressionParse") ? parses : operations).add(event);
+			}
+			assertEquals(2, parses.size());
+			assertEquals("2*x+3*y", parses.get(0).getString("input"));
+			assertEquals(7, parses.get(0).getInt("nodeCount"));
+			assertTrue(parses.get(0).getLong("splitAttempts") > 0);
+			assertTrue(parses.get(0).getBoolean("succeeded"));
+			assertEquals(JfrMetricsSink.MAX_INPUT_LENGTH, parses.get(1).getString("input").length());
+			assertEquals(longInput.length(), parses.get(1).getInt("inputLength"));
+			assertEquals(1, operations.size());
+			assertEquals("deepCopy", operations.get(0).getString("operation"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
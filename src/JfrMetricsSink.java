@@ -0,0 +1,92 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ *
+ * An ExpressionMetricsSink that emits JDK Flight Recorder events, so that slow
+ * parses show up in a recording next to the GC pauses, lock contention and
+ * allocations of the same moment, with the input that caused them.
+ *
+ * The events are disabled unless a recording enables them, e.g. with
+ * -XX:StartFlightRecording or jcmd JFR.start; while they are disabled, recording
+ * only costs a check of a flag. Latencies are measured by the
+ * caller and carried in a field, so the events themselves have no duration.
+ *
+ */
+public class JfrMetricsSink implements ExpressionMetricsSink {
+	// inputs are truncated to this many characters in the events
+	static final int MAX_INPUT_LENGTH = 256;
+
+	public void recordParse(String input, int nodeCount, long splitAttempts, long nanos, boolean succeeded) {
+		final ParseEvent event = new ParseEvent();
+		if (event.isEnabled()) {
+			event.input = input.length() > MAX_INPUT_LENGTH ? input.substring(0, MAX_INPUT_LENGTH) : input;
+			event.inputLength = input.length();
+			event.nodeCount = nodeCount;
+			event.splitAttempts = splitAttempts;
+			event.latency = nanos;
+			event.succeeded = succeeded;
+			event.commit();
+		}
+	}
+
+	public void recordOperation(String operation, int nodeCount, long nanos) {
+		final OperationEvent event = new OperationEvent();
+		if (event.isEnabled()) {
+			event.operation = operation;
+			event.nodeCount = nodeCount;
+			event.latency = nanos;
+			event.commit();
+		}
+	}
+
+	@Name("cs210x.ExpressionParse")
+	@Label("Expression Parse")
+	@Category("Expression Editor")
+	@Description("A parse of an expression by an InstrumentedExpressionParser")
+	@StackTrace(false)
+	static class ParseEvent extends Event {
+		@Label("Input")
+		@Description("The parsed string, truncated to 256 characters")
+		String input;
+
+		@Label("Input Length")
+		int inputLength;
+
+		@Label("Node Count")
+		int nodeCount;
+
+		@Label("Split Attempts")
+		@Description("How many times the A and M rules tried to split a string on an operator, or -1 if unknown")
+		long splitAttempts;
+
+		@Label("Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+
+		@Label("Succeeded")
+		boolean succeeded;
+	}
+
+	@Name("cs210x.ExpressionOperation")
+	@Label("Expression Operation")
+	@Category("Expression Editor")
+	@Description("An operation on an expression tree, e.g. flatten or deepCopy")
+	@StackTrace(false)
+	static class OperationEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Node Count")
+		int nodeCount;
+
+		@Label("Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+	}
+}
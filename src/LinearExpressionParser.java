@@ -0,0 +1,237 @@
+/**
+ *
+ * A single-pass implementation of ExpressionParser
+ *
+ * Uses the same grammar as SimpleExpressionParser: E := A | X A := A+M | M M :=
+ * M*M | X X := (E) | L L := [0-9]+ | [a-z], but instead of trying every split of
+ * every substring it walks a cursor over the original String once. Sums and
+ * products are collected directly into flattened nodes, so the resulting tree is
+ * identical to the flattened output of SimpleExpressionParser while parsing runs
+ * in time linear in the length of the input.
+ *
+ * Like SimpleExpressionParser, spaces are ignored everywhere (so "1 2" is the
+ * literal 12) and integer literals must fit in an int. Single non-letter
+ * characters and signed integers, which SimpleExpressionParser happens to accept
+ * as literals, are not part of the grammar and are rejected.
+ */
+public class LinearExpressionParser implements ExpressionParser {
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible --
+	 * from the specified String. Throws a ExpressionParseException if the specified
+	 * string cannot be parsed.
+	 *
+	 * @param str
+	 *            the string to parse into an expression tree
+	 *
+	 * @param withJavaFXControls
+	 *            ignored, as in SimpleExpressionParser; call setNode() on the
+	 *            result to create the JavaFX controls
+	 *
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		final Expression expression = parse(str, 0, str.length(), false);
+		if (expression == null) {
+			// If we couldn't parse the string, then raise an error
+			throw new ExpressionParseException("Cannot parse expression: " + str.replace(" ", ""));
+		}
+		return expression;
+	}
+
+	/**
+	 * Parses the characters in [start, end) of the string as a sum (A) or as a
+	 * product (M), e.g. to re-parse a single term or factor of a larger expression.
+	 * @param str the string containing the text to parse
+	 * @param start the index of the first character to parse
+	 * @param end the index after the last character to parse
+	 * @param product whether the text must be an M rather than an A
+	 * @return the flattened expression, or null if the whole range cannot be parsed
+	 */
+	Expression parse(String str, int start, int end, boolean product) {
+		final Cursor cursor = new Cursor(str, start, end);
+		final Expression expression = product ? parseM(cursor) : parseA(cursor);
+		return cursor.atEnd() ? expression : null;
+	}
+
+	/**
+	 * Called for every expression as soon as it has been built. Does nothing by
+	 * default; subclasses can override it to find out where expressions come from.
+	 * @param expression the new expression
+	 * @param start the index of its first character in the string being parsed
+	 * @param end the index after its last character
+	 */
+	protected void parsed(Expression expression, int start, int end) {
+	}
+
+	/**
+	 * Parses A -> A + M | M starting at the cursor, collecting every M of the sum
+	 * into a single (already flattened) additive expression.
+	 * @param cursor the position in the string being parsed
+	 * @return the expression if it can be parsed, null otherwise
+	 */
+	private Expression parseA(Cursor cursor) {
+		final int start = cursor.position();
+		final Expression first = parseM(cursor);
+		if (first == null || cursor.peek() != '+') {
+			return first;
+		}
+		final Expression result = new SimpleCompoundExpression("+");
+		((AbstractCompoundExpression) result).addSubexpression(first);
+		while (cursor.peek() == '+') {
+			cursor.advance();
+			final Expression next = parseM(cursor);
+			if (next == null) {
+				return null;
+			}
+			((AbstractCompoundExpression) result).addSubexpression(next);
+		}
+		parsed(result, start, cursor.lastEnd());
+		return result;
+	}
+
+	/**
+	 * Parses M -> M * M | X starting at the cursor, collecting every X of the
+	 * product into a single (already flattened) multiplicative expression.
+	 * @param cursor the position in the string being parsed
+	 * @return the expression if it can be parsed, null otherwise
+	 */
+	private Expression parseM(Cursor cursor) {
+		final int start = cursor.position();
+		final Expression first = parseX(cursor);
+		if (first == null || cursor.peek() != '*') {
+			return first;
+		}
+		final Expression result = new SimpleCompoundExpression("*");
+		((AbstractCompoundExpression) result).addSubexpression(first);
+		while (cursor.peek() == '*') {
+			cursor.advance();
+			final Expression next = parseX(cursor);
+			if (next == null) {
+				return null;
+			}
+			((AbstractCompoundExpression) result).addSubexpression(next);
+		}
+		parsed(result, start, cursor.lastEnd());
+		return result;
+	}
+
+	/**
+	 * Parses X -> (E) | L starting at the cursor.
+	 * @param cursor the position in the string being parsed
+	 * @return the expression if it can be parsed, null otherwise
+	 */
+	private Expression parseX(Cursor cursor) {
+		if (cursor.peek() != '(') {
+			return parseL(cursor);
+		}
+		final int start = cursor.position();
+		cursor.advance();
+		final Expression inner = parseA(cursor);
+		if (inner == null || cursor.peek() != ')') {
+			return null;
+		}
+		cursor.advance();
+		final Expression result = new ParentheticalExpression();
+		((AbstractCompoundExpression) result).addSubexpression(inner);
+		parsed(result, start, cursor.lastEnd());
+		return result;
+	}
+
+	/**
+	 * Parses L -> [0-9]+ | [a-z] starting at the cursor.
+	 * @param cursor the position in the string being parsed
+	 * @return the expression if it can be parsed, null otherwise
+	 */
+	private Expression parseL(Cursor cursor) {
+		final char c = cursor.peek();
+		if (c >= 'a' && c <= 'z') {
+			final Expression result = new LiteralExpression(String.valueOf(c));
+			parsed(result, cursor.position(), cursor.position() + 1);
+			cursor.advance();
+			return result;
+		}
+		if (c < '0' || c > '9') {
+			return null;
+		}
+		// [0-9]+ -- spaces between digits are skipped, as SimpleExpressionParser removes them
+		final int start = cursor.position();
+		boolean hasSpaces = false;
+		long value = 0;
+		int end;
+		do {
+			value = value * 10 + (cursor.peek() - '0');
+			if (value > Integer.MAX_VALUE) {
+				return null; // SimpleExpressionParser uses Integer.parseInt, which rejects this
+			}
+			end = cursor.position() + 1;
+			hasSpaces |= cursor.advance();
+		} while (cursor.peek() >= '0' && cursor.peek() <= '9');
+		final String digits = cursor.substring(start, end);
+		final Expression result = new LiteralExpression(hasSpaces ? digits.replace(" ", "") : digits);
+		parsed(result, start, end);
+		return result;
+	}
+
+	/**
+	 * A position in the range of the string being parsed that transparently skips spaces.
+	 */
+	private static class Cursor {
+		private static final char END = '\0';
+
+		private final String _str;
+		private final int _limit;
+		private int _pos;
+		private int _lastEnd;
+
+		Cursor(String str, int start, int end) {
+			_str = str;
+			_limit = end;
+			_pos = start;
+			_lastEnd = start;
+			skipSpaces();
+		}
+
+		/**
+		 * Returns the current character, or END if the whole range was consumed.
+		 */
+		char peek() {
+			return _pos < _limit ? _str.charAt(_pos) : END;
+		}
+
+		/**
+		 * Moves past the current character and any spaces after it.
+		 * @return whether any spaces were skipped
+		 */
+		boolean advance() {
+			_lastEnd = ++_pos;
+			return skipSpaces();
+		}
+
+		int position() {
+			return _pos;
+		}
+
+		/**
+		 * Returns the index after the last character that was moved past.
+		 */
+		int lastEnd() {
+			return _lastEnd;
+		}
+
+		boolean atEnd() {
+			return _pos == _limit;
+		}
+
+		String substring(int start, int end) {
+			return _str.substring(start, end);
+		}
+
+		private boolean skipSpaces() {
+			final int start = _pos;
+			while (_pos < _limit && _str.charAt(_pos) == ' ') {
+				_pos++;
+			}
+			return _pos != start;
+		}
+	}
+}
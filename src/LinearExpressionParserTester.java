@@ -0,0 +1,119 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests that LinearExpressionParser builds the same trees as SimpleExpressionParser.
+ */
+public class LinearExpressionParserTester {
+	private ExpressionParser _parser;
+	private ExpressionParser _reference;
+
+	@Before
+	/**
+	 * Instantiates the parser under test and the reference parser
+	 */
+	public void setUp () {
+		_parser = new LinearExpressionParser();
+		_reference = new SimpleExpressionParser();
+	}
+
+	/**
+	 * Asserts that both parsers produce the same tree for the specified string.
+	 */
+	private void assertSameTree (String expressionStr) throws ExpressionParseException {
+		assertEquals(expressionStr, _reference.parse(expressionStr, false).convertToString(0),
+		             _parser.parse(expressionStr, false).convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies the trees from ExpressionParserPartialTester.
+	 */
+	public void testKnownExpressions () throws ExpressionParseException {
+		assertEquals("+\n\ta\n\tb\n", _parser.parse("a+b", false).convertToString(0));
+		assertEquals("*\n\t13\n\tx\n", _parser.parse("13*x", false).convertToString(0));
+		assertEquals("*\n\t4\n\t()\n\t\t+\n\t\t\tz\n\t\t\t*\n\t\t\t\t5\n\t\t\t\tx\n",
+		             _parser.parse("4*(z+5*x)", false).convertToString(0));
+		assertEquals("+\n\t1\n\t2\n\t3\n", _parser.parse("1+2+3", false).convertToString(0));
+		assertEquals("()\n\t+\n\t\tx\n\t\t()\n\t\t\tx\n\t\t()\n\t\t\t+\n\t\t\t\tx\n\t\t\t\tx\n\t\tx\n",
+		             _parser.parse("(x+(x)+(x+x)+x)", false).convertToString(0));
+	}
+
+	@Test
+	/**
+	 * Verifies that spaces and integer bounds are handled as in SimpleExpressionParser.
+	 */
+	public void testSpacesAndLiterals () throws ExpressionParseException {
+		assertSameTree(" 2 * x + 3 * ( y + 007 ) ");
+		assertSameTree("1 2+3");
+		assertSameTree("2147483647*x");
+		assertRejected("2147483648*x");
+	}
+
+	@Test
+	/**
+	 * Verifies that malformed strings are rejected.
+	 */
+	public void testRejected () {
+		for (String str : new String[] { "", " ", "1+2+", "((()))", "()()", "xy", "2x", "(1+2", "1+2)", "X", "a*+b" }) {
+			assertRejected(str);
+		}
+	}
+
+	private void assertRejected (String str) {
+		try {
+			_parser.parse(str, false);
+			fail("Expected ExpressionParseException for " + str);
+		} catch (ExpressionParseException epe) {
+			// expected
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies randomly generated expressions against SimpleExpressionParser.
+	 */
+	public void testRandomExpressions () throws ExpressionParseException {
+		final Random random = new Random(210);
+		for (int i = 0; i < 500; i++) {
+			final String expressionStr = randomExpression(random, 2);
+			// SimpleExpressionParser takes exponential time, so keep the reference inputs short
+			if (expressionStr.length() <= 10) {
+				assertSameTree(expressionStr);
+			}
+		}
+	}
+
+	private static String randomExpression (Random random, int depth) {
+		final int terms = 1 + random.nextInt(3);
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < terms; i++) {
+			if (i > 0) {
+				sb.append(random.nextBoolean() ? '+' : '*');
+			}
+			if (depth > 0 && random.nextInt(4) == 0) {
+				sb.append('(').append(randomExpression(random, depth - 1)).append(')');
+			} else if (random.nextBoolean()) {
+				sb.append((char) ('a' + random.nextInt(26)));
+			} else {
+				sb.append(random.nextInt(10));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Test(timeout = 5000)
+	/**
+	 * Verifies that a long sum, which is exponential for SimpleExpressionParser, parses quickly.
+	 */
+	public void testLongExpression () throws ExpressionParseException {
+		final StringBuilder sb = new StringBuilder("x");
+		for (int i = 0; i < 100000; i++) {
+			sb.append(i % 2 == 0 ? "+" : "*").append("(y+1)");
+		}
+		final Expression expression = _parser.parse(sb.toString(), false);
+		assertEquals(50001, ((AbstractCompoundExpression) expression).getChildren().size());
+	}
+}
@@ -1,5 +1,8 @@
 import javafx.scene.Node;
 import javafx.scene.control.Label;
+
+import java.io.IOException;
+
 /**
  *
  * An expression that has a literal value -> [0-9]+ | [a-z]
@@ -11,6 +14,9 @@ public class LiteralExpression implements Expression {
     private CompoundExpression _parent;
     private String _value;
     private Node _node;
+    private int _variable; // index of the variable, or -1 if the literal is a number
+    private long _number;
+    private boolean _isNumber;
 
     /**
      * Returns the JavaFX node associated with this expression.
@@ -35,7 +41,112 @@ public class LiteralExpression implements Expression {
      *            the value of the expression [0,9]+ | [a,z]
      */
     public LiteralExpression(String value) {
+        setValue(value);
+    }
+
+    /**
+     * Constructs a literal expression with the value of another, without its
+     * parent and node, and without converting the value again
+     *
+     * @param other
+     *            the literal expression to copy
+     */
+    private LiteralExpression(LiteralExpression other) {
+        _value = other._value;
+        _variable = other._variable;
+        _number = other._number;
+        _isNumber = other._isNumber;
+    }
+
+    /**
+     * Changes the value of the expression. Its JavaFX node, if any, is not
+     * updated.
+     *
+     * @param value
+     *            the new value of the expression [0,9]+ | [a,z]
+     */
+    public void setValue(String value) {
         _value = value;
+        // convert the value once, instead of every time the expression is evaluated
+        if (value.length() == 1 && value.charAt(0) >= 'a' && value.charAt(0) <= 'z') {
+            _variable = value.charAt(0) - 'a';
+        } else {
+            _variable = -1;
+            parseNumber();
+        }
+    }
+
+    /**
+     * Sets _number and _isNumber from an optionally signed decimal _value.
+     */
+    private void parseNumber() {
+        _isNumber = false;
+        _number = 0;
+        final boolean negative = _value.startsWith("-");
+        final int start = negative || _value.startsWith("+") ? 1 : 0;
+        long number = 0;
+        for (int i = start; i < _value.length(); i++) {
+            final int digit = Character.digit(_value.charAt(i), 10);
+            if (digit < 0 || number > (Long.MAX_VALUE - digit) / 10) {
+                return; // not a number that fits in a long
+            }
+            number = number * 10 + digit;
+        }
+        _isNumber = _value.length() > start;
+        _number = negative ? -number : number;
+    }
+
+    /**
+     * Returns whether the literal is a variable [a-z].
+     *
+     * @return whether the literal is a variable
+     */
+    public boolean isVariable() {
+        return _variable >= 0;
+    }
+
+    /**
+     * Returns the index of the variable, from 0 for a to 25 for z.
+     *
+     * @return the index of the variable, or -1 if the literal is not a variable
+     */
+    public int getVariable() {
+        return _variable;
+    }
+
+    /**
+     * Returns whether the literal is an integer that fits in a long.
+     *
+     * @return whether the literal is a number
+     */
+    public boolean isNumber() {
+        return _isNumber;
+    }
+
+    /**
+     * Returns the numeric value of the literal, converted when it was constructed.
+     *
+     * @return the value of the number, or 0 if the literal is not a number
+     */
+    public long getNumber() {
+        return _number;
+    }
+
+    /**
+     * Evaluates the literal: a variable evaluates to its value, a number to itself.
+     *
+     * @param variables
+     *            the values of the variables a through z, indexed from 0
+     * @return the value of the literal
+     */
+    public long evaluate(long[] variables) {
+        if (_variable >= 0) {
+            return variables[_variable];
+        }
+        if (!_isNumber) {
+            throw new ArithmeticException("Literal " + _value + " has no numeric value");
+        }
+        return _number;
     }
 
     /**
@@ -66,7 +177,7 @@ public class LiteralExpression implements Expression {
      * @return the deep copy
      */
     public Expression deepCopy() {
-        return new LiteralExpression(_value);
+        return new LiteralExpression(this);
     }
 
     /**
@@ -81,22 +192,21 @@ public class LiteralExpression implements Expression {
     }
 
     /**
-     * Creates a String representation by recursively printing out (using
+     * Appends a String representation by recursively printing out (using
      * indentation) the tree represented by this expression, starting at the
      * specified indentation level.
      *
+     * @param out
+     *            the Appendable to which to append the representation
      * @param indentLevel
      *            the indentation level (number of tabs from the left margin) at
      *            which to start
-     * @return a String representation of the expression tree.
+     * @throws IOException
+     *             if out throws it
      */
-    public String convertToString(int indentLevel) {
-        String converted = _value;
-        for (int i = 0; i < indentLevel; i++) {
-            converted = "\t" + converted; // add specified number of tabs
-        }
-        converted = converted + "\n"; // add a new line at the end
-        return (converted);
+    public void convertToString(Appendable out, int indentLevel) throws IOException {
+        Expression.indent(out, indentLevel); // add specified number of tabs
+        out.append(_value).append('\n'); // add a new line at the end
     }
 
 }
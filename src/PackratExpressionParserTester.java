@@ -0,0 +1,85 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests that SimpleExpressionParser builds the same trees with and without packrat mode.
+ */
+public class PackratExpressionParserTester {
+	private SimpleExpressionParser _parser;
+	private ExpressionParser _reference;
+
+	@Before
+	/**
+	 * Instantiates the packrat parser and the reference parser
+	 */
+	public void setUp () {
+		_parser = new SimpleExpressionParser(true);
+		_reference = new SimpleExpressionParser();
+	}
+
+	/**
+	 * Returns the tree for the specified string, or null if it cannot be parsed.
+	 */
+	private static String parseOrNull (ExpressionParser parser, String expressionStr) {
+		try {
+			return parser.parse(expressionStr, false).convertToString(0);
+		} catch (ExpressionParseException epe) {
+			return null;
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies random strings over the grammar's alphabet and spaces against the
+	 * non-memoized parser. The alphabet also has a '-', so that both parsers must
+	 * reject the same signed literals.
+	 */
+	public void testRandomStrings () {
+		final String alphabet = "12x+*() -";
+		final Random random = new Random(5);
+		for (int i = 0; i < 5000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 1 + random.nextInt(9);
+			for (int j = 0; j < length; j++) {
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			final String expressionStr = sb.toString();
+			assertEquals(expressionStr, parseOrNull(_reference, expressionStr), parseOrNull(_parser, expressionStr));
+		}
+	}
+
+	@Test(timeout = 5000)
+	/**
+	 * Verifies that a long sum, which is exponential without memoization, parses quickly.
+	 */
+	public void testLongExpression () throws ExpressionParseException {
+		final StringBuilder sb = new StringBuilder("x");
+		for (int i = 0; i < 60; i++) {
+			sb.append(i % 2 == 0 ? "+" : "*").append("(y+1)");
+		}
+		final Expression expression = _parser.parse(sb.toString(), false);
+		assertEquals(new LinearExpressionParser().parse(sb.toString(), false).convertToString(0),
+		             expression.convertToString(0));
+		assertTrue(_parser.getMemoHits() > 0);
+		assertTrue(_parser.getMemoMisses() > 0);
+	}
+
+	@Test
+	/**
+	 * Verifies that every node of the packrat tree points to its actual parent.
+	 */
+	public void testParents () throws ExpressionParseException {
+		assertParents(_parser.parse("1*(2+x)+3*(4*(y)+z)+5", false), null);
+	}
+
+	private static void assertParents (Expression expression, CompoundExpression parent) {
+		assertSame(parent, expression.getParent());
+		if (expression instanceof AbstractCompoundExpression) {
+			for (Expression child : ((AbstractCompoundExpression) expression).getChildren()) {
+				assertParents(child, (CompoundExpression) expression);
+			}
+		}
+	}
+}
@@ -18,10 +18,13 @@ public class ParentheticalExpression extends AbstractCompoundExpression {
         return _node;
     }
 
-    public void setNode (){
+    /**
+     * Recreates the JavaFX node of this expression from the existing node of its
+     * child.
+     */
+    public void updateNode (){
         String labelText = "(";
         for (Expression e : this.getChildren()) {
-            e.setNode();
             labelText = labelText + ((Label) e.getNode()).getText();
         }
         labelText += ")";
@@ -29,50 +32,39 @@ public class ParentheticalExpression extends AbstractCompoundExpression {
     }
 
     /**
-     * Method that flattens the expression tree.
+     * Method that evaluates the enclosed expression
+     *
+     * @param variables the values of the variables a through z, indexed from 0
+     * @return the value of the expression
      */
-    public void flatten() {
-        for (Expression e : this.getChildren()) {
-            e.flatten(); // recursively call flatten on children
-        }
+    public long evaluate(long[] variables) {
+        return this.getChildren().get(0).evaluate(variables);
     }
 
     /**
-     * Constructor for ParentheticalExpressions
+     * Constructor for ParentheticalExpressions, which have a single child
      */
     public ParentheticalExpression() {
-        super();
+        super(1);
     }
 
     /**
-     * Method that converts the expression tree into a String
+     * Returns the parentheses, which represent this expression in convertToString.
      *
-     * @param indentLevel the number of times the operation should be indented
-     * @return the string representation of the expression
+     * @return ()
      */
     @Override
-    public String convertToString(int indentLevel) {
-        String converted = "()";
-        for (int i = 0; i < indentLevel; i++) {
-            converted = "\t" + converted; // add specified number of tabs
-        }
-        converted = converted + "\n"; // add a new line at the end
-        for (Expression e : this.getChildren()) {
-            converted = converted + e.convertToString(indentLevel + 1); // add children strings recursively
-        }
-        return (converted);
+    protected String getLabel() {
+        return "()";
     }
 
     /**
-     * Method that creates a deep copy of this expression
+     * Method that creates a copy of this expression without its child
      * @return the copied expression
      */
-    public Expression deepCopy() {
-        final Expression copy = new ParentheticalExpression();
-        for (Expression e : this.getChildren()) {
-            ((AbstractCompoundExpression) copy).addSubexpression(e.deepCopy());
-        }
-        return copy;
+    @Override
+    protected AbstractCompoundExpression copyNode() {
+        return new ParentheticalExpression();
     }
 
 }
\ No newline at end of file
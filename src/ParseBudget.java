@@ -0,0 +1,162 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Limits on the work a parser may do for one string, so that parsing can be
+ * exposed to untrusted input: the length of the string, the nesting depth of
+ * its parentheses, the number of grammar rules invoked, and the time spent.
+ * A parse that exceeds any of them is aborted with a ParseBudgetExceededException.
+ *
+ * The length and depth are checked once, before parsing; the depth costs a scan
+ * of the string, and only if it is limited. Every rule invocation then
+ * increments a counter and compares it with its maximum, and the clock is only
+ * read every CLOCK_INTERVAL invocations, so the deadline may be overrun by the
+ * time that many invocations take, which is microseconds.
+ *
+ * Budgets are immutable and can be shared by parsers and threads.
+ *
+ */
+public class ParseBudget {
+	/**
+	 * A budget without limits.
+	 */
+	public static final ParseBudget UNLIMITED = new ParseBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+	// the clock is read whenever the number of rule invocations is a multiple of this power of two
+	static final int CLOCK_INTERVAL = 1024;
+
+	// instance variables
+	private final int _maxInputLength;
+	private final int _maxNestingDepth;
+	private final long _maxRuleInvocations;
+	private final long _timeoutNanos;
+
+	/**
+	 * Constructs a budget; pass the maximum value of a type for no limit.
+	 *
+	 * @param maxInputLength
+	 *            the maximum number of characters of a string, spaces included
+	 * @param maxNestingDepth
+	 *            the maximum number of nested parentheses
+	 * @param maxRuleInvocations
+	 *            the maximum number of times the parser may invoke a rule of the
+	 *            grammar for one string
+	 * @param timeout
+	 *            the maximum time a parse may take, or Long.MAX_VALUE
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public ParseBudget(int maxInputLength, int maxNestingDepth, long maxRuleInvocations, long timeout, TimeUnit unit) {
+		if (maxInputLength < 0 || maxNestingDepth < 0 || maxRuleInvocations < 0 || timeout < 0) {
+			throw new IllegalArgumentException("Negative limit");
+		}
+		_maxInputLength = maxInputLength;
+		_maxNestingDepth = maxNestingDepth;
+		_maxRuleInvocations = maxRuleInvocations;
+		_timeoutNanos = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the maximum number of characters of a string.
+	 * @return the maximum input length
+	 */
+	public int getMaxInputLength() {
+		return _maxInputLength;
+	}
+
+	/**
+	 * Returns the maximum number of nested parentheses.
+	 * @return the maximum nesting depth
+	 */
+	public int getMaxNestingDepth() {
+		return _maxNestingDepth;
+	}
+
+	/**
+	 * Returns the maximum number of rule invocations for one string.
+	 * @return the maximum number of rule invocations
+	 */
+	public long getMaxRuleInvocations() {
+		return _maxRuleInvocations;
+	}
+
+	/**
+	 * Returns the maximum time a parse may take.
+	 * @return the timeout in nanoseconds, or Long.MAX_VALUE
+	 */
+	public long getTimeoutNanos() {
+		return _timeoutNanos;
+	}
+
+	/**
+	 * Checks the length and nesting depth of a string, and starts metering its parse.
+	 *
+	 * @param str
+	 *            the string to parse
+	 * @return the meter of the parse
+	 * @throws ParseBudgetExceededException
+	 *             if the string is too long or too deeply nested
+	 */
+	Meter start(String str) throws ParseBudgetExceededException {
+		final Meter meter = new Meter(str.length());
+		if (str.length() > _maxInputLength) {
+			throw meter.exceeded(ParseBudgetExceededException.Limit.INPUT_LENGTH, _maxInputLength, str.length());
+		}
+		if (_maxNestingDepth < str.length()) { // else the string cannot nest deeper
+			int depth = 0;
+			for (int i = 0; i < str.length(); i++) {
+				final char c = str.charAt(i);
+				if (c == '(' && ++depth > _maxNestingDepth) {
+					throw meter.exceeded(ParseBudgetExceededException.Limit.NESTING_DEPTH, _maxNestingDepth, depth);
+				} else if (c == ')') {
+					depth--;
+				}
+			}
+		}
+		return meter;
+	}
+
+	/**
+	 * Counts the rule invocations of one parse, and watches its deadline. A meter is
+	 * used by one thread.
+	 */
+	class Meter {
+		private final int _inputLength;
+		private final long _start = System.nanoTime();
+		private long _invocations;
+
+		private Meter(int inputLength) {
+			_inputLength = inputLength;
+		}
+
+		/**
+		 * Records a rule invocation.
+		 *
+		 * @throws ParseBudgetExceededException
+		 *             if the parse invoked too many rules, or ran out of time
+		 */
+		void invoke() throws ParseBudgetExceededException {
+			if (++_invocations > _maxRuleInvocations) {
+				throw exceeded(ParseBudgetExceededException.Limit.RULE_INVOCATIONS, _maxRuleInvocations, _invocations);
+			}
+			if ((_invocations & (CLOCK_INTERVAL - 1)) == 0 && _timeoutNanos != Long.MAX_VALUE) {
+				final long elapsed = System.nanoTime() - _start;
+				if (elapsed > _timeoutNanos) {
+					throw exceeded(ParseBudgetExceededException.Limit.DEADLINE, _timeoutNanos, elapsed);
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of rule invocations so far.
+		 * @return the number of rule invocations
+		 */
+		long getInvocations() {
+			return _invocations;
+		}
+
+		private ParseBudgetExceededException exceeded(ParseBudgetExceededException.Limit limit, long maximum, long actual) {
+			return new ParseBudgetExceededException(limit, maximum, actual, _inputLength, _invocations, System.nanoTime() - _start);
+		}
+	}
+}
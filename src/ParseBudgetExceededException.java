@@ -0,0 +1,68 @@
+/**
+ * Thrown when a parse exceeds one of the limits of its ParseBudget. It carries
+ * how far the parse got, so that callers can log which input was rejected and why.
+ */
+class ParseBudgetExceededException extends ExpressionParseException {
+	/**
+	 * The limits of a ParseBudget.
+	 */
+	enum Limit {
+		INPUT_LENGTH, NESTING_DEPTH, RULE_INVOCATIONS, DEADLINE
+	}
+
+	private final Limit _limit;
+	private final long _maximum;
+	private final int _inputLength;
+	private final long _ruleInvocations;
+	private final long _elapsedNanos;
+
+	public ParseBudgetExceededException (Limit limit, long maximum, long actual, int inputLength, long ruleInvocations, long elapsedNanos) {
+		super("Parse budget exceeded: " + limit.name().toLowerCase().replace('_', ' ') + " " + actual + " > " + maximum
+			+ " (input length " + inputLength + ", " + ruleInvocations + " rule invocations, " + elapsedNanos / 1000000 + " ms)");
+		_limit = limit;
+		_maximum = maximum;
+		_inputLength = inputLength;
+		_ruleInvocations = ruleInvocations;
+		_elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Returns the limit that was exceeded.
+	 * @return the limit
+	 */
+	public Limit getLimit () {
+		return _limit;
+	}
+
+	/**
+	 * Returns the value of the limit that was exceeded, in nanoseconds for the deadline.
+	 * @return the maximum
+	 */
+	public long getMaximum () {
+		return _maximum;
+	}
+
+	/**
+	 * Returns the length of the input.
+	 * @return the number of characters
+	 */
+	public int getInputLength () {
+		return _inputLength;
+	}
+
+	/**
+	 * Returns how many rules the parse invoked before it was aborted.
+	 * @return the number of rule invocations
+	 */
+	public long getRuleInvocations () {
+		return _ruleInvocations;
+	}
+
+	/**
+	 * Returns how long the parse ran before it was aborted.
+	 * @return the time, in nanoseconds
+	 */
+	public long getElapsedNanos () {
+		return _elapsedNanos;
+	}
+}
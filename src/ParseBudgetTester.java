@@ -0,0 +1,104 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that SimpleExpressionParser aborts parses that exceed their ParseBudget.
+ */
+public class ParseBudgetTester {
+	/**
+	 * Returns a sum of the specified number of ones, which the parser without
+	 * packrat mode takes exponential time on.
+	 */
+	private static String ones (int terms) {
+		final StringBuilder sb = new StringBuilder("1");
+		for (int i = 1; i < terms; i++) {
+			sb.append("+1");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the exception thrown by parsing the string, failing if there is none.
+	 */
+	private static ParseBudgetExceededException exceeded (ExpressionParser parser, String str) throws ExpressionParseException {
+		try {
+			parser.parse(str, false);
+		} catch (ParseBudgetExceededException pbee) {
+			return pbee;
+		}
+		fail("Parsed " + str + " within the budget");
+		return null;
+	}
+
+	@Test
+	/**
+	 * Verifies that strings within the budget parse to the same trees as without a budget.
+	 */
+	public void testWithinBudget () throws ExpressionParseException {
+		final ParseBudget budget = new ParseBudget(100, 3, 100000, 1, TimeUnit.SECONDS);
+		for (boolean packrat : new boolean[] { false, true }) {
+			final ExpressionParser parser = new SimpleExpressionParser(packrat, budget);
+			for (String str : new String[] { "x", "2*x+3*y", "((x+1))*(y+(z))", "1 + 2 * x" }) {
+				assertEquals(new SimpleExpressionParser().parse(str, false).convertToString(0), parser.parse(str, false).convertToString(0));
+			}
+			try {
+				parser.parse("2*+x", false);
+				fail("Parsed 2*+x");
+			} catch (ParseBudgetExceededException pbee) {
+				fail("Exceeded the budget on a short string");
+			} catch (ExpressionParseException epe) {
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the limits on the length and nesting depth, which are checked before parsing.
+	 */
+	public void testInputLimits () throws ExpressionParseException {
+		final ExpressionParser parser = new SimpleExpressionParser(false, new ParseBudget(12, 3, Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.SECONDS));
+		final ParseBudgetExceededException tooLong = exceeded(parser, ones(7));
+		assertEquals(ParseBudgetExceededException.Limit.INPUT_LENGTH, tooLong.getLimit());
+		assertEquals(12, tooLong.getMaximum());
+		assertEquals(13, tooLong.getInputLength());
+		assertEquals(0, tooLong.getRuleInvocations());
+
+		parser.parse("(((x)))", false);
+		parser.parse("((x))*((y))", false);
+		final ParseBudgetExceededException tooDeep = exceeded(parser, "((((x))))");
+		assertEquals(ParseBudgetExceededException.Limit.NESTING_DEPTH, tooDeep.getLimit());
+		assertEquals(3, tooDeep.getMaximum());
+		assertTrue(tooDeep.getMessage().contains("nesting depth 4 > 3"));
+	}
+
+	@Test
+	/**
+	 * Verifies the limit on the rule invocations, which packrat mode stays well within.
+	 */
+	public void testRuleInvocations () throws ExpressionParseException {
+		final ParseBudget budget = new ParseBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, 100000, Long.MAX_VALUE, TimeUnit.SECONDS);
+		final ParseBudgetExceededException exceeded = exceeded(new SimpleExpressionParser(false, budget), ones(30));
+		assertEquals(ParseBudgetExceededException.Limit.RULE_INVOCATIONS, exceeded.getLimit());
+		assertEquals(100001, exceeded.getRuleInvocations());
+		assertEquals(59, exceeded.getInputLength());
+
+		assertEquals(ones(30), ExpressionLayout.getText(new SimpleExpressionParser(true, budget).parse(ones(30), false)));
+	}
+
+	@Test(timeout = 10000)
+	/**
+	 * Verifies that an adversarial string is aborted shortly after the deadline.
+	 */
+	public void testDeadline () throws ExpressionParseException {
+		final ExpressionParser parser = new SimpleExpressionParser(false, new ParseBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, 50, TimeUnit.MILLISECONDS));
+		final long start = System.nanoTime();
+		final ParseBudgetExceededException exceeded = exceeded(parser, ones(40));
+		final long elapsed = System.nanoTime() - start;
+		assertEquals(ParseBudgetExceededException.Limit.DEADLINE, exceeded.getLimit());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(50), exceeded.getMaximum());
+		assertTrue(exceeded.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertTrue(elapsed < TimeUnit.SECONDS.toNanos(2));
+		assertTrue(exceeded.getRuleInvocations() > 0);
+	}
+}
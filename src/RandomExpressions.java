@@ -0,0 +1,44 @@
+import java.util.Random;
+
+/**
+ * Generates the random expression texts of the testers: fully parenthesized sums and
+ * products of literals, nested to a given depth.
+ */
+class RandomExpressions {
+	private final int _variables, _numbers, _minChildren, _maxChildren;
+
+	/**
+	 * @param variables the number of variables to choose from, starting at a
+	 * @param numbers the numbers to choose from are 0 up to this, excluded
+	 * @param minChildren the fewest children of a sum or product
+	 * @param maxChildren the most children of a sum or product
+	 */
+	RandomExpressions (int variables, int numbers, int minChildren, int maxChildren) {
+		_variables = variables;
+		_numbers = numbers;
+		_minChildren = minChildren;
+		_maxChildren = maxChildren;
+	}
+
+	/**
+	 * Returns a random expression; every compound level is a literal with probability 1/3.
+	 * @param random the source of randomness
+	 * @param depth the deepest nesting of sums and products
+	 * @return the text of the expression
+	 */
+	String next (Random random, int depth) {
+		if (depth == 0 || random.nextInt(3) == 0) {
+			return random.nextBoolean() ? String.valueOf((char) ('a' + random.nextInt(_variables))) : String.valueOf(random.nextInt(_numbers));
+		}
+		final int children = _minChildren + random.nextInt(_maxChildren - _minChildren + 1);
+		final String operation = random.nextBoolean() ? "+" : "*";
+		final StringBuilder expression = new StringBuilder("(");
+		for (int i = 0; i < children; i++) {
+			if (i > 0) {
+				expression.append(operation);
+			}
+			expression.append(next(random, depth - 1));
+		}
+		return expression.append(')').toString();
+	}
+}
@@ -0,0 +1,152 @@
+import java.util.*;
+
+/**
+ *
+ * The orderings into which an expression can be dragged among its siblings, and
+ * where it would be shown in each of them.
+ *
+ * Moving the expression to position j of its parent's children shifts the siblings
+ * between its current position and j by one, and leaves everything else in place,
+ * so the orderings need not be materialized: ordering j is given by j alone, and
+ * the start of the expression in it is the width of the siblings before it, plus
+ * an operator per sibling. These starts are computed once, from the layout of the
+ * tree, and increase with j, so the ordering in which the expression would be
+ * closest to a given position is found by binary search.
+ *
+ */
+public class SiblingOrderings {
+	// instance variables
+	private final Expression _expression;
+	private final CompoundExpression _parent;
+	private final int _position;
+	private final double _width;
+	private final double[] _starts;
+
+	/**
+	 * Computes the orderings of the siblings of an expression.
+	 *
+	 * @param layout
+	 *            the layout of the tree that contains the expression
+	 * @param expression
+	 *            the expression that is dragged; it must have a parent
+	 */
+	public SiblingOrderings(ExpressionLayout layout, Expression expression) {
+		_expression = expression;
+		_parent = expression.getParent();
+		final List<Expression> children = _parent.getChildren();
+		final double[] offsets = layout.getChildOffsets(_parent);
+		int position = 0;
+		while (children.get(position) != expression) {
+			position++;
+		}
+		_position = position;
+		_width = layout.getWidth(expression);
+		_starts = new double[children.size()];
+		final String operation = ExpressionLayout.getOperation(_parent);
+		final double separator = operation.isEmpty() ? 0 : layout.getTextWidth(operation);
+		// the siblings after the expression move left by its width and an operator when it moves before them
+		double start = offsets[0];
+		for (int j = 0; j < _starts.length; j++) {
+			_starts[j] = start;
+			final int sibling = j < _position ? j : j + 1;
+			if (sibling < children.size()) {
+				start += layout.getWidth(children.get(sibling)) + separator;
+			}
+		}
+	}
+
+	/**
+	 * Returns the expression that is dragged.
+	 *
+	 * @return the expression
+	 */
+	public Expression getExpression() {
+		return _expression;
+	}
+
+	/**
+	 * Returns the parent among whose children the expression is dragged.
+	 *
+	 * @return the parent of the expression
+	 */
+	public CompoundExpression getParent() {
+		return _parent;
+	}
+
+	/**
+	 * Returns the position of the expression among its siblings before it was
+	 * dragged.
+	 *
+	 * @return its index in the children of its parent
+	 */
+	public int getPosition() {
+		return _position;
+	}
+
+	/**
+	 * Returns the number of orderings, i.e. of positions the expression can take.
+	 *
+	 * @return the number of children of the parent
+	 */
+	public int size() {
+		return _starts.length;
+	}
+
+	/**
+	 * Returns where the expression starts when it is moved to a position.
+	 *
+	 * @param position
+	 *            the index of the expression in the reordered children
+	 * @return its offset from the start of the parent
+	 */
+	public double getStart(int position) {
+		return _starts[position];
+	}
+
+	/**
+	 * Returns the position at which the expression would be closest to where it
+	 * is dragged, by binary search.
+	 *
+	 * @param start
+	 *            where the dragged expression starts, as an offset from the start
+	 *            of the parent
+	 * @return the index of the expression in the closest ordering
+	 */
+	public int getClosestPosition(double start) {
+		// the orderings are compared by the centers of the expression, which all differ by the same half width
+		int low = 0, high = _starts.length - 1;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (start - _starts[mid] > _starts[mid + 1] - start) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Moves the expression to a position among its siblings.
+	 *
+	 * @param position
+	 *            the index of the expression in the reordered children
+	 */
+	public void apply(int position) {
+		if (position == _position) {
+			return;
+		}
+		final List<Expression> children = _parent.getChildren();
+		children.remove(_position);
+		children.add(position, _expression);
+	}
+
+	/**
+	 * Returns the width of the expression.
+	 *
+	 * @return its width in the layout
+	 */
+	public double getWidth() {
+		return _width;
+	}
+}
@@ -0,0 +1,98 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+/**
+ * Tests SiblingOrderings with every character one unit wide, so that the starts are text positions.
+ */
+public class SiblingOrderingsTester {
+	private final ExpressionParser _parser = new LinearExpressionParser();
+
+	@Test
+	/**
+	 * Verifies the starts of an expression in every ordering of its siblings.
+	 */
+	public void testStarts () throws ExpressionParseException {
+		final CompoundExpression root = (CompoundExpression) _parser.parse("1+22+333+4444", false);
+		final Expression dragged = root.getChildren().get(1);
+		final SiblingOrderings orderings = new SiblingOrderings(new ExpressionLayout(root, String::length), dragged);
+		assertEquals(1, orderings.getPosition());
+		assertEquals(4, orderings.size());
+		// 22+1+333+4444, 1+22+333+4444, 1+333+22+4444, 1+333+4444+22
+		final double[] expected = { 0, 2, 6, 11 };
+		for (int j = 0; j < expected.length; j++) {
+			assertEquals(expected[j], orderings.getStart(j), 0);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the binary search for the closest ordering, and moving the expression there.
+	 */
+	public void testClosestPositionAndApply () throws ExpressionParseException {
+		final CompoundExpression root = (CompoundExpression) _parser.parse("1+22+333+4444", false);
+		final Expression dragged = root.getChildren().get(1);
+		final SiblingOrderings orderings = new SiblingOrderings(new ExpressionLayout(root, String::length), dragged);
+		assertEquals(0, orderings.getClosestPosition(-10));
+		assertEquals(0, orderings.getClosestPosition(0.9));
+		assertEquals(1, orderings.getClosestPosition(1.1));
+		assertEquals(1, orderings.getClosestPosition(3.9));
+		assertEquals(2, orderings.getClosestPosition(4.1));
+		assertEquals(3, orderings.getClosestPosition(9));
+		assertEquals(3, orderings.getClosestPosition(100));
+
+		orderings.apply(3);
+		assertEquals("1+333+4444+22", ExpressionLayout.getText(root));
+		assertSame(root, dragged.getParent());
+	}
+
+	@Test
+	/**
+	 * Verifies that the text of a reordered tree parses back to the same tree, as the
+	 * editor relies on when it writes a drop back to the text field: the incremental
+	 * parser keeps its own tree, and the displayed copy is the one reordered.
+	 */
+	public void testApplyMatchesText () throws ExpressionParseException {
+		for (String text : new String[] { "2*x+3*y+4*z+(7+6*z)", "a*(b+c*d)*(e)+f", "((x+1)*y*(2+z+w))" }) {
+			final IncrementalExpressionParser incremental = new IncrementalExpressionParser();
+			final int count = dragged(incremental.parse(text, false), new ArrayList<Expression>()).size();
+			for (int k = 0; k < count; k++) {
+				final Expression shown = incremental.getExpression().deepCopy();
+				final Expression dragged = dragged(shown, new ArrayList<Expression>()).get(k);
+				final int siblings = dragged.getParent().getChildren().size();
+				for (int j = 0; j < siblings; j++) {
+					// every drop starts a new drag from the current ordering
+					new SiblingOrderings(new ExpressionLayout(shown, String::length), dragged).apply(j);
+					final String reordered = ExpressionLayout.getText(shown);
+					assertEquals(text.length(), reordered.length());
+					assertEquals(shown.convertToString(0), _parser.parse(reordered, false).convertToString(0));
+					assertEquals(shown.convertToString(0), incremental.update(reordered, false).convertToString(0));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the expressions of the tree that have siblings, in pre-order.
+	 */
+	private static List<Expression> dragged (Expression expression, List<Expression> found) {
+		if (expression.getParent() != null && expression.getParent().getChildren().size() > 1) {
+			found.add(expression);
+		}
+		if (expression instanceof CompoundExpression) {
+			for (Expression child : ((CompoundExpression) expression).getChildren()) {
+				dragged(child, found);
+			}
+		}
+		return found;
+	}
+
+	@Test
+	/**
+	 * Verifies the one-line text of expressions with parentheses.
+	 */
+	public void testText () throws ExpressionParseException {
+		assertEquals("2*x+(7+6*z)*(y)", ExpressionLayout.getText(_parser.parse("2*x+(7+6*z)*(y)", false)));
+		assertEquals("x", ExpressionLayout.getText(_parser.parse("x", false)));
+	}
+}
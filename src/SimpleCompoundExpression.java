@@ -1,7 +1,8 @@
 import javafx.scene.Node;
 import javafx.scene.control.Label;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.List;
 
 /**
  *
@@ -20,11 +21,13 @@ public class SimpleCompoundExpression extends AbstractCompoundExpression {
         return _node;
     }
 
-    public void setNode (){
-        this.getChildren().get(0).setNode();
+    /**
+     * Recreates the JavaFX node of this expression from the existing nodes of its
+     * children.
+     */
+    public void updateNode (){
         String labelText = "" + ((Label) this.getChildren().get(0).getNode()).getText();
         for (int i = 1; i < this.getChildren().size(); i++) {
-            this.getChildren().get(i).setNode();
             labelText = labelText + _operation + ((Label) this.getChildren().get(i).getNode()).getText();
         }
         _node = new Label(labelText);
@@ -33,6 +36,27 @@ public class SimpleCompoundExpression extends AbstractCompoundExpression {
     // instance variable
     private String _operation;
 
+    /**
+     * Returns the operation of this expression.
+     *
+     * @return the operation (* or +)
+     */
+    public String getOperation() {
+        return _operation;
+    }
+
+    /**
+     * Changes the operation of this expression, which may make the tree no longer
+     * flat. Its JavaFX node, if any, is not updated.
+     *
+     * @param operation
+     *            the new operation (* or +)
+     */
+    public void setOperation(String operation) {
+        _operation = operation;
+        changed();
+    }
+
     /**
      * Constructor for SimpleCompoundExpression
      *
@@ -45,61 +69,135 @@ public class SimpleCompoundExpression extends AbstractCompoundExpression {
     }
 
     /**
-     * Method that flattens the expression tree.
+     * Constructor for SimpleCompoundExpression with a known number of children
+     *
+     * @param operation
+     *            the operation (* or +)
+     * @param childCapacity
+     *            the expected number of children
+     */
+    public SimpleCompoundExpression(String operation, int childCapacity) {
+        super(childCapacity);
+        _operation = operation;
+    }
+
+    /**
+     * Method that evaluates the sum or product of the children
+     *
+     * @param variables
+     *            the values of the variables a through z, indexed from 0
+     * @return the value of the expression
      */
-    public void flatten() {
-        final ArrayList<Expression> toAdd = new ArrayList<Expression>();
+    public long evaluate(long[] variables) {
+        final boolean additive = _operation.equals("+");
+        long result = additive ? 0 : 1;
         for (Expression e : this.getChildren()) {
-            e.flatten(); // recursively call flatten on children
-            if (e.getClass() == this.getClass()) { // Check if children is a SimpleCompoundExpression
-                if (this._operation.equals(((SimpleCompoundExpression) e)._operation)) { // Check if operation of
-                    // children is the same.
+            result = additive ? result + e.evaluate(variables) : result * e.evaluate(variables);
+        }
+        return result;
+    }
+
+    /**
+     * Method that splices the children of children with the same operation into
+     * this expression, and their children with the same operation, and so on.
+     * flatten() calls it on every expression, after its children. The list of
+     * children is changed in place, and not at all if no child has the same
+     * operation.
+     */
+    @Override
+    protected void flattenNode() {
+        final List<Expression> children = this.getChildren();
+        int size = children.size();
+        int newSize = 0;
+        boolean flat = true, hasEmpty = false;
+        for (int i = 0; i < size; i++) {
+            if (absorbs(children.get(i))) {
+                final int spliced = countSpliced(children.get(i));
+                newSize += spliced;
+                flat = false;
+                hasEmpty |= spliced == 0;
+            } else {
+                newSize++;
+            }
+        }
+        if (flat) {
+            return;
+        }
+        if (hasEmpty) { // so that every child takes at least one slot below
+            children.removeIf(e -> absorbs(e) && countSpliced(e) == 0);
+            size = children.size();
+        }
+        for (int i = size; i < newSize; i++) {
+            children.add(null);
+        }
+        // Fill from the end, which never overwrites a child that has not been moved yet
+        final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+        int slot = newSize;
+        for (int i = size - 1; i >= 0; i--) {
+            stack.push(children.get(i));
+            while (!stack.isEmpty()) {
+                final Expression e = stack.pop();
+                if (absorbs(e)) {
                     for (Expression c : ((SimpleCompoundExpression) e).getChildren()) {
-                        toAdd.add(c); // adds children of children with the same operation to toAdd.
+                        stack.push(c); // so that the last child is popped first
                     }
                 } else {
-                    toAdd.add(e); // adds the child to toAdd if the operation is different
+                    children.set(--slot, e);
+                    e.setParent(this);
                 }
-            } else {
-                toAdd.add(e); // adds the child to toAdd if it is of type literal or parenthetical
             }
         }
-        this.clearSubexpression(); // clears subexpressions so that the order will stay the same
-        for (Expression a : toAdd) {
-            this.addSubexpression(a); // adds all Expressions in toAdd as children of this
-        }
     }
 
     /**
-     * Method that converts the expression tree into a String
+     * Returns whether the expression is a SimpleCompoundExpression with the same
+     * operation as this one.
      *
-     * @param indentLevel
-     *            the number of times the operation should be indented
-     * @return the string representation of the expression
+     * @param child
+     *            a child of this expression
+     * @return whether flattening splices the child into this expression
      */
     @Override
-    public String convertToString(int indentLevel) {
-        String converted = _operation;
-        for (int i = 0; i < indentLevel; i++) {
-            converted = "\t" + converted; // add specified number of tabs
-        }
-        converted = converted + "\n"; // add a new line at the end
-        for (Expression e : this.getChildren()) {
-            converted = converted + e.convertToString(indentLevel + 1); // add children strings recursively
+    protected boolean absorbs(Expression child) {
+        return child.getClass() == this.getClass() && _operation.equals(((SimpleCompoundExpression) child)._operation);
+    }
+
+    /**
+     * Returns the number of expressions that splicing the child puts in its place.
+     */
+    private int countSpliced(Expression child) {
+        final ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+        stack.push(child);
+        int count = 0;
+        while (!stack.isEmpty()) {
+            for (Expression e : ((SimpleCompoundExpression) stack.pop()).getChildren()) {
+                if (absorbs(e)) {
+                    stack.push(e);
+                } else {
+                    count++;
+                }
+            }
         }
-        return (converted);
+        return count;
     }
 
     /**
-     * Method that creates a deep copy of this expression
+     * Returns the operation, which represents this expression in convertToString.
+     *
+     * @return the operation (* or +)
+     */
+    @Override
+    protected String getLabel() {
+        return _operation;
+    }
+
+    /**
+     * Method that creates a copy of this expression without its children
      *
      * @return the copied expression
      */
-    public Expression deepCopy() {
-        final Expression copy = new SimpleCompoundExpression(_operation);
-        for (Expression e : this.getChildren()) {
-            ((AbstractCompoundExpression) copy).addSubexpression(e.deepCopy());
-        }
-        return copy;
+    @Override
+    protected AbstractCompoundExpression copyNode() {
+        return new SimpleCompoundExpression(_operation);
     }
-}
\ No newline at end of file
+}
@@ -1,3 +1,7 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  *
  * An implementation of ExpressionParser
@@ -5,12 +9,112 @@
  * Starter code to implement an ExpressionParser. Your parser methods should use
  * the following grammar: E := A | X A := A+M | M M := M*M | X X := (E) | L L :=
  * [0-9]+ | [a-z]
+ *
+ * By default every rule tries every split of its substring, which takes time
+ * exponential in the number of operators. In packrat mode the outcome of every
+ * (rule, start, end) span is memoized, so each rule runs at most once per span
+ * and parsing takes polynomial time while producing exactly the same trees.
+ *
+ * A ParseBudget bounds the work of a parse: every rule invocation is metered,
+ * memoized or not, so that untrusted input cannot pin a core, and a parse that
+ * exceeds the budget throws a ParseBudgetExceededException.
  */
 public class SimpleExpressionParser implements ExpressionParser {
+	// instance variables
+	private final boolean _packrat;
+	private final ParseBudget _budget;
+	private final AtomicLong _memoHits = new AtomicLong();
+	private final AtomicLong _memoMisses = new AtomicLong();
+	private final LongAdder _splitAttempts = new LongAdder(); // added to once per parse, from the count of the parse
+
+	/**
+	 * Constructs a parser that does not memoize its rules.
+	 */
+	public SimpleExpressionParser() {
+		this(false);
+	}
+
+	/**
+	 * Constructs a parser
+	 *
+	 * @param packrat
+	 *            whether to memoize the outcome of each rule for each span of the
+	 *            input
+	 */
+	public SimpleExpressionParser(boolean packrat) {
+		this(packrat, ParseBudget.UNLIMITED);
+	}
+
+	/**
+	 * Constructs a parser whose parses are bounded by a budget
+	 *
+	 * @param packrat
+	 *            whether to memoize the outcome of each rule for each span of the
+	 *            input
+	 * @param budget
+	 *            the limits of each parse
+	 */
+	public SimpleExpressionParser(boolean packrat, ParseBudget budget) {
+		_packrat = packrat;
+		_budget = budget;
+	}
+
+	/**
+	 * Returns whether this parser memoizes the outcome of each rule.
+	 *
+	 * @return whether packrat mode is enabled
+	 */
+	public boolean isPackrat() {
+		return _packrat;
+	}
+
+	/**
+	 * Returns the limits of each parse.
+	 *
+	 * @return the budget
+	 */
+	public ParseBudget getBudget() {
+		return _budget;
+	}
+
+	/**
+	 * Returns how many rule invocations were answered from the memo table, over
+	 * all parses done by this parser in packrat mode.
+	 *
+	 * @return the number of memo hits
+	 */
+	public long getMemoHits() {
+		return _memoHits.get();
+	}
+
+	/**
+	 * Returns how many rule invocations had to be evaluated because their span was
+	 * not yet in the memo table, over all parses done by this parser in packrat
+	 * mode.
+	 *
+	 * @return the number of memo misses
+	 */
+	public long getMemoMisses() {
+		return _memoMisses.get();
+	}
+
+	/**
+	 * Returns how many times the A and M rules tried to split a string on one of
+	 * its operators, over all parses done by this parser. This is the amount of
+	 * backtracking: a string parses with one split attempt per operator at best,
+	 * and with exponentially many at worst without packrat mode.
+	 *
+	 * @return the number of split attempts
+	 */
+	public long getSplitAttempts() {
+		return _splitAttempts.sum();
+	}
+
 	/**
 	 * Attempts to create an expression tree -- flattened as much as possible --
 	 * from the specified String. Throws a ExpressionParseException if the specified
-	 * string cannot be parsed.
+	 * string cannot be parsed, and a ParseBudgetExceededException if parsing it
+	 * exceeds the budget of this parser.
 	 *
 	 * @param str
 	 *            the string to parse into an expression tree
@@ -21,9 +125,10 @@ public class SimpleExpressionParser implements ExpressionParser {
 	 * @return the Expression object representing the parsed expression tree
 	 */
 	public Expression parse(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		final ParseBudget.Meter meter = _budget.start(str);
 		// Remove spaces -- this simplifies the parsing logic
-		str = str.replaceAll(" ", "");
-		Expression expression = parseExpression(str);
+		str = removeSpaces(str);
+		Expression expression = _packrat ? parsePackrat(meter, str) : parseExpression(meter, str);
 		if (expression == null) {
 			// If we couldn't parse the string, then raise an error
 			throw new ExpressionParseException("Cannot parse expression: " + str);
@@ -34,112 +139,388 @@ public class SimpleExpressionParser implements ExpressionParser {
 		return expression;
 	}
 
+	/**
+	 * Returns the string without its spaces, like str.replaceAll(" ", "") but
+	 * without compiling a regular expression, and without copying a string that
+	 * has no spaces.
+	 * @param str the string
+	 * @return the string without spaces
+	 */
+	static String removeSpaces(String str) {
+		int i = str.indexOf(' ');
+		if (i < 0) {
+			return str;
+		}
+		final StringBuilder sb = new StringBuilder(str.length() - 1);
+		sb.append(str, 0, i);
+		for (i++; i < str.length(); i++) {
+			final char c = str.charAt(i);
+			if (c != ' ') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Parses the string
+	 * @param meter the meter of the parse
 	 * @param str the string to be parsed
 	 * @return the parsed expression
 	 */
-	private Expression parseExpression(String str) {
-		return parseE(str);
+	private Expression parseExpression(ParseBudget.Meter meter, String str) throws ParseBudgetExceededException {
+		final NaiveParse parse = new NaiveParse(meter);
+		try {
+			return parseE(parse, str);
+		} finally {
+			_splitAttempts.add(parse._splits);
+		}
+	}
+
+	/**
+	 * Parses the string in packrat mode
+	 * @param meter the meter of the parse
+	 * @param str the string to be parsed
+	 * @return the parsed expression, or null if it cannot be parsed
+	 */
+	private Expression parsePackrat(ParseBudget.Meter meter, String str) throws ParseBudgetExceededException {
+		final PackratParse packratParse = new PackratParse(meter, str);
+		try {
+			return packratParse.parse();
+		} finally {
+			_memoHits.addAndGet(packratParse._hits);
+			_memoMisses.addAndGet(packratParse._misses);
+			_splitAttempts.add(packratParse._splits);
+		}
 	}
 
 	/**
 	 * Parses the E string using the rule E -> A | X
+	 * @param parse the state of the parse
 	 * @param str the E string to be parsed
 	 * @return the expression if it can be parsed, null otherwise
 	 */
-	private Expression parseE(String str) {
-		if (parseA(str) != null) { // if it can be parsed as an A
-			return parseA(str);
-		} else if (parseX(str) != null) { // if it can be parsed as an X
-			return parseX(str);
+	private Expression parseE(NaiveParse parse, String str) throws ParseBudgetExceededException {
+		parse._meter.invoke();
+		if (parseA(parse, str) != null) { // if it can be parsed as an A
+			return parseA(parse, str);
+		} else if (parseX(parse, str) != null) { // if it can be parsed as an X
+			return parseX(parse, str);
 		}
 		return null;
 	}
 
 	/**
 	 * Parses the A string using the rule A -> A + M | M
+	 * @param parse the state of the parse
 	 * @param str the A string to be parsed
 	 * @return the expression if it can be parsed, null otherwise
 	 */
-	private Expression parseA(String str) {
+	private Expression parseA(NaiveParse parse, String str) throws ParseBudgetExceededException {
+		parse._meter.invoke();
 		// try A + M
 		int idxOfPlus = str.indexOf('+');
 		while (idxOfPlus > 0) { // try each +
-			if (parseA(str.substring(0, idxOfPlus)) != null && parseM(str.substring(idxOfPlus + 1)) != null) {
+			parse._splits++;
+			if (parseA(parse, str.substring(0, idxOfPlus)) != null && parseM(parse, str.substring(idxOfPlus + 1)) != null) {
 				final Expression result = new SimpleCompoundExpression("+");
-				((AbstractCompoundExpression) result).addSubexpression(parseA(str.substring(0, idxOfPlus)));
-				((AbstractCompoundExpression) result).addSubexpression(parseM(str.substring(idxOfPlus + 1)));
+				((AbstractCompoundExpression) result).addSubexpression(parseA(parse, str.substring(0, idxOfPlus)));
+				((AbstractCompoundExpression) result).addSubexpression(parseM(parse, str.substring(idxOfPlus + 1)));
 				return result;
 			}
 			idxOfPlus = str.indexOf('+', idxOfPlus + 1);
 		}
 		// try M
-		if (parseM(str) != null) {
-			return parseM(str);
+		if (parseM(parse, str) != null) {
+			return parseM(parse, str);
 		}
 		return null;
 	}
 
 	/**
 	 * Parses the M string using the rule M -> M * M | X
+	 * @param parse the state of the parse
 	 * @param str the M string to be parsed
 	 * @return the parsed expression if it can be parsed, null otherwise
 	 */
-	private Expression parseM(String str) {
+	private Expression parseM(NaiveParse parse, String str) throws ParseBudgetExceededException {
+		parse._meter.invoke();
 		// try M * M
 		int idxOfTimes = str.indexOf('*');
 		while (idxOfTimes > 0) { // try each *
-			if (parseM(str.substring(0, idxOfTimes)) != null && parseM(str.substring(idxOfTimes + 1)) != null) {
+			parse._splits++;
+			if (parseM(parse, str.substring(0, idxOfTimes)) != null && parseM(parse, str.substring(idxOfTimes + 1)) != null) {
 				final Expression result = new SimpleCompoundExpression("*");
-				((AbstractCompoundExpression) result).addSubexpression(parseM(str.substring(0, idxOfTimes)));
-				((AbstractCompoundExpression) result).addSubexpression(parseM(str.substring(idxOfTimes + 1)));
+				((AbstractCompoundExpression) result).addSubexpression(parseM(parse, str.substring(0, idxOfTimes)));
+				((AbstractCompoundExpression) result).addSubexpression(parseM(parse, str.substring(idxOfTimes + 1)));
 				return result;
 			}
 			idxOfTimes = str.indexOf('*', idxOfTimes + 1);
 		}
 		// try X
-		if (parseX(str) != null) {
-			return parseX(str);
+		if (parseX(parse, str) != null) {
+			return parseX(parse, str);
 		}
 		return null;
 	}
 
 	/**
 	 * Parses the X string using the rule X -> (E) | L
+	 * @param parse the state of the parse
 	 * @param str the X string to be parsed
 	 * @return the parsed expression if it can be parsed, null otherwise
 	 */
-	private Expression parseX(String str) {
+	private Expression parseX(NaiveParse parse, String str) throws ParseBudgetExceededException {
+		parse._meter.invoke();
 		// try (E)
-		if (str.startsWith("(") && str.endsWith(")") && parseE(str.substring(1, str.length() - 1)) != null) {
+		if (str.startsWith("(") && str.endsWith(")") && parseE(parse, str.substring(1, str.length() - 1)) != null) {
 			final Expression result = new ParentheticalExpression();
-			((AbstractCompoundExpression) result).addSubexpression(parseE(str.substring(1, str.length() - 1)));
+			((AbstractCompoundExpression) result).addSubexpression(parseE(parse, str.substring(1, str.length() - 1)));
 			return result;
 		}
 		// try L
-		if (parseL(str) != null) {
-			return parseL(str);
+		if (parseL(parse, str) != null) {
+			return parseL(parse, str);
 		}
 		return null;
 	}
 
 	/**
 	 * Parses the L string using the rule L -> [0-9]+ | [a-z]
+	 * @param parse the state of the parse
 	 * @param str the L string to be parsed
 	 * @return the parsed expression if it can be parsed, null otherwise
 	 */
-	private Expression parseL(String str) {
-		// try [0-9]+
-		try {
-			Integer.parseInt(str);
-			return new LiteralExpression(str);
-		} catch (Exception e) {
-		}
-		// try [a-z]
-		if (str.length() == 1 && str.equals(str.toLowerCase())) {
+	private Expression parseL(NaiveParse parse, String str) throws ParseBudgetExceededException {
+		parse._meter.invoke();
+		if (ExpressionLexer.isLiteral(str, 0, str.length())) {
 			return new LiteralExpression(str);
 		}
 		return null;
 	}
+
+	/**
+	 * The state of a single parse by the naive rules: its meter, and the splits
+	 * that it attempted, which are added to the totals of the parser when it ends.
+	 */
+	private static class NaiveParse {
+		private final ParseBudget.Meter _meter;
+		private long _splits;
+
+		NaiveParse(ParseBudget.Meter meter) {
+			_meter = meter;
+		}
+	}
+
+	/**
+	 * A single packrat parse of one string. Each rule is first recognized over a
+	 * span [start, end) of the string, in the same order as the rules above, and
+	 * the outcome (which alternative or which split succeeded) is memoized under a
+	 * long key packed from the rule and the offsets. The tree is then built once
+	 * from the memoized outcomes, so no node is ever shared between candidate
+	 * parents.
+	 */
+	private static class PackratParse {
+		// rules
+		private static final int E = 1, A = 2, M = 3, X = 4, L = 5;
+		// outcomes; a non-negative outcome is the index of the operator that was split on
+		private static final int FAIL = -1, FIRST = -2, SECOND = -3;
+
+		private final ParseBudget.Meter _meter;
+		private final String _str;
+		private final LongIntHashMap _memo = new LongIntHashMap();
+		private final int[] _literalEnds; // end of the literal token starting at each index, or -1
+		private long _hits, _misses, _splits;
+
+		PackratParse(ParseBudget.Meter meter, String str) {
+			_meter = meter;
+			_str = str;
+			_literalEnds = new int[str.length()];
+			Arrays.fill(_literalEnds, -1);
+			final ExpressionLexer lexer = new ExpressionLexer();
+			for (int token = lexer.tokenize(str) - 1; token >= 0; token--) {
+				final int kind = lexer.getKind(token);
+				if (kind == ExpressionLexer.VARIABLE
+				        || kind == ExpressionLexer.NUMBER && lexer.getNumber(token) >= 0
+				           && lexer.getNumber(token) <= Integer.MAX_VALUE) {
+					_literalEnds[lexer.getStart(token)] = lexer.getEnd(token);
+				}
+			}
+		}
+
+		/**
+		 * Parses the whole string
+		 * @return the parsed expression, or null if it cannot be parsed
+		 */
+		Expression parse() throws ParseBudgetExceededException {
+			return recognize(E, 0, _str.length()) == FAIL ? null : build(E, 0, _str.length());
+		}
+
+		/**
+		 * Returns the memoized outcome of the rule over the span, evaluating it first
+		 * if necessary.
+		 */
+		private int recognize(int rule, int start, int end) throws ParseBudgetExceededException {
+			_meter.invoke();
+			final long key = ((long) rule << 60) | ((long) start << 30) | end;
+			final int memoized = _memo.get(key);
+			if (memoized != LongIntHashMap.ABSENT) {
+				_hits++;
+				return memoized;
+			}
+			_misses++;
+			final int outcome;
+			switch (rule) {
+			case E:
+				outcome = recognizeE(start, end);
+				break;
+			case A:
+				outcome = recognizeSplit(A, '+', M, start, end);
+				break;
+			case M:
+				outcome = recognizeSplit(M, '*', M, start, end);
+				break;
+			case X:
+				outcome = recognizeX(start, end);
+				break;
+			default:
+				outcome = recognizeL(start, end);
+			}
+			_memo.put(key, outcome);
+			return outcome;
+		}
+
+		/**
+		 * E -> A | X
+		 */
+		private int recognizeE(int start, int end) throws ParseBudgetExceededException {
+			if (recognize(A, start, end) != FAIL) {
+				return FIRST;
+			} else if (recognize(X, start, end) != FAIL) {
+				return SECOND;
+			}
+			return FAIL;
+		}
+
+		/**
+		 * A -> A + M | M and M -> M * M | X. As in parseA and parseM, the splits are
+		 * tried from left to right, and none are tried if the span starts with the
+		 * operator.
+		 */
+		private int recognizeSplit(int rule, char operator, int rightRule, int start, int end) throws ParseBudgetExceededException {
+			int idx = _str.indexOf(operator, start);
+			while (idx > start && idx < end) { // try each operator
+				_splits++;
+				if (recognize(rule, start, idx) != FAIL && recognize(rightRule, idx + 1, end) != FAIL) {
+					return idx;
+				}
+				idx = _str.indexOf(operator, idx + 1);
+			}
+			return recognize(rule == A ? M : X, start, end) != FAIL ? SECOND : FAIL;
+		}
+
+		/**
+		 * X -> (E) | L
+		 */
+		private int recognizeX(int start, int end) throws ParseBudgetExceededException {
+			if (end - start >= 2 && _str.charAt(start) == '(' && _str.charAt(end - 1) == ')'
+			        && recognize(E, start + 1, end - 1) != FAIL) {
+				return FIRST;
+			}
+			return recognize(L, start, end) != FAIL ? SECOND : FAIL;
+		}
+
+		/**
+		 * L -> [0-9]+ | [a-z], with the same checks as parseL. Every span that
+		 * is recognized as an L is bounded by operators, parentheses or the ends of
+		 * the string, so it is a literal exactly if it is a whole literal token.
+		 */
+		private int recognizeL(int start, int end) {
+			return start < end && _literalEnds[start] == end ? FIRST : FAIL;
+		}
+
+		/**
+		 * Builds the tree for a span that was successfully recognized by the rule.
+		 */
+		private Expression build(int rule, int start, int end) {
+			final int outcome = _memo.get(((long) rule << 60) | ((long) start << 30) | end);
+			switch (rule) {
+			case E:
+				return build(outcome == FIRST ? A : X, start, end);
+			case A:
+			case M:
+				if (outcome == SECOND) {
+					return build(rule == A ? M : X, start, end);
+				}
+				final Expression result = new SimpleCompoundExpression(rule == A ? "+" : "*");
+				((AbstractCompoundExpression) result).addSubexpression(build(rule, start, outcome));
+				((AbstractCompoundExpression) result).addSubexpression(build(M, outcome + 1, end));
+				return result;
+			case X:
+				if (outcome == SECOND) {
+					return build(L, start, end);
+				}
+				final Expression parenthetical = new ParentheticalExpression();
+				((AbstractCompoundExpression) parenthetical).addSubexpression(build(E, start + 1, end - 1));
+				return parenthetical;
+			default:
+				return new LiteralExpression(_str.substring(start, end));
+			}
+		}
+	}
+
+	/**
+	 * An open-addressing hash map from non-zero primitive long keys to int values.
+	 */
+	private static class LongIntHashMap {
+		static final int ABSENT = Integer.MIN_VALUE;
+
+		private long[] _keys = new long[64];
+		private int[] _values = new int[64];
+		private int _size;
+
+		int get(long key) {
+			final int mask = _keys.length - 1;
+			for (int i = hash(key) & mask; _keys[i] != 0; i = (i + 1) & mask) {
+				if (_keys[i] == key) {
+					return _values[i];
+				}
+			}
+			return ABSENT;
+		}
+
+		void put(long key, int value) {
+			if (2 * (_size + 1) > _keys.length) {
+				resize();
+			}
+			final int mask = _keys.length - 1;
+			int i = hash(key) & mask;
+			while (_keys[i] != 0 && _keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if (_keys[i] == 0) {
+				_size++;
+			}
+			_keys[i] = key;
+			_values[i] = value;
+		}
+
+		private void resize() {
+			final long[] oldKeys = _keys;
+			final int[] oldValues = _values;
+			_keys = new long[oldKeys.length * 2];
+			_values = new int[oldKeys.length * 2];
+			_size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static int hash(long key) {
+			final long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
 }
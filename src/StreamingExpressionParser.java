@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * A streaming implementation of ExpressionParser, for machine-generated
+ * expressions too large to hold as a String.
+ *
+ * Uses the same grammar as LinearExpressionParser and accepts exactly the same
+ * strings, but reads its input from a Reader or a ReadableByteChannel in chunks
+ * of a fixed size, and runs a state machine over each character instead of
+ * recursing, so it keeps no more of the text than the digits of the current
+ * number. The structure is reported bottom-up to a Visitor: every literal as
+ * soon as it is read, and every sum, product or parenthetical expression once
+ * its last child has been reported, with the number of its children. There are
+ * no events on entering a sum or product, because an operand is only known to
+ * start a sum or product once the operator after it is read.
+ *
+ * The parser itself needs memory proportional to the nesting depth of the
+ * parentheses, for the number of children of the open sums and products; the
+ * Visitor decides what else is kept. parse() builds the flattened tree with a
+ * TreeBuilder, whose memory is that of the tree.
+ *
+ */
+public class StreamingExpressionParser implements ExpressionParser {
+	/**
+	 * The default number of characters or bytes read at once.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	// instance variables
+	private final int _chunkSize;
+
+	/**
+	 * Receives the structure of a parsed expression in post-order.
+	 */
+	public interface Visitor {
+		/**
+		 * Called for every literal, in the order of the text.
+		 * @param value the literal, e.g. x or 42
+		 */
+		void literal (String value);
+
+		/**
+		 * Called for every compound expression after its children.
+		 * @param operation + for a sum, * for a product, or () for parentheses
+		 * @param childCount the number of children, which are the most recent expressions reported at this level
+		 */
+		void exit (String operation, int childCount);
+	}
+
+	/**
+	 * A Visitor that builds the flattened tree, with a stack of the expressions
+	 * whose parent has not been reported yet.
+	 */
+	public static class TreeBuilder implements Visitor {
+		private final List<Expression> _stack = new ArrayList<Expression>();
+
+		public void literal(String value) {
+			_stack.add(new LiteralExpression(value));
+		}
+
+		public void exit(String operation, int childCount) {
+			final AbstractCompoundExpression compound = "()".equals(operation) ? new ParentheticalExpression() : new SimpleCompoundExpression(operation);
+			final List<Expression> children = _stack.subList(_stack.size() - childCount, _stack.size());
+			for (Expression child : children) {
+				compound.addSubexpression(child);
+			}
+			children.clear();
+			_stack.add(compound);
+		}
+
+		/**
+		 * Returns the root of the tree once the whole expression was reported.
+		 * @return the root
+		 */
+		public Expression getRoot() {
+			return _stack.get(0);
+		}
+	}
+
+	/**
+	 * Constructs a parser that reads DEFAULT_CHUNK_SIZE characters or bytes at once.
+	 */
+	public StreamingExpressionParser() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Constructs a parser
+	 *
+	 * @param chunkSize
+	 *            the number of characters or bytes read at once
+	 */
+	public StreamingExpressionParser(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		_chunkSize = chunkSize;
+	}
+
+	/**
+	 * Attempts to create an expression tree -- flattened as much as possible --
+	 * from the specified String. Throws a ExpressionParseException if the specified
+	 * string cannot be parsed.
+	 *
+	 * @param str
+	 *            the string to parse into an expression tree
+	 *
+	 * @param withJavaFXControls
+	 *            ignored, as in SimpleExpressionParser; call setNode() on the
+	 *            result to create the JavaFX controls
+	 *
+	 * @return the Expression object representing the parsed expression tree
+	 */
+	public Expression parse(String str, boolean withJavaFXControls) throws ExpressionParseException {
+		try {
+			return parse(new StringReader(str));
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe); // a StringReader does not throw
+		}
+	}
+
+	/**
+	 * Parses the characters of a reader into a flattened tree.
+	 *
+	 * @param reader
+	 *            the text of the expression, which is read to its end
+	 * @return the Expression object representing the parsed expression tree
+	 * @throws ExpressionParseException
+	 *             if the text cannot be parsed
+	 * @throws IOException
+	 *             if the reader fails
+	 */
+	public Expression parse(Reader reader) throws ExpressionParseException, IOException {
+		final TreeBuilder builder = new TreeBuilder();
+		parse(reader, builder);
+		return builder.getRoot();
+	}
+
+	/**
+	 * Parses the characters of a reader, reporting the structure to a visitor. If
+	 * the text cannot be parsed, the visitor may have received the events of the
+	 * text before the error.
+	 *
+	 * @param reader
+	 *            the text of the expression, which is read to its end
+	 * @param visitor
+	 *            receives the structure of the expression
+	 * @throws ExpressionParseException
+	 *             if the text cannot be parsed
+	 * @throws IOException
+	 *             if the reader fails
+	 */
+	public void parse(Reader reader, Visitor visitor) throws ExpressionParseException, IOException {
+		final Parse parse = new Parse(visitor);
+		final char[] chunk = new char[_chunkSize];
+		for (int n = reader.read(chunk); n >= 0; n = reader.read(chunk)) {
+			for (int i = 0; i < n; i++) {
+				parse.accept(chunk[i]);
+			}
+		}
+		parse.finish();
+	}
+
+	/**
+	 * Parses the bytes of a channel, as ASCII text, into a flattened tree.
+	 *
+	 * @param channel
+	 *            the text of the expression, which is read to its end
+	 * @return the Expression object representing the parsed expression tree
+	 * @throws ExpressionParseException
+	 *             if the text cannot be parsed
+	 * @throws IOException
+	 *             if the channel fails
+	 */
+	public Expression parse(ReadableByteChannel channel) throws ExpressionParseException, IOException {
+		final TreeBuilder builder = new TreeBuilder();
+		parse(channel, builder);
+		return builder.getRoot();
+	}
+
+	/**
+	 * Parses the bytes of a channel as ASCII text, reporting the structure to a
+	 * visitor. Every byte outside of ASCII is an error, as no character of the
+	 * grammar needs more than one byte in UTF-8 or ISO-8859-1.
+	 *
+	 * @param channel
+	 *            the text of the expression, which is read to its end
+	 * @param visitor
+	 *            receives the structure of the expression
+	 * @throws ExpressionParseException
+	 *             if the text cannot be parsed
+	 * @throws IOException
+	 *             if the channel fails
+	 */
+	public void parse(ReadableByteChannel channel, Visitor visitor) throws ExpressionParseException, IOException {
+		final Parse parse = new Parse(visitor);
+		final ByteBuffer chunk = ByteBuffer.allocate(_chunkSize);
+		while (channel.read(chunk) >= 0) {
+			chunk.flip();
+			final byte[] bytes = chunk.array();
+			for (int i = 0; i < chunk.limit(); i++) {
+				parse.accept((char) (bytes[i] & 0xFF));
+			}
+			chunk.clear();
+		}
+		parse.finish();
+	}
+
+	/**
+	 * The state of one parse. The counts of the children of the open sums and
+	 * products are kept for each level of parentheses, where level 0 is the whole
+	 * expression.
+	 */
+	private static class Parse {
+		// what the next character may be
+		private static final int OPERAND = 0, NUMBER = 1, OPERATOR = 2;
+
+		private final Visitor _visitor;
+		private final StringBuilder _digits = new StringBuilder(10);
+		private long _value;
+		private int _state = OPERAND;
+		private long _offset;
+		private int _depth;
+		private int[] _sumCounts = new int[16]; // terms of the sum of each level that are complete
+		private int[] _productCounts = new int[16]; // factors of the current term of each level
+
+		Parse(Visitor visitor) {
+			_visitor = visitor;
+		}
+
+		void accept(char c) throws ExpressionParseException {
+			if (c == ' ') { // spaces are ignored everywhere, even between digits, as in SimpleExpressionParser
+				_offset++;
+				return;
+			}
+			if (_state == NUMBER) {
+				if (c >= '0' && c <= '9') {
+					_value = _value * 10 + (c - '0');
+					if (_value > Integer.MAX_VALUE) {
+						throw error("number does not fit in an int");
+					}
+					_digits.append(c);
+					_offset++;
+					return;
+				}
+				endNumber();
+			}
+			if (_state == OPERAND) {
+				if (c == '(') {
+					if (++_depth == _sumCounts.length) {
+						_sumCounts = Arrays.copyOf(_sumCounts, 2 * _depth);
+						_productCounts = Arrays.copyOf(_productCounts, 2 * _depth);
+					}
+					_sumCounts[_depth] = 0;
+					_productCounts[_depth] = 0;
+				} else if (c >= 'a' && c <= 'z') {
+					_visitor.literal(String.valueOf(c));
+					_productCounts[_depth]++;
+					_state = OPERATOR;
+				} else if (c >= '0' && c <= '9') {
+					_value = c - '0';
+					_digits.append(c);
+					_state = NUMBER;
+				} else {
+					throw error("unexpected " + describe(c));
+				}
+			} else if (c == '*') {
+				_state = OPERAND;
+			} else if (c == '+') {
+				endProduct();
+				_state = OPERAND;
+			} else if (c == ')' && _depth > 0) {
+				endProduct();
+				endSum();
+				_depth--;
+				_visitor.exit("()", 1);
+				_productCounts[_depth]++;
+			} else {
+				throw error("unexpected " + describe(c));
+			}
+			_offset++;
+		}
+
+		void finish() throws ExpressionParseException {
+			if (_state == NUMBER) {
+				endNumber();
+			}
+			if (_state == OPERAND) {
+				throw error("unexpected end");
+			}
+			if (_depth > 0) {
+				throw error("unexpected end, " + _depth + " parentheses are open");
+			}
+			endProduct();
+			endSum();
+		}
+
+		private void endNumber() {
+			_visitor.literal(_digits.toString());
+			_digits.setLength(0);
+			_productCounts[_depth]++;
+			_state = OPERATOR;
+		}
+
+		private void endProduct() {
+			if (_productCounts[_depth] > 1) {
+				_visitor.exit("*", _productCounts[_depth]);
+			}
+			_productCounts[_depth] = 0;
+			_sumCounts[_depth]++;
+		}
+
+		private void endSum() {
+			if (_sumCounts[_depth] > 1) {
+				_visitor.exit("+", _sumCounts[_depth]);
+			}
+			_sumCounts[_depth] = 0;
+		}
+
+		private ExpressionParseException error(String problem) {
+			return new ExpressionParseException("Cannot parse expression: " + problem + " at offset " + _offset);
+		}
+
+		private static String describe(char c) {
+			return c >= 0x21 && c < 0x7F ? "'" + c + "'" : String.format("character U+%04X", (int) c);
+		}
+	}
+}
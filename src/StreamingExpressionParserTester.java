@@ -0,0 +1,171 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.util.*;
+
+/**
+ * Tests that StreamingExpressionParser accepts the same strings as LinearExpressionParser
+ * and builds the same trees, whatever the size of its chunks.
+ */
+public class StreamingExpressionParserTester {
+	private final ExpressionParser _reference = new LinearExpressionParser();
+
+	/**
+	 * Returns the tree for the specified string, or null if it cannot be parsed.
+	 */
+	private static String parseOrNull (ExpressionParser parser, String expressionStr) {
+		try {
+			return parser.parse(expressionStr, false).convertToString(0);
+		} catch (ExpressionParseException epe) {
+			return null;
+		}
+	}
+
+	/**
+	 * A reader of a long text made of a prefix, a part repeated many times and a
+	 * suffix, generated as it is read.
+	 */
+	private static class RepeatingReader extends Reader {
+		private final String _prefix, _part, _suffix;
+		private final long _length;
+		private long _position;
+
+		RepeatingReader (String prefix, String part, long repetitions, String suffix) {
+			_prefix = prefix;
+			_part = part;
+			_suffix = suffix;
+			_length = prefix.length() + part.length() * repetitions + suffix.length();
+		}
+
+		public int read (char[] buffer, int offset, int length) {
+			if (_position == _length) {
+				return -1;
+			}
+			int n = 0;
+			for (; n < length && _position < _length; n++, _position++) {
+				final long inPart = _position - _prefix.length();
+				final long inSuffix = _position - (_length - _suffix.length());
+				buffer[offset + n] = inPart < 0 ? _prefix.charAt((int) _position)
+					: inSuffix >= 0 ? _suffix.charAt((int) inSuffix) : _part.charAt((int) (inPart % _part.length()));
+			}
+			return n;
+		}
+
+		public void close () {
+		}
+	}
+
+	/**
+	 * A visitor that only counts the events, and the largest number of children.
+	 */
+	private static class CountingVisitor implements StreamingExpressionParser.Visitor {
+		long _literals, _compounds;
+		int _maxChildCount;
+
+		public void literal (String value) {
+			_literals++;
+		}
+
+		public void exit (String operation, int childCount) {
+			_compounds++;
+			_maxChildCount = Math.max(_maxChildCount, childCount);
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies some expressions, and that spaces are ignored as in the other parsers.
+	 */
+	public void testExpressions () throws ExpressionParseException {
+		final ExpressionParser parser = new StreamingExpressionParser();
+		for (String str : new String[] { "x", "42", "007", "2*x+3*y", "(x)", "((x+y))*z", "1 2 + x", " ( x ) ", "2*x+3*y+4*z+(7+6*z)", "10*(4+x)*8*(y+z*(u+0))" }) {
+			assertEquals(str, _reference.parse(str, false).convertToString(0), parser.parse(str, false).convertToString(0));
+		}
+		for (String str : new String[] { "", " ", "x+", "+x", "xy", "(x", "x)", "()", "2147483648", "x**y", "x-y", "(x)(y)" }) {
+			try {
+				parser.parse(str, false);
+				fail("Parsed " + str);
+			} catch (ExpressionParseException epe) {
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies random strings against LinearExpressionParser, with chunks so small
+	 * that numbers and spaces span several of them.
+	 */
+	public void testRandomStrings () {
+		final String alphabet = "12x+*() ";
+		final Random random = new Random(23);
+		final ExpressionParser[] parsers = { new StreamingExpressionParser(1), new StreamingExpressionParser(3), new StreamingExpressionParser() };
+		for (int i = 0; i < 20000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 1 + random.nextInt(12);
+			for (int j = 0; j < length; j++) {
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			final String expressionStr = sb.toString();
+			final String expected = parseOrNull(_reference, expressionStr);
+			for (ExpressionParser parser : parsers) {
+				assertEquals(expressionStr, expected, parseOrNull(parser, expressionStr));
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies parsing from a channel, and that bytes outside of ASCII are rejected.
+	 */
+	public void testChannel () throws ExpressionParseException, IOException {
+		final StreamingExpressionParser parser = new StreamingExpressionParser(4);
+		final String str = "2*x+3*y+4*z+(7+6*z)";
+		final Expression expression = parser.parse(Channels.newChannel(new ByteArrayInputStream(str.getBytes("US-ASCII"))));
+		assertEquals(_reference.parse(str, false).convertToString(0), expression.convertToString(0));
+		try {
+			parser.parse(Channels.newChannel(new ByteArrayInputStream("x+é".getBytes("UTF-8"))));
+			fail("Parsed a non-ASCII byte");
+		} catch (ExpressionParseException epe) {
+			assertTrue(epe.getMessage(), epe.getMessage().contains("U+00C3 at offset 2"));
+		}
+	}
+
+	@Test
+	/**
+	 * Verifies the events of a sum of seventy million characters, which is never held in memory.
+	 */
+	public void testHugeSum () throws ExpressionParseException, IOException {
+		final long terms = 10000000;
+		final CountingVisitor visitor = new CountingVisitor();
+		new StreamingExpressionParser().parse(new RepeatingReader("x", "+12*x*y", terms - 1, ""), visitor);
+		assertEquals(1 + 3 * (terms - 1), visitor._literals);
+		assertEquals(terms, visitor._compounds); // the products, then the sum
+		assertEquals(terms, visitor._maxChildCount);
+	}
+
+	@Test
+	/**
+	 * Verifies that deep nesting, which overflows the stack of the recursive parsers, is parsed.
+	 */
+	public void testDeepNesting () throws ExpressionParseException, IOException {
+		final int depth = 1000000;
+		final CountingVisitor visitor = new CountingVisitor();
+		final StreamingExpressionParser parser = new StreamingExpressionParser();
+		parser.parse(new RepeatingReader("", "(", depth, "x" + ")".repeat(depth)), visitor);
+		assertEquals(1, visitor._literals);
+		assertEquals(depth, visitor._compounds);
+
+		final Expression expression = parser.parse(new StringReader("(".repeat(5000) + "x+y" + ")".repeat(5000)));
+		assertTrue(expression instanceof ParentheticalExpression);
+		try {
+			parser.parse(new RepeatingReader("", "(", depth, "x"), visitor);
+			fail("Parsed unbalanced parentheses");
+		} catch (ExpressionParseException epe) {
+			assertTrue(epe.getMessage(), epe.getMessage().contains(depth + " parentheses are open"));
+		}
+	}
+}